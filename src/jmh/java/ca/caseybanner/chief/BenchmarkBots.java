@@ -0,0 +1,49 @@
+package ca.caseybanner.chief;
+
+import ca.caseybanner.chief.commands.ConfigurationException;
+
+import java.util.Properties;
+
+/**
+ * Builds bots for benchmarks. The bots are never connected, so the XMPP
+ * connection behind them acts as a stub.
+ */
+public class BenchmarkBots {
+
+	public static final String ROOM_JID = "1234_room@conf.localhost/Some User";
+	public static final String USER_JID = "1234_5678@chat.localhost/bot";
+	public static final String ADMIN_JID = "1234_admin@chat.localhost/bot";
+
+	public static final Jid ROOM = Jid.parse(ROOM_JID);
+	public static final Jid USER = Jid.parse(USER_JID);
+	public static final Jid ADMIN = Jid.parse(ADMIN_JID);
+
+	private BenchmarkBots() {
+
+	}
+
+	/**
+	 * Create a bot with the default commands plus StubCommand
+	 *
+	 * @return an unconnected bot
+	 * @throws ConfigurationException
+	 */
+	public static Bot create() throws ConfigurationException {
+
+		Properties properties = new Properties();
+		properties.setProperty("host", "localhost");
+		properties.setProperty("port", "5222");
+		properties.setProperty("username", "bench");
+		properties.setProperty("password", "bench");
+		properties.setProperty("conferenceHost", "conf.localhost");
+		properties.setProperty("nickname", "Chief Bot");
+		properties.setProperty("roomPrefix", "^@Chief\\s*");
+		properties.setProperty("admins", "1234_other@chat.localhost,1234_admin@chat.localhost");
+		properties.setProperty("commands", StubCommand.class.getName());
+		properties.setProperty("resources", "");
+
+		return new Bot(properties);
+
+	}
+
+}
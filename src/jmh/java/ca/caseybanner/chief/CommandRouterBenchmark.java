@@ -0,0 +1,119 @@
+package ca.caseybanner.chief;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Compares routing a message through CommandRouter with a linear scan over N commands
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(java.util.concurrent.TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CommandRouterBenchmark {
+
+	@Param({"5", "25", "100"})
+	public int commandCount;
+
+	private List<Command> commands;
+	private CommandRouter router;
+	private String lastCommandMessage;
+	private String unmatchedMessage;
+
+	/**
+	 * A command with a keyword pattern like the built in commands
+	 */
+	private static class KeywordCommand extends Command {
+
+		private final Pattern pattern;
+
+		KeywordCommand(String keyword) {
+			super(null);
+			this.pattern = Pattern.compile("^" + keyword + "\\s+(?<query>.+)$");
+		}
+
+		@Override
+		public String getUsage() {
+			return pattern.pattern();
+		}
+
+		@Override
+		public Pattern getPattern() {
+			return pattern;
+		}
+
+		@Override
+		public CompletableFuture<Optional<String>> processAsyncMessage(
+				Jid from, String message, Matcher matcher, boolean fromRoom) {
+			return toFuture(Optional.empty());
+		}
+
+	}
+
+	@Setup
+	public void setup() {
+
+		commands = new ArrayList<>();
+		for (int i = 0; i < commandCount; i++) {
+			commands.add(new KeywordCommand("command" + i));
+		}
+
+		router = new CommandRouter(commands);
+		lastCommandMessage = "command" + (commandCount - 1) + " some arguments";
+		unmatchedMessage = "nothing matches this message";
+
+	}
+
+	@Benchmark
+	public CommandRouter.Route routeLastCommand() {
+		return router.route(lastCommandMessage);
+	}
+
+	@Benchmark
+	public CommandRouter.Route routeUnmatched() {
+		return router.route(unmatchedMessage);
+	}
+
+	@Benchmark
+	public Command linearScanLastCommand() {
+		return linearScan(lastCommandMessage);
+	}
+
+	@Benchmark
+	public Command linearScanUnmatched() {
+		return linearScan(unmatchedMessage);
+	}
+
+	/**
+	 * The routing Bot.handleMessage did before CommandRouter
+	 */
+	private Command linearScan(String body) {
+		for (Command command : commands) {
+			Matcher matcher = command.getPattern().matcher(body);
+			if (matcher.matches()) {
+				return command;
+			}
+		}
+
+		return null;
+	}
+
+}
@@ -0,0 +1,96 @@
+package ca.caseybanner.chief;
+
+import ca.caseybanner.chief.commands.ConfigurationException;
+import org.jivesoftware.smack.packet.Message;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks for the per-message path through Bot.handleMessage and the helpers it uses
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class MessagePathBenchmark {
+
+	private Bot bot;
+	private Message roomMessage;
+	private Message roomMessageWithoutPrefix;
+	private Message directMessage;
+
+	@Setup
+	public void setup() throws ConfigurationException {
+
+		bot = BenchmarkBots.create();
+
+		roomMessage = new Message();
+		roomMessage.setBody("@Chief echo hello there");
+
+		roomMessageWithoutPrefix = new Message();
+		roomMessageWithoutPrefix.setBody("just chatting, nothing for the bot");
+
+		directMessage = new Message();
+		directMessage.setBody("echo hello there");
+
+	}
+
+	@Benchmark
+	public Optional<String> handleRoomMessage() {
+		return bot.handleMessage(Jid.parse(BenchmarkBots.ROOM_JID), roomMessage, true).join();
+	}
+
+	@Benchmark
+	public Optional<String> handleRoomMessageWithoutPrefix() {
+		return bot.handleMessage(Jid.parse(BenchmarkBots.ROOM_JID), roomMessageWithoutPrefix, true).join();
+	}
+
+	@Benchmark
+	public Optional<String> handleDirectMessage() {
+		return bot.handleMessage(Jid.parse(BenchmarkBots.USER_JID), directMessage, false).join();
+	}
+
+	@Benchmark
+	public String stripRoomPrefix() {
+		return bot.stripRoomPrefix(roomMessage.getBody());
+	}
+
+	@Benchmark
+	public String getPlainJID() {
+		return XMPP.getPlainJID(BenchmarkBots.ROOM_JID);
+	}
+
+	@Benchmark
+	public Jid parseJid() {
+		return Jid.parse(BenchmarkBots.ROOM_JID);
+	}
+
+	@Benchmark
+	public String nicknameToMentionName() {
+		return bot.nicknameToMentionName("Some Long User Name");
+	}
+
+	@Benchmark
+	public boolean isAdmin() {
+		return bot.isAdmin(BenchmarkBots.ADMIN);
+	}
+
+	@Benchmark
+	public boolean isNotAdmin() {
+		return bot.isAdmin(BenchmarkBots.USER);
+	}
+
+}
@@ -0,0 +1,34 @@
+package ca.caseybanner.chief;
+
+import java.util.Optional;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A command that does no I/O, so benchmarks measure only the bot's own overhead
+ */
+public class StubCommand extends SynchronousCommand {
+
+	private static final Pattern PATTERN = Pattern.compile("^echo\\s+(?<text>.+)$");
+
+	public StubCommand(Bot bot) {
+		super(bot);
+	}
+
+	@Override
+	public String getUsage() {
+		return "echo <text> - repeats <text>";
+	}
+
+	@Override
+	public Pattern getPattern() {
+		return PATTERN;
+	}
+
+	@Override
+	public Optional<String> processMessage(
+			String from, String message, Matcher matcher, boolean fromRoom) {
+		return Optional.of(matcher.group("text"));
+	}
+
+}
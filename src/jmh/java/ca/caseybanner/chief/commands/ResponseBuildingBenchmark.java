@@ -0,0 +1,75 @@
+package ca.caseybanner.chief.commands;
+
+import ca.caseybanner.chief.BenchmarkBots;
+import ca.caseybanner.chief.Bot;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+
+/**
+ * Benchmarks for building command responses that don't need the network
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ResponseBuildingBenchmark {
+
+	private LCBOCommand.LCBOProduct product;
+	private HelpCommand helpCommand;
+	private Matcher helpMatcher;
+
+	@Setup
+	public void setup() throws ConfigurationException {
+
+		product = new LCBOCommand.LCBOProduct();
+		product.id = 438457;
+		product.name = "Mill Street Organic Lager";
+		product.origin = "Canada, Ontario";
+		product.packaging = "6x341 mL bottle";
+		product.producer_name = "Mill Street Brewery";
+		product.primary_category = "Beer";
+		product.secondary_category = "Lager";
+		product.style = "Crisp & Fresh";
+		product.alcohol_content = 420;
+		product.price_in_cents = 1295;
+		product.regular_price_in_cents = 1395;
+		product.inventory_count = 12345;
+		product.inventory_volume_in_milliliters = 4208000;
+
+		Bot bot = BenchmarkBots.create();
+		helpCommand = bot.getCommands().stream()
+				.filter(command -> command instanceof HelpCommand)
+				.map(command -> (HelpCommand) command)
+				.findFirst()
+				.orElseThrow(IllegalStateException::new);
+
+		helpMatcher = helpCommand.getPattern().matcher("help");
+		helpMatcher.matches();
+
+	}
+
+	@Benchmark
+	public String lcboProductToString() {
+		return product.toString();
+	}
+
+	@Benchmark
+	public Optional<String> helpResponse() {
+		return helpCommand.processMessage(BenchmarkBots.USER_JID, "help", helpMatcher, false);
+	}
+
+}
@@ -1,9 +1,11 @@
 package ca.caseybanner.chief;
 
 import ca.caseybanner.chief.commands.ConfigurationException;
-import ca.caseybanner.chief.commands.HelpCommand;
-import ca.caseybanner.chief.commands.QuitCommand;
-import ca.caseybanner.chief.util.DynamicURLClassLoader;
+import ca.caseybanner.chief.metrics.Counter;
+import ca.caseybanner.chief.metrics.LatencyHistogram;
+import ca.caseybanner.chief.metrics.MetricsRegistry;
+import ca.caseybanner.chief.metrics.MetricsServer;
+import ca.caseybanner.chief.util.DiskCache;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.jivesoftware.smack.Chat;
@@ -13,7 +15,6 @@ import org.jivesoftware.smack.ConnectionConfiguration;
 import org.jivesoftware.smack.ConnectionListener;
 import org.jivesoftware.smack.MessageListener;
 import org.jivesoftware.smack.Roster;
-import org.jivesoftware.smack.RosterEntry;
 import org.jivesoftware.smack.SmackConfiguration;
 import org.jivesoftware.smack.SmackException;
 import org.jivesoftware.smack.XMPPConnection;
@@ -26,27 +27,30 @@ import org.jivesoftware.smackx.muc.DiscussionHistory;
 import org.jivesoftware.smackx.muc.MultiUserChat;
 import org.jivesoftware.smackx.ping.PingManager;
 
-import java.io.File;
 import java.io.IOException;
-import java.lang.reflect.Constructor;
-import java.lang.reflect.InvocationTargetException;
-import java.lang.reflect.Method;
-import java.net.MalformedURLException;
-import java.net.URLClassLoader;
-import java.util.ArrayList;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.EnumMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
-import java.util.function.Function;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
+import java.util.stream.Collectors;
 
 /**
  * The Bot!
@@ -60,17 +64,45 @@ public class Bot implements ChatManagerListener, MessageListener, ConnectionList
 	private final Lock lock;
 	private final Condition running;
 	private final XMPPConnection connection;
-	private final Properties properties;
 	private final String username;
 	private final String password;
 	private final String conferenceHost;
 	private final String nickname;
 	private final Pattern roomPrefixPattern;
 	private final List<String> rooms;
-	private final List<String> admins;
+	private final Set<Jid> admins;
 
 	private final ConcurrentHashMap<String, MultiUserChat> multiUserChatsByRoom;
-	private final List<Command> commands;
+	private final PluginManager pluginManager;
+	private final boolean watchPlugins;
+	private final boolean parallelStartup;
+	private final StartupTimings startupTimings;
+	private final CommandDispatcher dispatcher;
+	private final SynchronousExecutor synchronousExecutor;
+	private final OutboundScheduler outboundScheduler;
+	private final HttpService httpService;
+	private final RosterIndex rosterIndex;
+	private final RoomJoiner roomJoiner;
+	private final Path cacheDirectory;
+	private final int cacheDiskSize;
+	private final ConcurrentHashMap<String, Optional<DiskCache>> diskCaches;
+
+	private final MetricsRegistry metrics;
+	private final MetricsServer metricsServer;
+	private final Counter chatMessagesReceived;
+	private final ConcurrentHashMap<Jid, Counter> roomMessagesReceived;
+	private final ConcurrentHashMap<String, LatencyHistogram> commandLatency;
+	private final Counter commandsMatched;
+	private final Counter commandsUnmatched;
+	private final LatencyHistogram sendLatency;
+	private final Counter sendFailures;
+	private final Counter reconnects;
+	private final Counter reconnectFailures;
+	private final Counter connectionErrors;
+	private final LatencyHistogram startJoinLatency;
+	private final LatencyHistogram rejoinLatency;
+	private final Counter startJoinIncomplete;
+	private final Counter rejoinIncomplete;
 
 	/**
 	 * List of properties that are required
@@ -92,12 +124,25 @@ public class Bot implements ChatManagerListener, MessageListener, ConnectionList
 	 * @throws ca.caseybanner.chief.commands.ConfigurationException
 	 */
 	public Bot(Properties properties) throws ConfigurationException {
+		this(properties, null);
+	}
+
+	/**
+	 * Bot constructor
+	 *
+	 * @param properties     configuration properties
+	 * @param propertiesPath the file the properties were read from, reloaded when it changes.
+	 *                       May be null.
+	 * @throws ca.caseybanner.chief.commands.ConfigurationException
+	 */
+	public Bot(Properties properties, Path propertiesPath) throws ConfigurationException {
+
+		startupTimings = new StartupTimings();
+		long constructorStartNanos = System.nanoTime();
 
 		lock = new ReentrantLock();
 		running = lock.newCondition();
 
-		this.properties = properties;
-
 		// Make sure the required properties exist
 
 		for (String requiredProperty : requiredProperties) {
@@ -125,9 +170,11 @@ public class Bot implements ChatManagerListener, MessageListener, ConnectionList
 		// Load admins
 		String adminsString = properties.getProperty("admins");
 		if (adminsString == null) {
-			admins = Collections.emptyList();
+			admins = Collections.emptySet();
 		} else {
-			admins = Arrays.asList(adminsString.split(","));
+			admins = Arrays.stream(adminsString.split(","))
+					.map(admin -> Jid.parse(admin.trim()).asBare())
+					.collect(Collectors.toSet());
 		}
 
 		// Load rooms
@@ -138,7 +185,134 @@ public class Bot implements ChatManagerListener, MessageListener, ConnectionList
 			rooms = Arrays.asList(roomsString.split(","));
 		}
 
+		// Metrics are set up first so everything else can record into them
+
+		metrics = new MetricsRegistry();
+		int metricsPort = Integer.parseInt(properties.getProperty("metricsPort", "0"));
+		metricsServer = metricsPort > 0 ?
+				new MetricsServer(metrics, properties.getProperty("metricsHost", "127.0.0.1"), metricsPort) :
+				null;
+
+		chatMessagesReceived = metrics.counter(
+				"chief_messages_received_total", "Messages received", "type", "chat");
+		roomMessagesReceived = new ConcurrentHashMap<>();
+		commandLatency = new ConcurrentHashMap<>();
+		commandsMatched = metrics.counter(
+				"chief_commands_matched_total", "Messages that matched a command");
+		commandsUnmatched = metrics.counter(
+				"chief_commands_unmatched_total", "Messages that didn't match any command");
+		sendLatency = metrics.histogram(
+				"chief_outbound_send_seconds", "Time taken to write a message to the connection");
+		sendFailures = metrics.counter(
+				"chief_outbound_send_failures_total", "Messages that couldn't be written to the connection");
+		reconnects = metrics.counter(
+				"chief_reconnects_total", "Successful reconnections to the server");
+		reconnectFailures = metrics.counter(
+				"chief_reconnect_failures_total", "Failed attempts to reconnect to the server");
+		connectionErrors = metrics.counter(
+				"chief_connection_errors_total", "Connections closed because of an error");
+		startJoinLatency = metrics.histogram(
+				"chief_rooms_joined_seconds", "Time until every room was joined", "trigger", "start");
+		rejoinLatency = metrics.histogram(
+				"chief_rooms_joined_seconds", "Time until every room was joined", "trigger", "reconnect");
+		startJoinIncomplete = metrics.counter(
+				"chief_rooms_join_incomplete_total", "Times joining the rooms gave up on at least one room",
+				"trigger", "start");
+		rejoinIncomplete = metrics.counter(
+				"chief_rooms_join_incomplete_total", "Times joining the rooms gave up on at least one room",
+				"trigger", "reconnect");
+
+		// Commands are run off the listener thread, in a lane for their cost class
+
+		CommandDispatcher.OverflowPolicy overflowPolicy =
+				"dropOldest".equals(properties.getProperty("dispatchOverflow")) ?
+						CommandDispatcher.OverflowPolicy.DROP_OLDEST :
+						CommandDispatcher.OverflowPolicy.REJECT;
+
+		Map<Command.CostClass, Integer> dispatchThreads = new EnumMap<>(Command.CostClass.class);
+		dispatchThreads.put(Command.CostClass.ADMIN,
+				Integer.parseInt(properties.getProperty("dispatchAdminThreads", "1")));
+		dispatchThreads.put(Command.CostClass.LOCAL,
+				Integer.parseInt(properties.getProperty("dispatchLocalThreads", "1")));
+		dispatchThreads.put(Command.CostClass.EXTERNAL,
+				Integer.parseInt(properties.getProperty("dispatchThreads", "4")));
+
+		int dispatchQueueSize = Integer.parseInt(properties.getProperty("dispatchQueueSize", "100"));
+		if (dispatchQueueSize < 1) {
+			throw new ConfigurationException("dispatchQueueSize must be at least 1, got " + dispatchQueueSize);
+		}
+
+		dispatcher = new CommandDispatcher(
+				dispatchThreads,
+				dispatchQueueSize,
+				overflowPolicy,
+				Long.parseLong(properties.getProperty("commandTimeout", "30000")));
+
+		// Blocking work in synchronous commands can be moved to virtual threads or a pool
+
+		synchronousExecutor = new SynchronousExecutor(
+				SynchronousExecutor.Mode.parse(properties.getProperty("syncExecution", "inline")),
+				Integer.parseInt(properties.getProperty("syncPoolSize", "16")),
+				Integer.parseInt(properties.getProperty("syncQueueSize", "500")));
+
+		// Replies are paced per destination so one busy room can't get the connection throttled
+
+		outboundScheduler = new OutboundScheduler(
+				Double.parseDouble(properties.getProperty("outboundBurst", "5")),
+				Double.parseDouble(properties.getProperty("outboundRate", "1")),
+				Double.parseDouble(properties.getProperty("outboundSenderBurst", "3")),
+				Double.parseDouble(properties.getProperty("outboundSenderRate", "0.5")),
+				Integer.parseInt(properties.getProperty("outboundCoalesceLimit", "4000")),
+				Integer.parseInt(properties.getProperty("outboundThreads", "2")));
+
+		// One pooled HTTP client for every command
+
+		httpService = new HttpService(
+				Integer.parseInt(properties.getProperty("httpConnectTimeout", "10000")),
+				Integer.parseInt(properties.getProperty("httpReadTimeout", "20000")),
+				Integer.parseInt(properties.getProperty("httpMaxConnections", "50")),
+				Integer.parseInt(properties.getProperty("httpMaxConnectionsPerHost", "8")),
+				Integer.parseInt(properties.getProperty("httpIoThreads", "8")),
+				Integer.parseInt(properties.getProperty("httpBreakerFailures", "5")),
+				Long.parseLong(properties.getProperty("httpBreakerOpenTime", "30000")),
+				Integer.parseInt(properties.getProperty("httpBulkheadSize", "8")),
+				Long.parseLong(properties.getProperty("httpBulkheadWait", "1000")),
+				metrics);
+
+		rosterIndex = new RosterIndex();
 		multiUserChatsByRoom = new ConcurrentHashMap<>();
+
+		// Command caches can be kept on disk so they survive restarts
+
+		String cacheDirectoryString = properties.getProperty("cacheDirectory", "").trim();
+		cacheDirectory = cacheDirectoryString.isEmpty() ? null : Paths.get(cacheDirectoryString);
+		cacheDiskSize = (int) Math.min(Integer.MAX_VALUE,
+				ConfigurationBinder.parseLong(properties.getProperty("cacheDiskSize", "16MB")));
+		diskCaches = new ConcurrentHashMap<>();
+
+		// Rooms are joined in parallel, a few at a time
+
+		roomJoiner = new RoomJoiner(
+				Integer.parseInt(properties.getProperty("roomJoinConcurrency", "4")),
+				Integer.parseInt(properties.getProperty("roomJoinAttempts", "3")),
+				Long.parseLong(properties.getProperty("roomJoinBackoff", "1000")));
+
+		for (Command.CostClass costClass : Command.CostClass.values()) {
+			metrics.gauge("chief_dispatch_queue_depth", "Commands waiting for a dispatch thread",
+					() -> dispatcher.getQueueDepth(costClass), "lane", costClass.name().toLowerCase());
+		}
+		metrics.gauge("chief_outbound_pending", "Messages waiting to be sent",
+				outboundScheduler::getPendingCount);
+		metrics.gauge("chief_sync_in_flight", "Synchronous commands currently running off the dispatch threads",
+				synchronousExecutor::getInFlight);
+		metrics.gauge("chief_sync_pool_saturation",
+				"Running and queued synchronous commands per pool thread, above 1 when commands are waiting",
+				synchronousExecutor::getPoolSaturation);
+		metrics.gauge("chief_roster_size", "Entries in the roster index",
+				rosterIndex::size);
+		metrics.gauge("chief_rooms_joined", "Rooms the bot is currently in",
+				() -> multiUserChatsByRoom.values().stream().filter(MultiUserChat::isJoined).count());
+
 		connection = new XMPPTCPConnection(config);
 		connection.addConnectionListener(this);
 
@@ -149,120 +323,112 @@ public class Bot implements ChatManagerListener, MessageListener, ConnectionList
 			pingManager.setPingInterval(15);
 		});
 
-		// Load external jars
-		URLClassLoader urlClassLoader = (URLClassLoader) ClassLoader.getSystemClassLoader();
-		DynamicURLClassLoader classLoader = new DynamicURLClassLoader(urlClassLoader);
-		String[] resourcePaths = properties.getProperty("resources").split("\\s*,\\s*");
-		for (String path : resourcePaths) {
-			try {
-				File resourceFile = new File(path);
-				logger.trace(resourceFile.getAbsolutePath());
-				classLoader.addURL(resourceFile.toURI().toURL());
-			} catch (MalformedURLException e) {
-				logger.error("Invalid resource path: " + path, e);
-			}
+		// Commands are loaded last, since their constructors may use anything above.
+		// They are reloaded when a plugin jar or the properties file changes.
+		// With parallel startup they are constructed in parallel while connecting, in start.
+
+		parallelStartup = "parallel".equals(properties.getProperty("startup", "serial"));
+		watchPlugins = Boolean.parseBoolean(properties.getProperty("pluginWatch", "true"));
+		pluginManager = new PluginManager(
+				this, properties, propertiesPath,
+				Long.parseLong(properties.getProperty("pluginDrainTimeout", "60000")),
+				parallelStartup,
+				Integer.parseInt(properties.getProperty(
+						"startupThreads", Integer.toString(Runtime.getRuntime().availableProcessors()))));
+
+		startupTimings.record("services", constructorStartNanos);
+
+		if (!parallelStartup) {
+			long commandsStartNanos = System.nanoTime();
+			pluginManager.loadInitial();
+			startupTimings.record("commands", commandsStartNanos);
 		}
+	}
 
-		// Add some default commands
-		commands = new ArrayList<>();
+	/**
+	 * Getter for the list of commands.
+	 *
+	 * @return list of Commands
+	 */
+	public List<Command> getCommands() {
 
-		addCommand(HelpCommand::new);
-		addCommand(QuitCommand::new);
+		return pluginManager.getRegistry().getCommands();
 
-		String[] commandClassnames = properties.getProperty("commands").split("\\s*,\\s*");
-		Arrays.stream(commandClassnames).forEach(classname -> {
-			try {
-				Class clazz = classLoader.loadClass(classname);
-				Constructor<Command> cons = clazz.getConstructor(Bot.class);
-				addCommand(bot -> {
-					try {
-						return cons.newInstance(bot);
-					} catch (IllegalAccessException | InstantiationException | InvocationTargetException e) {
-						logger.error("Error creating command " + classname, e);
-						return null;
-					}
-				});
-				logger.info("Added command " + classname);
-			} catch (ClassNotFoundException e) {
-				logger.error("Cannot find class " + classname, e);
-			} catch (NoSuchMethodException e) {
-				logger.error("Failed to find the correct method in command " + classname, e);
-			} catch (Exception e) {
-				logger.error("Unknown error creating command " + classname, e);
-			}
-		});
 	}
 
 	/**
-	 * Constructs and adds a command
+	 * Getter for the current command registry, replaced whenever plugins are reloaded
 	 *
-	 * @param commandConstructor the constructor of a Command to add
+	 * @return the current CommandRegistry
 	 */
-	private void addCommand(Function<Bot, Command> commandConstructor) {
+	public CommandRegistry getCommandRegistry() {
 
-		Command command = commandConstructor.apply(this);
-		if (null == command) {
-			return;
-		}
+		return pluginManager.getRegistry();
 
-		// Load any properties prefixed with this classname and apply them
+	}
 
-		String typeName = command.getClass().getTypeName();
-		properties.stringPropertyNames().stream().filter(propertyName ->
-				(propertyName.indexOf(typeName) == 0) &&
-						(propertyName.length() > (typeName.length() + 1)) &&
-						(propertyName.charAt(typeName.length()) == '.')).forEach(propertyName -> {
+	/**
+	 * Getter for the executor synchronous commands run on
+	 *
+	 * @return the SynchronousExecutor
+	 */
+	public SynchronousExecutor getSynchronousExecutor() {
 
-			String fieldName = propertyName.substring(typeName.length() + 1);
+		return synchronousExecutor;
 
-			// Construct the name of the setter for this field
+	}
 
-			StringBuilder setterNameBuilder = new StringBuilder("set");
-			setterNameBuilder.append(fieldName.substring(0, 1).toUpperCase());
-			if (fieldName.length() > 1) {
-				setterNameBuilder.append(fieldName.substring(1));
-			}
+	/**
+	 * Get the disk cache with the given name, opening it the first time it is asked for.
+	 * The same instance is returned across plugin reloads.
+	 *
+	 * @param name file name of the cache within the cache directory
+	 * @return the disk cache, or empty if disk caching is disabled or the cache couldn't be opened
+	 */
+	public Optional<DiskCache> getDiskCache(String name) {
 
-			String setterName = setterNameBuilder.toString();
+		if (cacheDirectory == null) {
+			return Optional.empty();
+		}
 
+		return diskCaches.computeIfAbsent(name, key -> {
 			try {
-
-				// Call the setter with the property value
-
-				Method method = command.getClass().getMethod(setterName, String.class);
-				method.invoke(command, properties.getProperty(propertyName));
-			} catch (NoSuchMethodException | SecurityException ex) {
-				logger.error(
-						"Could not find configuration setter {} on {}",
-						setterName,
-						command.getClass().getTypeName());
-			} catch (IllegalAccessException | IllegalArgumentException | InvocationTargetException ex) {
-				logger.error(
-						"Error calling configuration setter {} on {}",
-						setterName,
-						command.getClass().getTypeName(),
-						ex);
+				Files.createDirectories(cacheDirectory);
+				DiskCache diskCache = new DiskCache(cacheDirectory.resolve(key + ".cache"), cacheDiskSize);
+
+				metrics.gauge("chief_disk_cache_entries", "Keys stored in the disk cache",
+						diskCache::size, "cache", key);
+				metrics.gauge("chief_disk_cache_bytes", "Bytes written to the disk cache's segment",
+						diskCache::getBytes, "cache", key);
+
+				return Optional.of(diskCache);
+			} catch (IOException e) {
+				logger.error("Error opening disk cache {}", key, e);
+				return Optional.empty();
 			}
 		});
 
-		try {
-			command.configurationComplete();
-			commands.add(command);
-		} catch (ConfigurationException e) {
-			logger.error("Command configuration error in {}: {}",
-					command.getClass().toString(), e.getMessage());
-		}
+	}
+
+	/**
+	 * Getter for the HTTP client shared by all commands
+	 *
+	 * @return the HttpService
+	 */
+	public HttpService getHttpService() {
+
+		return httpService;
 
 	}
 
 	/**
-	 * Getter for the list of commands.
+	 * Getter for the metrics registry, commands can record their own metrics into it
 	 *
-	 * @return list of Commands
+	 * @return the MetricsRegistry
 	 */
-	public List<Command> getCommands() {
+	public MetricsRegistry getMetrics() {
 
-		return Collections.unmodifiableList(commands);
+		return metrics;
 
 	}
 
@@ -271,20 +437,59 @@ public class Bot implements ChatManagerListener, MessageListener, ConnectionList
 	 */
 	public void start() {
 		try {
+			if (metricsServer != null) {
+				metricsServer.start();
+			}
+
+			// With parallel startup, commands are constructed while we connect and log in
+
+			CompletableFuture<Void> commandsLoaded;
+			if (parallelStartup) {
+				commandsLoaded = CompletableFuture.runAsync(() -> {
+					long commandsStartNanos = System.nanoTime();
+					pluginManager.loadInitial();
+					startupTimings.record("commands", commandsStartNanos);
+				});
+			} else {
+				commandsLoaded = CompletableFuture.completedFuture(null);
+			}
+
+			long phaseStartNanos = System.nanoTime();
 			connection.connect();
+			startupTimings.record("connect", phaseStartNanos);
+
+			phaseStartNanos = System.nanoTime();
 			connection.login(username, password, "Chief Bot");
+			startupTimings.record("login", phaseStartNanos);
 
 			logger.info("Bot online: connected to domain {}", connection.getConnectionID());
 
+			// Don't listen for messages until there are commands to handle them
+
+			phaseStartNanos = System.nanoTime();
+			commandsLoaded.join();
+			startupTimings.record("waitForCommands", phaseStartNanos);
+
+			if (watchPlugins) {
+				pluginManager.watch();
+			}
+
 			ChatManager chatManager = ChatManager.getInstanceFor(connection);
 			chatManager.addChatListener(this);
 
 			// Roster setup
 
+			phaseStartNanos = System.nanoTime();
 			Roster roster = connection.getRoster();
 			roster.setSubscriptionMode(Roster.SubscriptionMode.accept_all);
+			rosterIndex.attach(roster);
+			startupTimings.record("roster", phaseStartNanos);
+
+			phaseStartNanos = System.nanoTime();
+			joinRooms(startJoinLatency, startJoinIncomplete).join();
+			startupTimings.record("rooms", phaseStartNanos);
 
-			rooms.stream().forEach(this::joinRoom);
+			startupTimings.report(logger, metrics);
 
 		} catch (XMPPException e) {
 			throw new RuntimeException("XMPP Error", e);
@@ -304,6 +509,16 @@ public class Bot implements ChatManagerListener, MessageListener, ConnectionList
 		lock.lock();
 		try {
 			running.await();
+			roomJoiner.shutdown();
+			pluginManager.shutdown();
+			dispatcher.shutdown();
+			synchronousExecutor.shutdown();
+			outboundScheduler.shutdown();
+			httpService.shutdown();
+			diskCaches.values().forEach(diskCache -> diskCache.ifPresent(DiskCache::close));
+			if (metricsServer != null) {
+				metricsServer.stop();
+			}
 			connection.disconnect();
 		} catch (InterruptedException | SmackException.NotConnectedException ignored) {
 
@@ -328,112 +543,153 @@ public class Bot implements ChatManagerListener, MessageListener, ConnectionList
 	}
 
 	/**
-	 * Join a room
+	 * Join every configured room in parallel
 	 *
-	 * @param room name of the room to join (part before the "@conference_host"
-	 * @return Whether or not joining the room succeeded
+	 * @param latency    histogram to record the time taken to join every room in
+	 * @param incomplete counted instead when a room was given up on
+	 * @return future that completes once every room has been joined or given up on
 	 */
-	private boolean joinRoom(String room) {
-		logger.info("Join room \"{}\"", room);
+	private CompletableFuture<Void> joinRooms(LatencyHistogram latency, Counter incomplete) {
+
+		long startNanos = System.nanoTime();
+		return roomJoiner.joinAll(rooms, this::joinRoom).thenAccept(joined -> {
+			if (joined == rooms.size()) {
+				latency.recordSince(startNanos);
+			} else {
+				incomplete.increment();
+			}
+			logger.info("Joined {} of {} rooms in {}ms",
+					joined, rooms.size(), TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos));
+		});
+
+	}
 
-		MultiUserChat muc;
-		if (multiUserChatsByRoom.containsKey(room)) {
+	/**
+	 * Join a room, or rejoin it if we were already in it
+	 *
+	 * @param room name of the room to join (part before the "@conference_host"
+	 * @throws XMPPException.XMPPErrorException   if the server refused the join
+	 * @throws SmackException.NoResponseException if the server didn't reply in time
+	 * @throws SmackException.NotConnectedException if the connection is down
+	 */
+	private void joinRoom(String room) throws XMPPException.XMPPErrorException,
+			SmackException.NoResponseException, SmackException.NotConnectedException {
 
-			// Already joined this room
+		logger.info("Join room \"{}\"", room);
 
-			logger.info("Already in this room, rejoining");
+		// The listener is added when the MultiUserChat is created and stays registered
+		// across rejoins, so each message is only processed once
 
-			muc = multiUserChatsByRoom.get(room);
-		} else {
-			muc = new MultiUserChat(connection, room + "@" + conferenceHost);
-		}
+		MultiUserChat muc = multiUserChatsByRoom.computeIfAbsent(room, key -> {
+			MultiUserChat created = new MultiUserChat(connection, key + "@" + conferenceHost);
+			created.addMessageListener((Packet packet) -> processRoomMessage(created, packet));
+			return created;
+		});
 
 		DiscussionHistory history = new DiscussionHistory();
 		history.setMaxStanzas(0);
 
-		try {
-			muc.join(nickname, "", history, SmackConfiguration.getDefaultPacketReplyTimeout());
-			muc.addMessageListener((Packet packet) -> processRoomMessage(muc, packet));
-
-			multiUserChatsByRoom.put(room, muc);
-
-			logger.info("Room joined");
+		// Overlapping start and reconnect joins must not join the same room at the same time
 
-			return true;
-		} catch (XMPPException.XMPPErrorException |
-				SmackException.NoResponseException |
-				SmackException.NotConnectedException e) {
-			logger.error("Error joining room", e);
-			return false;
+		synchronized (muc) {
+			muc.join(nickname, "", history, SmackConfiguration.getDefaultPacketReplyTimeout());
 		}
 
+		logger.info("Room \"{}\" joined", room);
+
 	}
 
 	/**
-	 * Process a message and return an optional response
+	 * Process a message and return a future optional response.
+	 * <p/>
+	 * Matching happens on the calling thread, the matched command itself is run by the dispatcher.
 	 *
-	 * @param fromJID  the JID this message was from
+	 * @param from     the JID this message was from
 	 * @param message  the Message that was received
 	 * @param fromRoom whether or not this message came from a room
-	 * @return optional response string
+	 * @return future optional response string
 	 */
-	private Optional<String> handleMessage(String fromJID, Message message, boolean fromRoom) {
+	CompletableFuture<Optional<String>> handleMessage(
+			Jid from, Message message, boolean fromRoom) {
 
 		// Ignore messages from ourselves (like posting things to a room we are in)
 
-		if (fromRoom && fromJID.endsWith(nickname)) {
-			return Optional.empty();
+		if (fromRoom && nickname.equals(from.getResource())) {
+			return Command.toFuture(Optional.empty());
 		}
 
-		boolean isAdmin = admins.contains(XMPP.getPlainJID(fromJID));
+		if (fromRoom) {
+			roomMessagesReceived.computeIfAbsent(from.asBare(), room -> metrics.counter(
+					"chief_messages_received_total", "Messages received", "type", "room", "room", room.toString()))
+					.increment();
+		} else {
+			chatMessagesReceived.increment();
+		}
+
+		boolean isAdmin = isAdmin(from);
 
 		String body = message.getBody();
 		if (body != null) {
-			Optional<String> response = Optional.empty();
+			CompletableFuture<Optional<String>> response = Command.toFuture(Optional.empty());
 
 			// Room messages require a prefix to be processed.
 			// Check for it, then remove it before passing the message to the command.
 
 			if (fromRoom) {
-				Matcher prefixMatcher = roomPrefixPattern.matcher(body);
-				if (prefixMatcher.find() && prefixMatcher.end() < body.length()) {
-					body = body.substring(prefixMatcher.end());
-				} else {
-					return Optional.empty();
+				body = stripRoomPrefix(body);
+				if (body == null) {
+					return Command.toFuture(Optional.empty());
 				}
 			}
 
-			for (Command command : commands) {
-
-				// Return the result of the first matching command
-
-				Matcher matcher = command.getPattern().matcher(body);
-				if (matcher.matches()) {
-					if (command.isAdminOnly() && !isAdmin) {
-						response = Optional.of("This is an admin only command. Get out.");
-					} else {
-						try {
-							response = command.processAsyncMessage(
-									fromJID, message.getBody(), matcher, fromRoom).get();
-						} catch (ExecutionException | InterruptedException e) {
-							logger.error("Failed to process command: " + body, e);
-							return Optional.empty();
-						}
-					}
-
-					break;
+			// Run the first matching command
+
+			// The registry is held until the command completes, so a plugin reload can't unload it mid-run
+
+			CommandRegistry registry = pluginManager.acquire();
+			CommandRouter.Route route = registry.getRouter().route(body);
+			if (route != null) {
+				commandsMatched.increment();
+
+				Command command = route.getCommand();
+				Matcher matcher = route.getMatcher();
+
+				if (command.isAdminOnly() && !isAdmin) {
+					registry.exit();
+					response = Command.toFuture("This is an admin only command. Get out.");
+				} else {
+					String commandBody = body;
+					LatencyHistogram latency = commandLatency.computeIfAbsent(
+							command.getClass().getName(), key -> metrics.histogram(
+									"chief_command_seconds", "Time from dispatching a command to its response",
+									"command", command.getClass().getSimpleName()));
+					long startNanos = System.nanoTime();
+
+					// Commands are queued fairly per room, or per user in direct chats
+
+					// The registry is exited when the command finishes, not when it times out, so a
+					// reload waits for commands that are still running
+
+					response = dispatcher.dispatch(command, from.asBare().toString(),
+							() -> command.processAsyncMessage(from, message.getBody(), matcher, fromRoom),
+							registry::exit)
+							.whenComplete((result, ex) -> latency.recordSince(startNanos))
+							.exceptionally(ex -> handleCommandFailure(command, commandBody, ex));
 				}
+			} else {
+				registry.exit();
+				commandsUnmatched.increment();
 			}
 
 			// If this a response back to a room, prefix it with the username that sent the command
 
-			if (fromRoom && response.isPresent()) {
+			if (fromRoom) {
 
 				// In MUCs, the resource is the nickname
 
-				String fromNickname = fromJID.split("/")[1];
-				response = Optional.of(
-						"@" + nicknameToMentionName(fromNickname) + " " + response.get());
+				String fromNickname = from.getResource();
+				response = response.thenApply(optionalResponse -> optionalResponse.map(
+						responseString -> "@" + nicknameToMentionName(fromNickname) + " " + responseString));
 
 			}
 
@@ -443,13 +699,82 @@ public class Bot implements ChatManagerListener, MessageListener, ConnectionList
 		// No commands matched, if this is a single user chat then help them out
 
 		if (!fromRoom) {
-			return Optional.of("I didn't understand that. Type `help` for usage information.");
+			return Command.toFuture("I didn't understand that. Type `help` for usage information.");
+		}
+
+		return Command.toFuture(Optional.empty());
+
+	}
+
+	/**
+	 * Check whether a JID is an admin
+	 *
+	 * @param jid the JID, with or without a resource
+	 * @return true if the JID is listed in the admins property
+	 */
+	boolean isAdmin(Jid jid) {
+
+		return admins.contains(jid.asBare());
+
+	}
+
+	/**
+	 * Remove the required prefix from a room message
+	 *
+	 * @param body the message body
+	 * @return the body without the prefix, or null if it doesn't have the prefix
+	 */
+	String stripRoomPrefix(String body) {
+
+		Matcher prefixMatcher = roomPrefixPattern.matcher(body);
+		if (prefixMatcher.find() && prefixMatcher.end() < body.length()) {
+			return body.substring(prefixMatcher.end());
+		}
+
+		return null;
+
+	}
+
+	/**
+	 * Turn a failed command into an optional response
+	 *
+	 * @param command the command that failed
+	 * @param body    the message body the command was run on
+	 * @param ex      the failure
+	 * @return optional response explaining the failure
+	 */
+	private Optional<String> handleCommandFailure(Command command, String body, Throwable ex) {
+
+		Throwable cause = ex instanceof CompletionException && ex.getCause() != null ? ex.getCause() : ex;
+
+		if (cause instanceof RejectedExecutionException) {
+			countCommandFailure(command, "rejected");
+			return Optional.of("I'm too busy right now, try again in a bit.");
+		} else if (cause instanceof TimeoutException) {
+			countCommandFailure(command, "timeout");
+			logger.warn("Command timed out: {}", body);
+			return Optional.of("Sorry, that took too long.");
 		}
 
+		countCommandFailure(command, "error");
+		logger.error("Failed to process command: " + body, cause);
 		return Optional.empty();
 
 	}
 
+	/**
+	 * Count a failed command
+	 *
+	 * @param command the command that failed
+	 * @param reason  rejected, timeout or error
+	 */
+	private void countCommandFailure(Command command, String reason) {
+
+		metrics.counter("chief_command_failures_total", "Commands that were rejected, timed out or failed",
+				"command", command.getClass().getSimpleName(), "reason", reason).increment();
+
+	}
+
 	/**
 	 * Convert a user's JID to a nickname using the roster.
 	 * This does not work for JIDs from MUCs.
@@ -458,15 +783,8 @@ public class Bot implements ChatManagerListener, MessageListener, ConnectionList
 	 * @return the name of the JID in the roster
 	 */
 	private String jidToNickname(String jid) {
-		String withoutResource = XMPP.getPlainJID(jid);
-
-		for (RosterEntry r : connection.getRoster().getEntries()) {
-			if (r.getUser().equals(withoutResource)) {
-				return r.getName();
-			}
-		}
-
-		return jid;
+		String name = rosterIndex.getName(XMPP.getPlainJID(jid));
+		return name == null ? jid : name;
 	}
 
 	/**
@@ -476,12 +794,8 @@ public class Bot implements ChatManagerListener, MessageListener, ConnectionList
 	 * @return the JID of the nickname in the roster, or the nickname if it wasn't found
 	 */
 	private String nicknameToJID(String nickname) {
-		for (RosterEntry r : connection.getRoster().getEntries()) {
-			if (r.getName().equals(nickname))
-				return r.getUser();
-		}
-
-		return nickname;
+		String jid = rosterIndex.getJid(nickname);
+		return jid == null ? nickname : jid;
 	}
 
 	/**
@@ -489,41 +803,70 @@ public class Bot implements ChatManagerListener, MessageListener, ConnectionList
 	 * For now, this just removes all spaces. This works for most HipChat
 	 * names, unlesss the user has a set a custom name. Since Smack can't parse
 	 * out the `mention_name` attribute in the `<item>` tag inside the roster
-	 * <query>, this is good enough.
+	 * <query>, this is good enough. Names in the roster have their mention name precomputed.
 	 *
 	 * @param nickname the nickname to convert
 	 * @return the HipChat mention name
 	 */
-	private String nicknameToMentionName(String nickname) {
+	String nicknameToMentionName(String nickname) {
 
-		return nickname.replaceAll("\\s", "");
+		String mentionName = rosterIndex.getMentionName(nickname);
+		return mentionName == null ? RosterIndex.toMentionName(nickname) : mentionName;
 
 	}
 
 	/**
-	 * Send a message to a chat
+	 * Queue a message to a chat, paced by the outbound scheduler
 	 *
 	 * @param chat    the chat to send the message to
 	 * @param message the message to send
 	 */
 	private void sendMessage(Chat chat, String message) {
+		outboundScheduler.send(
+				XMPP.getPlainJID(chat.getParticipant()), message, text -> deliverMessage(chat, text));
+	}
+
+	/**
+	 * Queue a message to a multi user chat, paced by the outbound scheduler
+	 *
+	 * @param chat    the MultiUserChat to send the message to
+	 * @param from    the user in the room being replied to
+	 * @param message the message to send
+	 */
+	private void sendMessage(MultiUserChat chat, Jid from, String message) {
+		outboundScheduler.send(chat.getRoom(), from.toString(), message, text -> deliverMessage(chat, text));
+	}
+
+	/**
+	 * Write a message to a chat
+	 *
+	 * @param chat    the chat to send the message to
+	 * @param message the message to send
+	 */
+	private void deliverMessage(Chat chat, String message) {
+		long startNanos = System.nanoTime();
 		try {
 			chat.sendMessage(message);
+			sendLatency.recordSince(startNanos);
 		} catch (XMPPException | SmackException.NotConnectedException ex) {
+			sendFailures.increment();
 			logger.error("Error sending message to {}", chat.getParticipant(), ex);
 		}
 	}
 
 	/**
-	 * Send a message to a multi user chat
+	 * Write a message to a multi user chat
 	 *
 	 * @param chat    the MultiUserChat to send the message to
 	 * @param message the message to send
 	 */
-	private void sendMessage(MultiUserChat chat, String message) {
+	private void deliverMessage(MultiUserChat chat, String message) {
+		long startNanos = System.nanoTime();
 		try {
 			chat.sendMessage(message);
+			sendLatency.recordSince(startNanos);
 		} catch (XMPPException | SmackException.NotConnectedException ex) {
+			sendFailures.increment();
 			logger.error("Error sending message to room {}", chat.getNickname(), ex);
 		}
 	}
@@ -550,8 +893,8 @@ public class Bot implements ChatManagerListener, MessageListener, ConnectionList
 		if (message.getBody() != null) {
 			logger.trace("Message from `{}`: {}", chat.getParticipant(), message.getBody());
 
-			Optional<String> response = handleMessage(chat.getParticipant(), message, false);
-			response.ifPresent(responseString -> sendMessage(chat, responseString));
+			handleMessage(Jid.parse(chat.getParticipant()), message, false).thenAccept(
+					response -> response.ifPresent(responseString -> sendMessage(chat, responseString)));
 
 		}
 
@@ -560,21 +903,26 @@ public class Bot implements ChatManagerListener, MessageListener, ConnectionList
 	private void processRoomMessage(MultiUserChat chat, Packet packet) {
 		if (packet instanceof Message) {
 			Message message = (Message) packet;
-			logger.trace("MUC Message `{}`: {}", jidToNickname(message.getFrom()), message.getBody());
+
+			// Only look up the nickname if it will actually be logged
+
+			if (logger.isTraceEnabled()) {
+				logger.trace("MUC Message `{}`: {}", jidToNickname(message.getFrom()), message.getBody());
+			}
 
 			// In rooms, the JID is room@domain/nickname
 			// Messages not send by a user won't have a resource.
 
-			String fromJID = message.getFrom();
-			if (fromJID.contains("/")) {
-				Optional<String> response = handleMessage(fromJID, message, true);
-				response.ifPresent(responseString -> sendMessage(chat, responseString));
+			Jid from = Jid.parse(message.getFrom());
+			if (from.hasResource()) {
+				handleMessage(from, message, true).thenAccept(
+						response -> response.ifPresent(responseString -> sendMessage(chat, from, responseString)));
 			}
 		} else if (packet instanceof Presence) {
 			Presence presence = (Presence) packet;
-			logger.trace("MUC Presence `{}`: {}", chat.getRoom(), presence.getType().toString());
-		} else {
-			logger.trace("MUC Packet:", packet.toXML());
+			logger.trace("MUC Presence `{}`: {}", chat.getRoom(), presence.getType());
+		} else if (logger.isTraceEnabled()) {
+			logger.trace("MUC Packet: {}", packet.toXML());
 		}
 
 	}
@@ -618,6 +966,7 @@ public class Bot implements ChatManagerListener, MessageListener, ConnectionList
 	@Override
 	public void connectionClosedOnError(Exception e) {
 
+		connectionErrors.increment();
 		logger.error("Connection was closed because of an error", e);
 
 	}
@@ -639,8 +988,10 @@ public class Bot implements ChatManagerListener, MessageListener, ConnectionList
 	@Override
 	public void reconnectionSuccessful() {
 
+		reconnects.increment();
 		logger.info("Reconnection successful");
-		rooms.stream().forEach(this::joinRoom);
+		rosterIndex.attach(connection.getRoster());
+		joinRooms(rejoinLatency, rejoinIncomplete);
 
 	}
 
@@ -651,6 +1002,7 @@ public class Bot implements ChatManagerListener, MessageListener, ConnectionList
 	@Override
 	public void reconnectionFailed(Exception e) {
 
+		reconnectFailures.increment();
 		logger.error("Reconnection failure", e);
 
 	}
@@ -8,6 +8,7 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.file.Paths;
 import java.util.Properties;
 
 /**
@@ -17,24 +18,33 @@ import java.util.Properties;
  */
 class Chief {
 
-	private static final Logger logger = LogManager.getLogger(Chief.class);
 	private static final String PROPERTIES_FILENAME = "config/chief.properties";
+	private static final String PRODUCTION_LOGGING_CONFIG = "log4j2-production.xml";
 
 	public static void main(String[] args) {
 
-		logger.info("Chief is starting");
+		// Properties are read before any logger exists, since they choose the logging configuration
 
 		Properties properties = new Properties();
-		try {
-			InputStream in = new FileInputStream(new File(PROPERTIES_FILENAME));
+		IOException propertiesError = null;
+		try (InputStream in = new FileInputStream(new File(PROPERTIES_FILENAME))) {
 			properties.load(in);
 		} catch (IOException e) {
-			logger.error("Error reading " + PROPERTIES_FILENAME, e);
+			propertiesError = e;
+		}
+
+		configureLogging(properties.getProperty("logging", "development"));
+
+		Logger logger = LogManager.getLogger(Chief.class);
+		logger.info("Chief is starting");
+
+		if (propertiesError != null) {
+			logger.error("Error reading " + PROPERTIES_FILENAME, propertiesError);
 			System.exit(1);
 		}
 
 		try {
-			Bot bot = new Bot(properties);
+			Bot bot = new Bot(properties, Paths.get(PROPERTIES_FILENAME));
 			bot.start();
 			bot.waitForExit();
 		} catch (ConfigurationException e) {
@@ -43,8 +53,34 @@ class Chief {
 		}
 
 		logger.info("Chief exiting");
+		LogManager.shutdown();
 		System.exit(0);
 
 	}
 
+	/**
+	 * Choose the Log4j2 configuration. Must be called before the first logger is created.
+	 *
+	 * @param logging development for the bundled log4j2.xml, production for asynchronous
+	 *                garbage-free logging, or the path of a Log4j2 configuration file
+	 */
+	private static void configureLogging(String logging) {
+
+		if ("development".equals(logging)) {
+			return;
+		}
+
+		if ("production".equals(logging)) {
+			System.setProperty("log4j.configurationFile", PRODUCTION_LOGGING_CONFIG);
+		} else {
+			System.setProperty("log4j.configurationFile", logging);
+		}
+
+		// Make every logger asynchronous, backed by the LMAX disruptor
+
+		System.setProperty("Log4jContextSelector",
+				"org.apache.logging.log4j.core.async.AsyncLoggerContextSelector");
+
+	}
+
 }
@@ -8,6 +8,7 @@ package ca.caseybanner.chief;
 
 import ca.caseybanner.chief.commands.ConfigurationException;
 
+import java.time.Duration;
 import java.util.Optional;
 import java.util.concurrent.CompletableFuture;
 import java.util.regex.Matcher;
@@ -18,7 +19,31 @@ import java.util.regex.Pattern;
  */
 public abstract class Command {
 
+	/**
+	 * How expensive a command is to run, which decides the dispatch lane it runs in
+	 */
+	public enum CostClass {
+
+		/**
+		 * Admin commands, run in their own lane so they stay responsive under load
+		 */
+		ADMIN,
+
+		/**
+		 * Cheap commands answered from memory, like help
+		 */
+		LOCAL,
+
+		/**
+		 * Commands that call external services and may be slow
+		 */
+		EXTERNAL
+
+	}
+
 	private final Bot bot;
+	private volatile long timeout;
+	private volatile CostClass costClass;
 
 	/**
 	 * Constructor
@@ -56,14 +81,14 @@ public abstract class Command {
 	 * Possibly async processing.  If the optional is present it should contain the text result to be
 	 * sent as a message representing the result of the command.
 	 *
-	 * @param from
+	 * @param from     the parsed JID the message was from
 	 * @param message
 	 * @param matcher
 	 * @param fromRoom
 	 * @return
 	 */
 	public abstract CompletableFuture<Optional<String>> processAsyncMessage(
-			String from, String message, Matcher matcher, boolean fromRoom);
+			Jid from, String message, Matcher matcher, boolean fromRoom);
 
 	/**
 	 * Called when all configuration properties have been set.
@@ -74,6 +99,76 @@ public abstract class Command {
 
 	}
 
+	/**
+	 * Called after changed configuration properties have been applied to a running command,
+	 * without reloading it. Settings only read in configurationComplete should be applied here.
+	 */
+	public void configurationChanged() {
+
+	}
+
+	/**
+	 * Called in the background once the command has been loaded and configured.
+	 * Slow initialization, like building API clients or prefetching data, can be done here
+	 * instead of in the constructor or on the first message.
+	 */
+	public void warmUp() {
+
+	}
+
+	/**
+	 * Called when the command is unloaded, either because the bot is exiting or because
+	 * its plugins were reloaded. Stop any threads the command started.
+	 */
+	public void shutdown() {
+
+	}
+
+	/**
+	 * Setter for timeout
+	 *
+	 * @param timeout maximum time the command may take before the bot gives up on it
+	 */
+	public void setTimeout(Duration timeout) {
+		if (timeout.isNegative()) {
+			throw new IllegalArgumentException("Must not be negative");
+		}
+		this.timeout = timeout.toMillis();
+	}
+
+	/**
+	 * Getter for timeout
+	 *
+	 * @return maximum time in milliseconds this command may take, 0 to use the bot's default
+	 */
+	public long getTimeout() {
+		return timeout;
+	}
+
+	/**
+	 * Setter for costClass, overrides the command's own cost class
+	 *
+	 * @param costClass the dispatch lane to run this command in
+	 */
+	public void setCostClass(CostClass costClass) {
+		this.costClass = costClass;
+	}
+
+	/**
+	 * Getter for costClass.
+	 * <p/>
+	 * Unless configured otherwise, admin only commands are ADMIN and everything else is EXTERNAL.
+	 * Commands that never leave the process should override this to return LOCAL.
+	 *
+	 * @return the dispatch lane to run this command in
+	 */
+	public CostClass getCostClass() {
+		if (costClass != null) {
+			return costClass;
+		}
+		return isAdminOnly() ? CostClass.ADMIN : CostClass.EXTERNAL;
+	}
+
 	/**
 	 * Returns true if this is an admin only command.
 	 * <p/>
@@ -0,0 +1,409 @@
+package ca.caseybanner.chief;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.ArrayDeque;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * Runs commands off the XMPP listener thread.
+ * <p/>
+ * Each Command.CostClass has its own lane with its own worker threads and bounded queue, so
+ * admin and cheap local commands never wait behind commands calling slow external APIs.
+ * Within a lane, commands are queued per room (or per user for direct chats) and the workers
+ * take from each room in turn, so one noisy room can't starve the others.
+ * <p/>
+ * Results are delivered through the returned CompletableFuture. When a lane's queue is full
+ * the configured OverflowPolicy decides whether the new command is rejected or the oldest
+ * command of the room with the most queued commands is dropped.
+ */
+public class CommandDispatcher {
+
+	private static final Logger logger = LogManager.getLogger(CommandDispatcher.class);
+
+	/**
+	 * What to do when a command arrives and the queue is full
+	 */
+	public enum OverflowPolicy {
+
+		/**
+		 * Reject the incoming command, its future completes with a RejectedExecutionException
+		 */
+		REJECT,
+
+		/**
+		 * Drop the oldest queued command of the busiest room to make room, its future completes
+		 * with a RejectedExecutionException
+		 */
+		DROP_OLDEST
+
+	}
+
+	private final EnumMap<Command.CostClass, Lane> lanes;
+	private final ScheduledExecutorService timeoutScheduler;
+	private final long defaultTimeoutMillis;
+
+	/**
+	 * Constructor
+	 *
+	 * @param threads              number of worker threads for each cost class
+	 * @param queueSize            maximum number of commands waiting in each lane, at least 1
+	 * @param policy               what to do when a lane's queue is full
+	 * @param defaultTimeoutMillis timeout for commands that don't specify one, 0 for none
+	 */
+	public CommandDispatcher(
+			Map<Command.CostClass, Integer> threads, int queueSize, OverflowPolicy policy, long defaultTimeoutMillis) {
+
+		// Dropping the oldest command needs one waiting to drop
+
+		if (queueSize < 1) {
+			throw new IllegalArgumentException("Must allow at least 1 waiting command");
+		}
+
+		this.defaultTimeoutMillis = defaultTimeoutMillis;
+
+		lanes = new EnumMap<>(Command.CostClass.class);
+		for (Command.CostClass costClass : Command.CostClass.values()) {
+			lanes.put(costClass, new Lane(
+					costClass, Math.max(1, threads.getOrDefault(costClass, 1)), queueSize, policy));
+		}
+
+		timeoutScheduler = Executors.newSingleThreadScheduledExecutor(
+				daemonThreadFactory("chief-dispatch-timeout-"));
+
+	}
+
+	/**
+	 * Queue a command for execution in its cost class's lane.
+	 * <p/>
+	 * The returned future completes with the command's result, or exceptionally with a
+	 * TimeoutException if the command took too long, or a RejectedExecutionException
+	 * if it could not be queued.
+	 * <p/>
+	 * A timed out command keeps running, so finished is only called once the command itself
+	 * has completed, or once it is known it will never run.
+	 *
+	 * @param command  the command being run, used for its cost class and timeout
+	 * @param source   the room or user the command came from, for fair queueing
+	 * @param task     starts the command and returns its result future
+	 * @param finished called once when the command is no longer running
+	 * @return future result of the command
+	 */
+	public CompletableFuture<Optional<String>> dispatch(
+			Command command, String source, Supplier<CompletableFuture<Optional<String>>> task, Runnable finished) {
+
+		DispatchTask dispatchTask = new DispatchTask(command, source, task, finished);
+		lanes.get(command.getCostClass()).offer(dispatchTask);
+		return dispatchTask.result;
+
+	}
+
+	/**
+	 * Getter for the number of commands waiting for a worker in every lane
+	 *
+	 * @return queue depth
+	 */
+	public int getQueueDepth() {
+		return lanes.values().stream().mapToInt(Lane::size).sum();
+	}
+
+	/**
+	 * Getter for the number of commands waiting for a worker in one lane
+	 *
+	 * @param costClass the lane
+	 * @return queue depth
+	 */
+	public int getQueueDepth(Command.CostClass costClass) {
+		return lanes.get(costClass).size();
+	}
+
+	/**
+	 * Stop accepting commands and release the worker threads.
+	 * Commands already queued are still run.
+	 */
+	public void shutdown() {
+		lanes.values().forEach(Lane::shutdown);
+		timeoutScheduler.shutdown();
+	}
+
+	/**
+	 * Complete a task that will never run
+	 *
+	 * @param task the task that was rejected or dropped
+	 */
+	private static void reject(DispatchTask task) {
+		task.result.completeExceptionally(new RejectedExecutionException("Dispatch queue full"));
+		task.finish();
+	}
+
+	/**
+	 * Create a thread factory producing named daemon threads
+	 *
+	 * @param prefix prefix for the thread names
+	 * @return thread factory
+	 */
+	static ThreadFactory daemonThreadFactory(String prefix) {
+		AtomicInteger count = new AtomicInteger();
+		return runnable -> {
+			Thread thread = new Thread(runnable, prefix + count.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		};
+	}
+
+	/**
+	 * The queue and workers for one cost class.
+	 * <p/>
+	 * Commands are kept in a queue per source, and sources with queued commands take turns
+	 * in a round robin.
+	 */
+	private static class Lane {
+
+		private final Command.CostClass costClass;
+		private final int capacity;
+		private final OverflowPolicy policy;
+		private final Map<String, ArrayDeque<DispatchTask>> queues;
+		private final ArrayDeque<String> turns;
+		private int size;
+		private boolean shutdown;
+
+		Lane(Command.CostClass costClass, int threads, int capacity, OverflowPolicy policy) {
+
+			this.costClass = costClass;
+			this.capacity = capacity;
+			this.policy = policy;
+			this.queues = new HashMap<>();
+			this.turns = new ArrayDeque<>();
+
+			ThreadFactory threadFactory = daemonThreadFactory(
+					"chief-dispatch-" + costClass.name().toLowerCase() + "-");
+			for (int i = 0; i < threads; i++) {
+				threadFactory.newThread(this::work).start();
+			}
+
+		}
+
+		/**
+		 * Queue a task, applying the overflow policy if the lane is full
+		 *
+		 * @param task the task to queue
+		 */
+		void offer(DispatchTask task) {
+
+			DispatchTask dropped = null;
+
+			synchronized (this) {
+				if (shutdown) {
+					dropped = task;
+				} else if (size >= capacity) {
+					if (policy == OverflowPolicy.DROP_OLDEST) {
+						dropped = pollBusiest();
+						logger.warn("Dispatch queue for {} commands full, dropping oldest command from the busiest source",
+								costClass);
+					} else {
+						logger.warn("Dispatch queue for {} commands full, rejecting command", costClass);
+						dropped = task;
+					}
+				}
+
+				if (dropped != task) {
+					ArrayDeque<DispatchTask> queue = queues.get(task.source);
+					if (queue == null) {
+						queue = new ArrayDeque<>();
+						queues.put(task.source, queue);
+						turns.add(task.source);
+					}
+
+					queue.add(task);
+					size++;
+					notify();
+				}
+			}
+
+			if (dropped != null) {
+				reject(dropped);
+			}
+
+		}
+
+		synchronized int size() {
+			return size;
+		}
+
+		synchronized void shutdown() {
+			shutdown = true;
+			notifyAll();
+		}
+
+		/**
+		 * Run tasks until the lane is shut down and empty
+		 */
+		private void work() {
+
+			DispatchTask task;
+			while ((task = take()) != null) {
+				try {
+					task.run();
+				} catch (RuntimeException e) {
+					logger.error("Error dispatching command", e);
+					task.result.completeExceptionally(e);
+					task.finish();
+				}
+			}
+
+		}
+
+		/**
+		 * Wait for the next task, taking from each source in turn
+		 *
+		 * @return the next task, or null once the lane is shut down and empty
+		 */
+		private synchronized DispatchTask take() {
+
+			while (size == 0) {
+				if (shutdown) {
+					return null;
+				}
+
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					return null;
+				}
+			}
+
+			String source = turns.poll();
+			ArrayDeque<DispatchTask> queue = queues.get(source);
+			DispatchTask task = queue.poll();
+			if (queue.isEmpty()) {
+				queues.remove(source);
+			} else {
+				turns.add(source);
+			}
+
+			size--;
+			return task;
+
+		}
+
+		/**
+		 * Remove the oldest task of the source with the most queued tasks, caller must hold the lock
+		 *
+		 * @return the removed task
+		 */
+		private DispatchTask pollBusiest() {
+
+			String busiest = null;
+			int most = 0;
+			for (Map.Entry<String, ArrayDeque<DispatchTask>> entry : queues.entrySet()) {
+				if (entry.getValue().size() > most) {
+					busiest = entry.getKey();
+					most = entry.getValue().size();
+				}
+			}
+
+			ArrayDeque<DispatchTask> queue = queues.get(busiest);
+			DispatchTask task = queue.poll();
+			if (queue.isEmpty()) {
+				queues.remove(busiest);
+				turns.remove(busiest);
+			}
+
+			size--;
+			return task;
+
+		}
+
+	}
+
+	/**
+	 * A queued command along with the future its result is delivered through
+	 */
+	private class DispatchTask implements Runnable {
+
+		private final Command command;
+		private final String source;
+		private final Supplier<CompletableFuture<Optional<String>>> task;
+		private final CompletableFuture<Optional<String>> result;
+		private final Runnable finished;
+		private final AtomicBoolean done;
+
+		DispatchTask(Command command, String source, Supplier<CompletableFuture<Optional<String>>> task,
+				Runnable finished) {
+			this.command = command;
+			this.source = source;
+			this.task = task;
+			this.result = new CompletableFuture<>();
+			this.finished = finished;
+			this.done = new AtomicBoolean();
+		}
+
+		@Override
+		public void run() {
+
+			long timeoutMillis = command.getTimeout() > 0 ? command.getTimeout() : defaultTimeoutMillis;
+			if (timeoutMillis > 0) {
+				try {
+					ScheduledFuture<?> timeout = timeoutScheduler.schedule(
+							() -> result.completeExceptionally(new TimeoutException(
+									command.getClass().getSimpleName() + " timed out after " +
+											timeoutMillis + "ms")),
+							timeoutMillis, TimeUnit.MILLISECONDS);
+					result.whenComplete((value, ex) -> timeout.cancel(false));
+				} catch (RejectedExecutionException e) {
+
+					// Shutting down, commands still queued run without a timeout
+
+					logger.debug("Running {} without a timeout during shutdown", command.getClass().getSimpleName());
+				}
+			}
+
+			// The timeout only completes the result, finished waits for the command itself
+
+			try {
+				task.get().whenComplete((value, ex) -> {
+					if (ex != null) {
+						result.completeExceptionally(ex);
+					} else {
+						result.complete(value);
+					}
+					finish();
+				});
+			} catch (RuntimeException e) {
+				result.completeExceptionally(e);
+				finish();
+			}
+
+		}
+
+		/**
+		 * Call finished, only the first call has any effect
+		 */
+		void finish() {
+			if (done.compareAndSet(false, true)) {
+				try {
+					finished.run();
+				} catch (RuntimeException e) {
+					logger.error("Error finishing dispatched command", e);
+				}
+			}
+		}
+
+	}
+
+}
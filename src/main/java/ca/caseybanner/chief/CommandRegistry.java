@@ -0,0 +1,137 @@
+package ca.caseybanner.chief;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An immutable set of loaded commands, the router over them and the class loaders they came from.
+ * <p/>
+ * The PluginManager swaps in a new registry when plugins or configuration change. Message handling
+ * enters the registry before running one of its commands and exits when the command completes, so
+ * a replaced registry can wait for its in-flight commands before it shuts them down and closes its
+ * class loaders.
+ */
+public final class CommandRegistry {
+
+	private static final Logger logger = LogManager.getLogger(CommandRegistry.class);
+
+	private final long version;
+	private final List<Command> commands;
+	private final CommandRouter router;
+	private final List<URLClassLoader> classLoaders;
+	private final AtomicInteger inFlight;
+	private volatile boolean retired;
+
+	/**
+	 * Constructor
+	 *
+	 * @param version      increases every time the registry is replaced
+	 * @param commands     the commands, in priority order
+	 * @param classLoaders plugin class loaders to close once the registry is retired
+	 */
+	CommandRegistry(long version, List<Command> commands, List<URLClassLoader> classLoaders) {
+		this.version = version;
+		this.commands = Collections.unmodifiableList(new ArrayList<>(commands));
+		this.router = new CommandRouter(this.commands);
+		this.classLoaders = classLoaders;
+		this.inFlight = new AtomicInteger();
+	}
+
+	/**
+	 * Getter for the version
+	 *
+	 * @return registry version, higher is newer
+	 */
+	public long getVersion() {
+		return version;
+	}
+
+	/**
+	 * Getter for the commands
+	 *
+	 * @return unmodifiable list of commands in priority order
+	 */
+	public List<Command> getCommands() {
+		return commands;
+	}
+
+	/**
+	 * Getter for the router
+	 *
+	 * @return router over this registry's commands
+	 */
+	public CommandRouter getRouter() {
+		return router;
+	}
+
+	/**
+	 * Getter for the number of commands currently running from this registry
+	 *
+	 * @return in-flight command count
+	 */
+	public int getInFlight() {
+		return inFlight.get();
+	}
+
+	/**
+	 * Mark a command from this registry as running
+	 *
+	 * @return false if the registry has been retired, the caller should use the current one instead
+	 */
+	boolean enter() {
+
+		inFlight.incrementAndGet();
+		if (retired) {
+			exit();
+			return false;
+		}
+
+		return true;
+
+	}
+
+	/**
+	 * Mark a command from this registry as finished
+	 */
+	void exit() {
+		inFlight.decrementAndGet();
+	}
+
+	/**
+	 * Stop handing out this registry. Once retired, getInFlight only goes down.
+	 */
+	void retire() {
+		retired = true;
+	}
+
+	/**
+	 * Shut down every command and close the class loaders, once nothing is running
+	 */
+	void close() {
+
+		for (Command command : commands) {
+			try {
+				command.shutdown();
+			} catch (RuntimeException e) {
+				logger.error("Error shutting down {}", command.getClass().getName(), e);
+			}
+		}
+
+		for (URLClassLoader classLoader : classLoaders) {
+			try {
+				classLoader.close();
+			} catch (IOException e) {
+				logger.warn("Error closing plugin class loader", e);
+			}
+		}
+
+	}
+
+}
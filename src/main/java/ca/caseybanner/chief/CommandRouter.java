@@ -0,0 +1,211 @@
+package ca.caseybanner.chief;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Routes a message to the first command whose pattern matches it.
+ * <p/>
+ * Commands are indexed in a trie by the literal text their pattern must start with, so only
+ * commands whose literal prefix is a prefix of the message have their full pattern run.
+ * Patterns without a usable literal prefix are always checked. Commands are tried in the
+ * order they were registered.
+ */
+public class CommandRouter {
+
+	/**
+	 * A matched command along with the matcher that matched it
+	 */
+	public static class Route {
+
+		private final Command command;
+		private final Matcher matcher;
+
+		Route(Command command, Matcher matcher) {
+			this.command = command;
+			this.matcher = matcher;
+		}
+
+		public Command getCommand() {
+			return command;
+		}
+
+		public Matcher getMatcher() {
+			return matcher;
+		}
+
+	}
+
+	/**
+	 * A registered command and its position in the registration order
+	 */
+	private static class Entry {
+
+		private final int index;
+		private final Command command;
+		private final Pattern pattern;
+
+		Entry(int index, Command command) {
+			this.index = index;
+			this.command = command;
+			this.pattern = command.getPattern();
+		}
+
+	}
+
+	private static class Node {
+
+		private final Map<Character, Node> children = new HashMap<>();
+		private final List<Entry> entries = new ArrayList<>();
+
+	}
+
+	private final Node root;
+
+	/**
+	 * Constructor
+	 *
+	 * @param commands the commands to route to, in priority order
+	 */
+	public CommandRouter(List<Command> commands) {
+
+		root = new Node();
+
+		for (int i = 0; i < commands.size(); i++) {
+			Entry entry = new Entry(i, commands.get(i));
+			String prefix = literalPrefix(entry.pattern);
+
+			Node node = root;
+			for (int c = 0; c < prefix.length(); c++) {
+				node = node.children.computeIfAbsent(prefix.charAt(c), key -> new Node());
+			}
+			node.entries.add(entry);
+		}
+
+	}
+
+	/**
+	 * Find the first command that matches the message
+	 *
+	 * @param body the message body, with any room prefix removed
+	 * @return the matching route, or null if no command matched
+	 */
+	public Route route(String body) {
+
+		// Walk the trie collecting every command whose literal prefix starts the body.
+		// Entries on each node are already in registration order.
+
+		List<Entry> candidates = root.entries;
+		boolean merged = false;
+
+		Node node = root;
+		for (int i = 0; i < body.length(); i++) {
+			node = node.children.get(body.charAt(i));
+			if (node == null) {
+				break;
+			}
+
+			if (!node.entries.isEmpty()) {
+				if (candidates.isEmpty()) {
+					candidates = node.entries;
+				} else {
+					if (!merged) {
+						candidates = new ArrayList<>(candidates);
+						merged = true;
+					}
+					candidates.addAll(node.entries);
+				}
+			}
+		}
+
+		if (merged) {
+			candidates.sort((a, b) -> Integer.compare(a.index, b.index));
+		}
+
+		for (Entry entry : candidates) {
+			Matcher matcher = entry.pattern.matcher(body);
+			if (matcher.matches()) {
+				return new Route(entry.command, matcher);
+			}
+		}
+
+		return null;
+
+	}
+
+	/**
+	 * Extract the literal text any match of the pattern must start with.
+	 * <p/>
+	 * This is deliberately conservative, an empty string is returned whenever the
+	 * pattern can't be proven to start with a literal.
+	 *
+	 * @param pattern the pattern to examine
+	 * @return literal prefix, possibly empty
+	 */
+	public static String literalPrefix(Pattern pattern) {
+
+		if ((pattern.flags() & (Pattern.CASE_INSENSITIVE | Pattern.LITERAL | Pattern.COMMENTS)) != 0) {
+			return "";
+		}
+
+		String regex = pattern.pattern();
+		if (hasTopLevelAlternation(regex)) {
+			return "";
+		}
+
+		int start = regex.startsWith("^") ? 1 : 0;
+		int end = start;
+		while (end < regex.length() && Character.isLetterOrDigit(regex.charAt(end))) {
+			end++;
+		}
+
+		// A quantifier applies to the last literal character, so it isn't required
+
+		if (end < regex.length() && end > start && "?*{".indexOf(regex.charAt(end)) >= 0) {
+			end--;
+		}
+
+		return regex.substring(start, end);
+
+	}
+
+	/**
+	 * Check whether a regex has a | outside of any group or character class
+	 *
+	 * @param regex the regex source
+	 * @return true if the regex is an alternation at the top level
+	 */
+	private static boolean hasTopLevelAlternation(String regex) {
+
+		int depth = 0;
+		boolean inClass = false;
+
+		for (int i = 0; i < regex.length(); i++) {
+			char c = regex.charAt(i);
+
+			if (c == '\\') {
+				i++;
+			} else if (inClass) {
+				if (c == ']') {
+					inClass = false;
+				}
+			} else if (c == '[') {
+				inClass = true;
+			} else if (c == '(') {
+				depth++;
+			} else if (c == ')') {
+				depth--;
+			} else if (c == '|' && depth == 0) {
+				return true;
+			}
+		}
+
+		return false;
+
+	}
+
+}
@@ -0,0 +1,392 @@
+package ca.caseybanner.chief;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.time.Duration;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Properties;
+import java.util.function.Function;
+
+/**
+ * Applies configuration properties to commands through their setters.
+ * <p/>
+ * A property named {@code <class name>.<name>} is passed to the command's {@code set<Name>}
+ * method. Properties are indexed by class name once when the binder is created, and each
+ * class's setters are found once and cached as MethodHandles, so binding a command only
+ * touches its own properties.
+ * <p/>
+ * Setters may take a String, int, long, double, boolean, enum, Duration or List&lt;String&gt;.
+ * Numbers accept size suffixes (8k, 8MB, 1g, all powers of 1024), durations accept
+ * 500ms, 30s, 5m, 1h, 1d, ISO-8601 (PT30S) or a bare number of milliseconds, and lists are
+ * comma separated. A setter can reject a value by throwing IllegalArgumentException.
+ */
+class ConfigurationBinder {
+
+	private static final Logger logger = LogManager.getLogger(ConfigurationBinder.class);
+
+	/**
+	 * Setters of each class, found the first time the class is bound
+	 */
+	private static final ClassValue<Map<String, Setter>> SETTERS = new ClassValue<Map<String, Setter>>() {
+		@Override
+		protected Map<String, Setter> computeValue(Class<?> type) {
+			return findSetters(type);
+		}
+	};
+
+	private final Properties properties;
+	private final Map<String, Map<String, String>> propertiesByClass;
+
+	/**
+	 * Constructor
+	 *
+	 * @param properties configuration properties
+	 */
+	ConfigurationBinder(Properties properties) {
+
+		this.properties = properties;
+		propertiesByClass = new HashMap<>();
+		for (String propertyName : properties.stringPropertyNames()) {
+			int dot = propertyName.lastIndexOf('.');
+			if (dot > 0 && dot < propertyName.length() - 1) {
+				propertiesByClass
+						.computeIfAbsent(propertyName.substring(0, dot), key -> new HashMap<>())
+						.put(propertyName.substring(dot + 1), properties.getProperty(propertyName));
+			}
+		}
+
+	}
+
+	/**
+	 * Getter for the properties this binder was created with
+	 *
+	 * @return configuration properties
+	 */
+	Properties getProperties() {
+		return properties;
+	}
+
+	/**
+	 * Apply every property for a command
+	 *
+	 * @param command the command to configure
+	 * @return true if every property was applied
+	 */
+	boolean bind(Object command) {
+		return bind(command, getProperties(command.getClass()), Collections.emptyMap());
+	}
+
+	/**
+	 * Apply only the properties for a command that differ from an earlier configuration
+	 *
+	 * @param command  the command to reconfigure
+	 * @param previous the binder the command was configured with before
+	 * @return true if every changed property was applied
+	 */
+	boolean rebind(Object command, ConfigurationBinder previous) {
+
+		Map<String, String> current = getProperties(command.getClass());
+		Map<String, String> old = previous.getProperties(command.getClass());
+
+		old.keySet().stream().filter(name -> !current.containsKey(name)).forEach(name -> logger.warn(
+				"{}.{} was removed, keeping its current value until the command is reloaded",
+				command.getClass().getTypeName(), name));
+
+		return bind(command, current, old);
+
+	}
+
+	/**
+	 * Check whether the properties for a class differ from an earlier configuration
+	 *
+	 * @param type     a command class
+	 * @param previous an earlier binder
+	 * @return true if any property for the class was added, changed or removed
+	 */
+	boolean hasChanges(Class<?> type, ConfigurationBinder previous) {
+		return !getProperties(type).equals(previous.getProperties(type));
+	}
+
+	private Map<String, String> getProperties(Class<?> type) {
+		Map<String, String> properties = propertiesByClass.get(type.getTypeName());
+		return properties == null ? Collections.emptyMap() : properties;
+	}
+
+	/**
+	 * Apply properties whose values differ from the old ones
+	 */
+	private static boolean bind(Object command, Map<String, String> properties, Map<String, String> old) {
+
+		Map<String, Setter> setters = SETTERS.get(command.getClass());
+		boolean success = true;
+
+		for (Map.Entry<String, String> property : properties.entrySet()) {
+			String name = property.getKey();
+			String value = property.getValue();
+			if (Objects.equals(value, old.get(name))) {
+				continue;
+			}
+
+			Setter setter = setters.get(name);
+			if (setter == null) {
+				logger.error(
+						"Could not find configuration setter {} on {}",
+						setterName(name),
+						command.getClass().getTypeName());
+				success = false;
+				continue;
+			}
+
+			try {
+				setter.set(command, value);
+			} catch (IllegalArgumentException e) {
+				logger.error("Invalid value \"{}\" for {}.{}: {}",
+						value, command.getClass().getTypeName(), name, e.getMessage());
+				success = false;
+			} catch (Throwable e) {
+				logger.error(
+						"Error calling configuration setter {} on {}",
+						setterName(name),
+						command.getClass().getTypeName(),
+						e);
+				success = false;
+			}
+		}
+
+		return success;
+
+	}
+
+	/**
+	 * Find every single argument setter of a supported type
+	 *
+	 * @param type the class to search
+	 * @return setters keyed by property name
+	 */
+	private static Map<String, Setter> findSetters(Class<?> type) {
+
+		Map<String, Setter> setters = new HashMap<>();
+		MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+
+		for (Method method : type.getMethods()) {
+			String methodName = method.getName();
+			if (!methodName.startsWith("set") || methodName.length() <= 3 || method.getParameterCount() != 1) {
+				continue;
+			}
+
+			Function<String, Object> converter = converterFor(method.getGenericParameterTypes()[0]);
+			if (converter == null) {
+				continue;
+			}
+
+			// A typed setter wins over a String overload of the same name
+
+			String name = Character.toLowerCase(methodName.charAt(3)) + methodName.substring(4);
+			Setter existing = setters.get(name);
+			if (existing != null && existing.parameterType != String.class) {
+				continue;
+			}
+
+			MethodHandle handle;
+			try {
+				handle = lookup.unreflect(method);
+			} catch (IllegalAccessException e) {
+
+				// Public methods declared on a non-public superclass need to be made accessible
+
+				try {
+					method.setAccessible(true);
+					handle = MethodHandles.lookup().unreflect(method);
+				} catch (IllegalAccessException | RuntimeException inaccessible) {
+					logger.warn("Cannot access configuration setter {} on {}", methodName, type.getTypeName());
+					continue;
+				}
+			}
+
+			handle = handle.asType(MethodType.methodType(void.class, Object.class, Object.class));
+			setters.put(name, new Setter(handle, converter, method.getParameterTypes()[0]));
+		}
+
+		return setters;
+
+	}
+
+	/**
+	 * Pick the conversion from a property string to a setter's parameter type
+	 *
+	 * @param type the parameter type
+	 * @return the converter, or null if the type isn't supported
+	 */
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	private static Function<String, Object> converterFor(Type type) {
+
+		if (type == String.class) {
+			return value -> value;
+		} else if (type == int.class || type == Integer.class) {
+			return ConfigurationBinder::parseInt;
+		} else if (type == long.class || type == Long.class) {
+			return ConfigurationBinder::parseLong;
+		} else if (type == double.class || type == Double.class) {
+			return value -> Double.parseDouble(value.trim());
+		} else if (type == boolean.class || type == Boolean.class) {
+			return ConfigurationBinder::parseBoolean;
+		} else if (type == Duration.class) {
+			return ConfigurationBinder::parseDuration;
+		} else if (type instanceof Class && ((Class<?>) type).isEnum()) {
+			Class<? extends Enum> enumType = (Class<? extends Enum>) type;
+			return value -> Enum.valueOf(enumType, value.trim().toUpperCase(Locale.ROOT));
+		} else if (type instanceof ParameterizedType &&
+				((ParameterizedType) type).getRawType() == List.class &&
+				((ParameterizedType) type).getActualTypeArguments()[0] == String.class) {
+			return ConfigurationBinder::parseList;
+		}
+
+		return null;
+
+	}
+
+	private static int parseInt(String value) {
+
+		long number = parseLong(value);
+		if (number > Integer.MAX_VALUE || number < Integer.MIN_VALUE) {
+			throw new IllegalArgumentException("Number is too large");
+		}
+
+		return (int) number;
+
+	}
+
+	/**
+	 * Parse a whole number, optionally with a binary size suffix
+	 *
+	 * @param value like 1000, 64k, 8MB or 1g
+	 * @return the number
+	 */
+	static long parseLong(String value) {
+
+		String trimmed = value.trim().toLowerCase(Locale.ROOT);
+		if (trimmed.endsWith("b") && trimmed.length() > 1 && !Character.isDigit(trimmed.charAt(trimmed.length() - 2))) {
+			trimmed = trimmed.substring(0, trimmed.length() - 1);
+		}
+
+		int shift = 0;
+		if (trimmed.endsWith("k")) {
+			shift = 10;
+		} else if (trimmed.endsWith("m")) {
+			shift = 20;
+		} else if (trimmed.endsWith("g")) {
+			shift = 30;
+		}
+
+		if (shift == 0) {
+			return Long.parseLong(trimmed);
+		}
+
+		long number = Long.parseLong(trimmed.substring(0, trimmed.length() - 1).trim());
+		if (number > (Long.MAX_VALUE >> shift) || number < (Long.MIN_VALUE >> shift)) {
+			throw new IllegalArgumentException("Size is too large");
+		}
+
+		return number << shift;
+
+	}
+
+	/**
+	 * Parse a duration
+	 *
+	 * @param value like 500ms, 30s, 5m, 1h, 1d, PT30S or a number of milliseconds
+	 * @return the duration
+	 */
+	static Duration parseDuration(String value) {
+
+		String trimmed = value.trim().toLowerCase(Locale.ROOT);
+
+		try {
+			if (trimmed.startsWith("p")) {
+				return Duration.parse(trimmed.toUpperCase(Locale.ROOT));
+			} else if (trimmed.endsWith("ms")) {
+				return Duration.ofMillis(Long.parseLong(trimmed.substring(0, trimmed.length() - 2).trim()));
+			} else if (trimmed.endsWith("s")) {
+				return Duration.ofSeconds(Long.parseLong(trimmed.substring(0, trimmed.length() - 1).trim()));
+			} else if (trimmed.endsWith("m")) {
+				return Duration.ofMinutes(Long.parseLong(trimmed.substring(0, trimmed.length() - 1).trim()));
+			} else if (trimmed.endsWith("h")) {
+				return Duration.ofHours(Long.parseLong(trimmed.substring(0, trimmed.length() - 1).trim()));
+			} else if (trimmed.endsWith("d")) {
+				return Duration.ofDays(Long.parseLong(trimmed.substring(0, trimmed.length() - 1).trim()));
+			}
+
+			return Duration.ofMillis(Long.parseLong(trimmed));
+		} catch (DateTimeParseException e) {
+			throw new IllegalArgumentException("Not a duration", e);
+		}
+
+	}
+
+	private static boolean parseBoolean(String value) {
+
+		String trimmed = value.trim();
+		if ("true".equalsIgnoreCase(trimmed)) {
+			return true;
+		} else if ("false".equalsIgnoreCase(trimmed)) {
+			return false;
+		}
+
+		throw new IllegalArgumentException("Expected true or false");
+
+	}
+
+	private static List<String> parseList(String value) {
+
+		List<String> list = new ArrayList<>();
+		for (String item : value.split(",")) {
+			String trimmed = item.trim();
+			if (!trimmed.isEmpty()) {
+				list.add(trimmed);
+			}
+		}
+
+		return Collections.unmodifiableList(list);
+
+	}
+
+	private static String setterName(String name) {
+		return "set" + Character.toUpperCase(name.charAt(0)) + name.substring(1);
+	}
+
+	/**
+	 * A setter and the conversion for its argument
+	 */
+	private static class Setter {
+
+		private final MethodHandle handle;
+		private final Function<String, Object> converter;
+		private final Class<?> parameterType;
+
+		Setter(MethodHandle handle, Function<String, Object> converter, Class<?> parameterType) {
+			this.handle = handle;
+			this.converter = converter;
+			this.parameterType = parameterType;
+		}
+
+		void set(Object target, String value) throws Throwable {
+			handle.invokeExact(target, converter.apply(value));
+		}
+
+	}
+
+}
@@ -0,0 +1,340 @@
+package ca.caseybanner.chief;
+
+import ca.caseybanner.chief.metrics.Counter;
+import ca.caseybanner.chief.metrics.LatencyHistogram;
+import ca.caseybanner.chief.metrics.MetricsRegistry;
+import com.google.api.client.http.HttpExecuteInterceptor;
+import com.google.api.client.http.HttpIOExceptionHandler;
+import com.google.api.client.http.HttpRequest;
+import com.google.api.client.http.HttpRequestFactory;
+import com.google.api.client.http.HttpRequestInitializer;
+import com.google.api.client.http.HttpResponse;
+import com.google.api.client.http.HttpResponseInterceptor;
+import com.google.api.client.http.HttpTransport;
+import com.google.api.client.http.apache.ApacheHttpTransport;
+import com.google.api.client.json.JsonFactory;
+import com.google.api.client.json.JsonObjectParser;
+import com.google.api.client.json.jackson2.JacksonFactory;
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.conn.params.ConnPerRouteBean;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * HTTP client shared by all commands.
+ * <p/>
+ * Wraps a single pooled transport so connections to the same API are kept alive and
+ * reused between lookups, with a cap on connections per host and common timeouts.
+ * <p/>
+ * Requests can also be executed asynchronously. The underlying transport is blocking, so async
+ * requests run on a dedicated I/O pool rather than the caller's thread.
+ * <p/>
+ * Every request records its latency and whether it failed, per host.
+ * <p/>
+ * Commands declare the external services they depend on with declareUpstream. Requests to a
+ * declared host pass through its circuit breaker and bulkhead, and fail with an
+ * UpstreamUnavailableException while it is down or stays saturated.
+ */
+public class HttpService implements HttpRequestInitializer {
+
+	private final int connectTimeout;
+	private final int readTimeout;
+	private final JsonFactory jsonFactory;
+	private final HttpTransport transport;
+	private final HttpRequestFactory requestFactory;
+	private final ThreadPoolExecutor ioExecutor;
+	private final MetricsRegistry metrics;
+	private final ConcurrentHashMap<String, HostMetrics> hostMetrics;
+	private final ConcurrentHashMap<String, Upstream> upstreams;
+	private final int breakerFailures;
+	private final long breakerOpenMillis;
+	private final int bulkheadSize;
+	private final long bulkheadWaitMillis;
+
+	/**
+	 * Constructor
+	 *
+	 * @param connectTimeout        connect timeout in milliseconds
+	 * @param readTimeout           read timeout in milliseconds
+	 * @param maxConnections        maximum pooled connections
+	 * @param maxConnectionsPerHost maximum concurrent connections to a single host,
+	 *                              further requests wait for a free connection
+	 * @param ioThreads             threads running asynchronous requests
+	 * @param breakerFailures       consecutive failures that open a declared upstream's circuit breaker
+	 * @param breakerOpenMillis     milliseconds a breaker stays open before a probe request is let through
+	 * @param bulkheadSize          most requests in flight at once to a declared upstream
+	 * @param bulkheadWaitMillis    milliseconds a request waits for a place in a full bulkhead before it is refused
+	 * @param metrics               registry to record request metrics into
+	 */
+	public HttpService(
+			int connectTimeout, int readTimeout, int maxConnections, int maxConnectionsPerHost, int ioThreads,
+			int breakerFailures, long breakerOpenMillis, int bulkheadSize, long bulkheadWaitMillis,
+			MetricsRegistry metrics) {
+
+		this.connectTimeout = connectTimeout;
+		this.readTimeout = readTimeout;
+		this.metrics = metrics;
+		this.hostMetrics = new ConcurrentHashMap<>();
+		this.upstreams = new ConcurrentHashMap<>();
+		this.breakerFailures = breakerFailures;
+		this.breakerOpenMillis = breakerOpenMillis;
+		this.bulkheadSize = bulkheadSize;
+		this.bulkheadWaitMillis = bulkheadWaitMillis;
+
+		ApacheHttpTransport.Builder builder = new ApacheHttpTransport.Builder();
+		HttpParams params = builder.getHttpParams();
+		ConnManagerParams.setMaxTotalConnections(params, maxConnections);
+		ConnManagerParams.setMaxConnectionsPerRoute(params, new ConnPerRouteBean(maxConnectionsPerHost));
+		ConnManagerParams.setTimeout(params, connectTimeout);
+		HttpConnectionParams.setConnectionTimeout(params, connectTimeout);
+		HttpConnectionParams.setSoTimeout(params, readTimeout);
+		HttpConnectionParams.setStaleCheckingEnabled(params, true);
+
+		jsonFactory = new JacksonFactory();
+		transport = builder.build();
+		requestFactory = transport.createRequestFactory(this);
+
+		ioExecutor = new ThreadPoolExecutor(
+				ioThreads, ioThreads, 60L, TimeUnit.SECONDS,
+				new ArrayBlockingQueue<>(maxConnections * 4),
+				CommandDispatcher.daemonThreadFactory("chief-http-"));
+
+		metrics.gauge("chief_http_io_queue_depth", "Asynchronous HTTP requests waiting for an I/O thread",
+				() -> ioExecutor.getQueue().size());
+
+	}
+
+	/**
+	 * Execute a request on the I/O pool and parse the response
+	 *
+	 * @param request      the request to execute
+	 * @param responseType class to parse the response body as
+	 * @param <T>          response type
+	 * @return future parsed response, completed exceptionally with the IOException if the request failed
+	 */
+	public <T> CompletableFuture<T> executeAsync(HttpRequest request, Class<T> responseType) {
+
+		CompletableFuture<T> result = new CompletableFuture<>();
+
+		try {
+			ioExecutor.execute(() -> {
+				try {
+					HttpResponse response = execute(request);
+					try {
+						result.complete(response.parseAs(responseType));
+					} finally {
+						response.ignore();
+					}
+				} catch (IOException | RuntimeException e) {
+					result.completeExceptionally(e);
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			result.completeExceptionally(e);
+		}
+
+		return result;
+
+	}
+
+	/**
+	 * Execute a request on the calling thread. Use this rather than HttpRequest.execute, so the
+	 * request's place in its upstream's bulkhead is given back even if an unexpected exception
+	 * is thrown while it is in flight.
+	 *
+	 * @param request the request to execute
+	 * @return the response
+	 * @throws IOException if the request failed or was refused
+	 */
+	public HttpResponse execute(HttpRequest request) throws IOException {
+
+		try {
+			return request.execute();
+		} finally {
+			HttpExecuteInterceptor interceptor = request.getInterceptor();
+			if (interceptor instanceof RequestTimer) {
+				((RequestTimer) interceptor).release(true);
+			}
+		}
+
+	}
+
+	/**
+	 * Applies the shared timeouts and JSON parser to a request
+	 *
+	 * @param request the request being built
+	 * @see com.google.api.client.http.HttpRequestInitializer
+	 */
+	@Override
+	public void initialize(HttpRequest request) throws IOException {
+		request.setConnectTimeout(connectTimeout);
+		request.setReadTimeout(readTimeout);
+		request.setParser(new JsonObjectParser(jsonFactory));
+
+		// The URL isn't set yet, so the host is looked up when the request executes
+
+		RequestTimer timer = new RequestTimer();
+		request.setInterceptor(timer);
+		request.setResponseInterceptor(timer);
+		request.setIOExceptionHandler(timer);
+	}
+
+	/**
+	 * Getter for the shared request factory. Requests it builds parse JSON responses.
+	 *
+	 * @return request factory
+	 */
+	public HttpRequestFactory getRequestFactory() {
+		return requestFactory;
+	}
+
+	/**
+	 * Getter for the shared JSON factory
+	 *
+	 * @return JSON factory
+	 */
+	public JsonFactory getJsonFactory() {
+		return jsonFactory;
+	}
+
+	/**
+	 * Getter for the shared transport, for client libraries that build their own requests
+	 *
+	 * @return HTTP transport
+	 */
+	public HttpTransport getTransport() {
+		return transport;
+	}
+
+	/**
+	 * Declare an external service, so requests to its host go through a circuit breaker and a
+	 * bulkhead. Declaring the same host again returns the existing upstream.
+	 *
+	 * @param host host name requests are sent to, like lcboapi.com
+	 * @param name name of the service to show users when it is unavailable, like "the LCBO API"
+	 * @return the upstream
+	 */
+	public Upstream declareUpstream(String host, String name) {
+		return upstreams.computeIfAbsent(host, key ->
+				new Upstream(key, name, breakerFailures, breakerOpenMillis, bulkheadSize, bulkheadWaitMillis, metrics));
+	}
+
+	/**
+	 * Get the metrics for a host, creating them the first time it is seen
+	 *
+	 * @param host the host name
+	 * @return metrics for the host
+	 */
+	private HostMetrics getHostMetrics(String host) {
+		return hostMetrics.computeIfAbsent(host, HostMetrics::new);
+	}
+
+	/**
+	 * Close all pooled connections
+	 */
+	public void shutdown() {
+		ioExecutor.shutdown();
+
+		try {
+			transport.shutdown();
+		} catch (IOException ignored) {
+
+		}
+	}
+
+	/**
+	 * Request, error and latency metrics for one host
+	 */
+	private class HostMetrics {
+
+		private final Counter requests;
+		private final Counter errors;
+		private final LatencyHistogram latency;
+
+		HostMetrics(String host) {
+			requests = metrics.counter(
+					"chief_http_requests_total", "HTTP requests sent", "host", host);
+			errors = metrics.counter(
+					"chief_http_errors_total", "HTTP requests that failed or got an error status", "host", host);
+			latency = metrics.histogram(
+					"chief_http_request_seconds", "Time until the HTTP response headers arrived", "host", host);
+		}
+
+	}
+
+	/**
+	 * Times a single request, one is created for each request
+	 */
+	private class RequestTimer implements HttpExecuteInterceptor, HttpResponseInterceptor, HttpIOExceptionHandler {
+
+		private HostMetrics host;
+		private Upstream upstream;
+		private long startNanos;
+		private long ticket;
+
+		@Override
+		public void intercept(HttpRequest request) throws IOException {
+			String hostName = request.getUrl().getHost();
+
+			// Refused requests are thrown from here, before they are sent or counted
+
+			Upstream declared = upstreams.get(hostName);
+			if (declared != null) {
+				ticket = declared.acquire();
+			}
+			upstream = declared;
+
+			host = getHostMetrics(hostName);
+			host.requests.increment();
+			startNanos = System.nanoTime();
+		}
+
+		@Override
+		public void interceptResponse(HttpResponse response) {
+			host.latency.recordSince(startNanos);
+			if (!response.isSuccessStatusCode()) {
+				host.errors.increment();
+			}
+
+			// Client errors are our fault, only server errors and throttling count against the service
+
+			int status = response.getStatusCode();
+			release(status >= 500 || status == 429);
+		}
+
+		@Override
+		public boolean handleIOException(HttpRequest request, boolean supportsRetry) {
+			if (host != null) {
+				host.latency.recordSince(startNanos);
+				host.errors.increment();
+			}
+
+			release(true);
+
+			// Don't retry, the caller decides what to do about the failure
+
+			return false;
+		}
+
+		/**
+		 * Give back the request's bulkhead place if it still holds it, does nothing after the
+		 * response or an IOException has already released it
+		 */
+		private void release(boolean failed) {
+			if (upstream != null) {
+				upstream.release(ticket, failed);
+				upstream = null;
+			}
+		}
+
+	}
+
+}
@@ -0,0 +1,149 @@
+package ca.caseybanner.chief;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A parsed JID: local@domain/resource.
+ * <p/>
+ * Parse once per stanza and pass the Jid around instead of splitting strings. Bare JIDs
+ * (without a resource) are interned, so comparing the bare JIDs of two parsed JIDs is
+ * usually an identity check.
+ */
+public final class Jid {
+
+	/**
+	 * Stop interning once this many bare JIDs are known, so a flood of strangers can't grow
+	 * the table forever. Later bare JIDs are still correct, just not shared.
+	 */
+	private static final int MAX_INTERNED = 100000;
+
+	private static final ConcurrentHashMap<String, Jid> interned = new ConcurrentHashMap<>();
+
+	private final String jid;
+	private final String local;
+	private final String domain;
+	private final String resource;
+	private final Jid bare;
+
+	private Jid(String jid, String local, String domain, String resource, Jid bare) {
+		this.jid = jid;
+		this.local = local;
+		this.domain = domain;
+		this.resource = resource;
+		this.bare = bare == null ? this : bare;
+	}
+
+	/**
+	 * Parse a JID
+	 *
+	 * @param jid the JID string
+	 * @return the parsed JID
+	 */
+	public static Jid parse(String jid) {
+
+		// The spec says the only / can be after the domain
+
+		int slash = jid.indexOf('/');
+		if (slash < 0) {
+			return bare(jid);
+		}
+
+		Jid bareJid = bare(jid.substring(0, slash));
+		return new Jid(jid, bareJid.local, bareJid.domain, jid.substring(slash + 1), bareJid);
+
+	}
+
+	/**
+	 * Get the interned instance of a bare JID
+	 *
+	 * @param bareJid JID without a resource
+	 * @return the parsed bare JID
+	 */
+	private static Jid bare(String bareJid) {
+
+		Jid existing = interned.get(bareJid);
+		if (existing != null) {
+			return existing;
+		}
+
+		int at = bareJid.indexOf('@');
+		Jid parsed = new Jid(
+				bareJid,
+				at < 0 ? null : bareJid.substring(0, at),
+				at < 0 ? bareJid : bareJid.substring(at + 1),
+				null,
+				null);
+
+		if (interned.size() >= MAX_INTERNED) {
+			return parsed;
+		}
+
+		existing = interned.putIfAbsent(bareJid, parsed);
+		return existing == null ? parsed : existing;
+
+	}
+
+	/**
+	 * Getter for the local part, the part before the @
+	 *
+	 * @return local part, or null if there isn't one
+	 */
+	public String getLocal() {
+		return local;
+	}
+
+	/**
+	 * Getter for the domain
+	 *
+	 * @return domain
+	 */
+	public String getDomain() {
+		return domain;
+	}
+
+	/**
+	 * Getter for the resource. In rooms this is the sender's nickname.
+	 *
+	 * @return resource, or null if there isn't one
+	 */
+	public String getResource() {
+		return resource;
+	}
+
+	/**
+	 * Check whether this JID has a resource
+	 *
+	 * @return true if there is a resource
+	 */
+	public boolean hasResource() {
+		return resource != null;
+	}
+
+	/**
+	 * Get the JID without the resource
+	 *
+	 * @return the interned bare JID
+	 */
+	public Jid asBare() {
+		return bare;
+	}
+
+	@Override
+	public boolean equals(Object other) {
+		return this == other || (other instanceof Jid && jid.equals(((Jid) other).jid));
+	}
+
+	@Override
+	public int hashCode() {
+		return jid.hashCode();
+	}
+
+	/**
+	 * @return the full JID string
+	 */
+	@Override
+	public String toString() {
+		return jid;
+	}
+
+}
@@ -0,0 +1,367 @@
+package ca.caseybanner.chief;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+
+/**
+ * Paces outbound messages with a token bucket per destination, and per sender within a room.
+ * <p/>
+ * Each room JID and each user JID gets its own bucket, so a room that is spamming commands
+ * only delays its own replies. Inside a room, each user whose command is being answered also
+ * has a bucket, so one user spamming commands can't use up the room's bucket and hold up
+ * everyone else's replies. Replies to the same user that pile up while out of tokens are
+ * joined into a single message when they are finally sent.
+ * <p/>
+ * Pacing runs on a single scheduler thread, and the messages themselves are written on a
+ * small pool of send threads, so a slow write to one destination doesn't hold up the others.
+ * Messages to one destination are still written one at a time, in order.
+ */
+public class OutboundScheduler {
+
+	private static final Logger logger = LogManager.getLogger(OutboundScheduler.class);
+
+	private static final long IDLE_SWEEP_SECONDS = 60;
+
+	private final double burst;
+	private final double refillPerSecond;
+	private final double senderBurst;
+	private final double senderRefillPerSecond;
+	private final int coalesceLimit;
+	private final ConcurrentHashMap<String, Destination> destinations;
+	private final ScheduledExecutorService scheduler;
+	private final ExecutorService sendExecutor;
+
+	/**
+	 * Constructor
+	 *
+	 * @param burst                 maximum messages sent back to back to one destination
+	 * @param refillPerSecond       sustained messages per second to one destination
+	 * @param senderBurst           maximum messages sent back to back in reply to one user in a room
+	 * @param senderRefillPerSecond sustained messages per second in reply to one user in a room
+	 * @param coalesceLimit         maximum length of a message built by joining pending replies
+	 * @param sendThreads           threads writing messages to the connection
+	 */
+	public OutboundScheduler(double burst, double refillPerSecond, double senderBurst, double senderRefillPerSecond,
+			int coalesceLimit, int sendThreads) {
+
+		this.burst = burst;
+		this.refillPerSecond = refillPerSecond;
+		this.senderBurst = senderBurst;
+		this.senderRefillPerSecond = senderRefillPerSecond;
+		this.coalesceLimit = coalesceLimit;
+		this.destinations = new ConcurrentHashMap<>();
+		this.scheduler = Executors.newSingleThreadScheduledExecutor(
+				CommandDispatcher.daemonThreadFactory("chief-outbound-"));
+		this.sendExecutor = Executors.newFixedThreadPool(
+				sendThreads, CommandDispatcher.daemonThreadFactory("chief-outbound-send-"));
+
+		scheduler.scheduleWithFixedDelay(
+				this::sweepIdleDestinations, IDLE_SWEEP_SECONDS, IDLE_SWEEP_SECONDS, TimeUnit.SECONDS);
+
+	}
+
+	/**
+	 * Queue a message for a destination
+	 *
+	 * @param destination the JID the message is going to, used to pick the token bucket
+	 * @param message     the message to send
+	 * @param sender      writes a message to the destination
+	 */
+	public void send(String destination, String message, Consumer<String> sender) {
+		send(destination, null, message, sender);
+	}
+
+	/**
+	 * Queue a message for a destination in reply to one of its users
+	 *
+	 * @param destination the JID the message is going to, used to pick the token bucket
+	 * @param from        the user being replied to, for their own bucket within the destination,
+	 *                    or null to only use the destination's bucket
+	 * @param message     the message to send
+	 * @param sender      writes a message to the destination
+	 */
+	public void send(String destination, String from, String message, Consumer<String> sender) {
+
+		// Queued inside compute, so the idle sweep can't remove the destination in between
+
+		Destination target = destinations.compute(destination, (key, current) -> {
+			Destination queued = current == null ? new Destination() : current;
+			queued.sender = sender;
+			queued.pending.add(new Pending(from, message));
+			return queued;
+		});
+		target.scheduleDrain(0);
+
+		// A drain waiting for another sender's tokens may be able to send this one now
+
+		if (target.waitingForSender) {
+			scheduler.execute(target::wake);
+		}
+
+	}
+
+	/**
+	 * Getter for the number of messages waiting for tokens across all destinations
+	 *
+	 * @return pending message count
+	 */
+	public int getPendingCount() {
+		return destinations.values().stream().mapToInt(destination -> destination.pending.size()).sum();
+	}
+
+	/**
+	 * Stop sending messages
+	 */
+	public void shutdown() {
+		scheduler.shutdown();
+		sendExecutor.shutdown();
+	}
+
+	/**
+	 * Forget destinations and senders with nothing pending and a full bucket
+	 */
+	private void sweepIdleDestinations() {
+		for (String key : destinations.keySet()) {
+			destinations.computeIfPresent(key, (ignored, destination) -> destination.isIdle() ? null : destination);
+		}
+	}
+
+	/**
+	 * A message waiting to be sent
+	 */
+	private static class Pending {
+
+		final String from;
+		final String message;
+
+		Pending(String from, String message) {
+			this.from = from;
+			this.message = message;
+		}
+
+	}
+
+	/**
+	 * Tokens for one destination or one sender
+	 */
+	private static class TokenBucket {
+
+		private final double capacity;
+		private final double refillPerSecond;
+
+		private double tokens;
+		private long lastRefillNanos = System.nanoTime();
+
+		TokenBucket(double capacity, double refillPerSecond) {
+			this.capacity = capacity;
+			this.refillPerSecond = refillPerSecond;
+			this.tokens = capacity;
+		}
+
+		/**
+		 * Check for a token without taking it
+		 *
+		 * @return 0 if a token is available, otherwise nanoseconds until one will be
+		 */
+		synchronized long waitNanos() {
+
+			refill();
+
+			if (tokens >= 1.0) {
+				return 0;
+			}
+
+			return Math.max(1L, (long) ((1.0 - tokens) / refillPerSecond * TimeUnit.SECONDS.toNanos(1)));
+
+		}
+
+		synchronized void take() {
+			refill();
+			tokens -= 1.0;
+		}
+
+		synchronized boolean isFull() {
+			refill();
+			return tokens >= capacity;
+		}
+
+		private void refill() {
+			long now = System.nanoTime();
+			tokens = Math.min(capacity, tokens + (now - lastRefillNanos) * refillPerSecond / TimeUnit.SECONDS.toNanos(1));
+			lastRefillNanos = now;
+		}
+
+	}
+
+	/**
+	 * A destination's token buckets and pending messages
+	 */
+	private class Destination {
+
+		private final Queue<Pending> pending = new ConcurrentLinkedQueue<>();
+		private final AtomicBoolean drainScheduled = new AtomicBoolean();
+		private final TokenBucket bucket = new TokenBucket(burst, refillPerSecond);
+		private final ConcurrentHashMap<String, TokenBucket> senders = new ConcurrentHashMap<>();
+		private volatile Consumer<String> sender;
+		private volatile boolean waitingForSender;
+
+		/**
+		 * The drain waiting for a sender's tokens, only used on the scheduler thread
+		 */
+		private ScheduledFuture<?> senderWait;
+
+		/**
+		 * Schedule a drain unless one is already scheduled or a message is being written
+		 *
+		 * @param delayNanos how long to wait before draining
+		 */
+		void scheduleDrain(long delayNanos) {
+			if (drainScheduled.compareAndSet(false, true)) {
+				scheduler.schedule(this::drain, delayNanos, TimeUnit.NANOSECONDS);
+			}
+		}
+
+		/**
+		 * Pick the next message to send once the destination and its sender have a token, and
+		 * hand it to the send threads. Only ever runs on the scheduler thread.
+		 */
+		private void drain() {
+
+			waitingForSender = false;
+
+			long waitNanos = bucket.waitNanos();
+			if (waitNanos > 0) {
+				scheduler.schedule(this::drain, waitNanos, TimeUnit.NANOSECONDS);
+				return;
+			}
+
+			// The oldest message whose sender has a token goes first, so a sender that is out
+			// of tokens doesn't hold up the others
+
+			Pending first = null;
+			TokenBucket firstBucket = null;
+			long senderWaitNanos = Long.MAX_VALUE;
+
+			for (Pending candidate : pending) {
+				TokenBucket candidateBucket = senderBucket(candidate.from);
+				long candidateWait = candidateBucket == null ? 0 : candidateBucket.waitNanos();
+				if (candidateWait == 0) {
+					first = candidate;
+					firstBucket = candidateBucket;
+					break;
+				}
+				senderWaitNanos = Math.min(senderWaitNanos, candidateWait);
+			}
+
+			if (first == null) {
+				if (pending.isEmpty()) {
+					finishDrain();
+				} else {
+					senderWait = scheduler.schedule(this::drain, senderWaitNanos, TimeUnit.NANOSECONDS);
+					waitingForSender = true;
+				}
+				return;
+			}
+
+			bucket.take();
+			if (firstBucket != null) {
+				firstBucket.take();
+			}
+
+			String message = takeCoalesced(first);
+			Consumer<String> currentSender = sender;
+
+			try {
+				sendExecutor.execute(() -> {
+					try {
+						currentSender.accept(message);
+					} catch (RuntimeException e) {
+						logger.error("Error sending message", e);
+					}
+					finishDrain();
+				});
+			} catch (RejectedExecutionException e) {
+				logger.warn("Dropping message, the outbound scheduler is shut down");
+				drainScheduled.set(false);
+			}
+
+		}
+
+		/**
+		 * Drain now instead of waiting for a sender's tokens, if the wait hasn't started draining
+		 * already. Only ever runs on the scheduler thread.
+		 */
+		private void wake() {
+			if (waitingForSender && senderWait.cancel(false)) {
+				drain();
+			}
+		}
+
+		/**
+		 * Remove a pending message and join any later ones to the same sender that fit onto it
+		 *
+		 * @param first the message being sent
+		 * @return the text to send
+		 */
+		private String takeCoalesced(Pending first) {
+
+			StringBuilder builder = new StringBuilder(first.message);
+			boolean found = false;
+
+			Iterator<Pending> iterator = pending.iterator();
+			while (iterator.hasNext()) {
+				Pending next = iterator.next();
+				if (next == first) {
+					iterator.remove();
+					found = true;
+				} else if (found && sameSender(first, next) &&
+						builder.length() + 1 + next.message.length() <= coalesceLimit) {
+					iterator.remove();
+					builder.append('\n').append(next.message);
+				}
+			}
+
+			return builder.toString();
+
+		}
+
+		/**
+		 * Allow the next drain once a message has been written, or there was nothing to send
+		 */
+		private void finishDrain() {
+			drainScheduled.set(false);
+			if (!pending.isEmpty()) {
+				scheduleDrain(0);
+			}
+		}
+
+		private TokenBucket senderBucket(String from) {
+			return from == null ? null :
+					senders.computeIfAbsent(from, key -> new TokenBucket(senderBurst, senderRefillPerSecond));
+		}
+
+		private boolean sameSender(Pending a, Pending b) {
+			return a.from == null ? b.from == null : a.from.equals(b.from);
+		}
+
+		boolean isIdle() {
+			senders.values().removeIf(TokenBucket::isFull);
+			return pending.isEmpty() && !drainScheduled.get() && bucket.isFull() && senders.isEmpty();
+		}
+
+	}
+
+}
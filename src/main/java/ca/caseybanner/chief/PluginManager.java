@@ -0,0 +1,615 @@
+package ca.caseybanner.chief;
+
+import ca.caseybanner.chief.commands.ConfigurationException;
+import ca.caseybanner.chief.commands.HelpCommand;
+import ca.caseybanner.chief.commands.MetricsCommand;
+import ca.caseybanner.chief.commands.QuitCommand;
+import ca.caseybanner.chief.util.DynamicURLClassLoader;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.net.MalformedURLException;
+import java.net.URLClassLoader;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * Loads commands and reloads them when their jars or the configuration change.
+ * <p/>
+ * Each jar in the resources property gets its own class loader, so a new version of a jar is
+ * loaded into a fresh loader instead of mixing with the old classes. A reload builds a complete
+ * new CommandRegistry off to the side and swaps it in with a single volatile write, so message
+ * handling never waits for it. The old registry is retired: once its in-flight commands finish,
+ * or the drain timeout passes, its commands are shut down and its class loaders are closed.
+ * <p/>
+ * When only the properties file changed and the commands and resources properties are the same,
+ * the changed properties are applied to the running commands through their setters instead.
+ * <p/>
+ * Commands can be constructed in parallel on the load pool, which also runs every newly loaded
+ * command's warmUp in the background.
+ */
+class PluginManager {
+
+	private static final Logger logger = LogManager.getLogger(PluginManager.class);
+
+	/**
+	 * Wait this long after the last change before reloading, jars are often written in pieces
+	 */
+	private static final long RELOAD_DELAY_MILLIS = 1000;
+
+	private static final long DRAIN_POLL_MILLIS = 100;
+
+	private final Bot bot;
+	private final Path propertiesPath;
+	private final long drainTimeoutMillis;
+	private final ScheduledExecutorService scheduler;
+	private final ExecutorService loadExecutor;
+	private final boolean parallel;
+
+	private volatile CommandRegistry registry;
+	private volatile Properties properties;
+	private volatile ConfigurationBinder binder;
+	private volatile Set<Path> watchedFiles;
+	private long version;
+	private ScheduledFuture<?> pendingReload;
+	private boolean pendingPluginsChanged;
+	private WatchService watchService;
+
+	/**
+	 * Constructor. There are no commands until loadInitial is called.
+	 *
+	 * @param bot                the bot commands are created for
+	 * @param properties         configuration properties
+	 * @param propertiesPath     the file the properties were read from, null if there isn't one
+	 * @param drainTimeoutMillis how long a replaced registry waits for its commands to finish
+	 * @param parallel           whether to construct commands in parallel
+	 * @param loadThreads        threads constructing and warming up commands
+	 */
+	PluginManager(
+			Bot bot, Properties properties, Path propertiesPath, long drainTimeoutMillis,
+			boolean parallel, int loadThreads) {
+
+		this.bot = bot;
+		this.properties = properties;
+		this.binder = new ConfigurationBinder(properties);
+		this.propertiesPath = propertiesPath;
+		this.drainTimeoutMillis = drainTimeoutMillis;
+		this.parallel = parallel;
+		this.scheduler = Executors.newSingleThreadScheduledExecutor(
+				CommandDispatcher.daemonThreadFactory("chief-plugins-"));
+		this.loadExecutor = Executors.newFixedThreadPool(
+				loadThreads, CommandDispatcher.daemonThreadFactory("chief-load-"));
+
+		this.version = 0;
+		this.registry = new CommandRegistry(version, Collections.emptyList(), Collections.emptyList());
+
+	}
+
+	/**
+	 * Load the commands for the first time
+	 */
+	void loadInitial() {
+
+		long startNanos = System.nanoTime();
+		CommandRegistry newRegistry;
+		synchronized (this) {
+			version++;
+			newRegistry = load(binder, version);
+		}
+
+		registry = newRegistry;
+
+		logger.info("Loaded {} commands in {}ms",
+				newRegistry.getCommands().size(), TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos));
+
+		warmUp(newRegistry);
+
+	}
+
+	/**
+	 * Getter for the current registry. Use acquire to run a command from it.
+	 *
+	 * @return the current CommandRegistry
+	 */
+	CommandRegistry getRegistry() {
+		return registry;
+	}
+
+	/**
+	 * Enter the current registry. The caller must call exit on it when its command is done.
+	 *
+	 * @return the current CommandRegistry, entered
+	 */
+	CommandRegistry acquire() {
+
+		while (true) {
+			CommandRegistry current = registry;
+			if (current.enter()) {
+				return current;
+			}
+		}
+
+	}
+
+	/**
+	 * Start watching the resource jars and the properties file for changes
+	 *
+	 * @throws IOException if the watch service can't be created
+	 */
+	synchronized void watch() throws IOException {
+
+		if (watchService != null) {
+			return;
+		}
+
+		watchService = FileSystems.getDefault().newWatchService();
+		registerWatches(properties);
+
+		Thread thread = new Thread(this::pollWatchService, "chief-plugin-watch");
+		thread.setDaemon(true);
+		thread.start();
+
+	}
+
+	/**
+	 * Reload the properties file, if there is one, and rebuild every command or apply the
+	 * changed properties. Keeps the current registry if the properties can't be read.
+	 *
+	 * @param pluginsChanged whether a plugin jar changed, which always rebuilds every command
+	 */
+	void reload(boolean pluginsChanged) {
+
+		Properties newProperties = properties;
+		if (propertiesPath != null) {
+			try (InputStream in = new FileInputStream(propertiesPath.toFile())) {
+				newProperties = new Properties();
+				newProperties.load(in);
+			} catch (IOException e) {
+				logger.error("Error reading {}, keeping the current commands", propertiesPath, e);
+				return;
+			}
+		}
+
+		for (String requiredProperty : Arrays.asList("commands", "resources")) {
+			if (newProperties.getProperty(requiredProperty) == null) {
+				logger.error("Missing required configuration property {}, keeping the current commands",
+						requiredProperty);
+				return;
+			}
+		}
+
+		ConfigurationBinder newBinder = new ConfigurationBinder(newProperties);
+
+		if (!pluginsChanged &&
+				properties.getProperty("commands").equals(newProperties.getProperty("commands")) &&
+				properties.getProperty("resources").equals(newProperties.getProperty("resources"))) {
+			rebind(newProperties, newBinder);
+			return;
+		}
+
+		long startNanos = System.nanoTime();
+		CommandRegistry newRegistry;
+		synchronized (this) {
+			version++;
+			newRegistry = load(newBinder, version);
+		}
+
+		CommandRegistry oldRegistry = registry;
+		properties = newProperties;
+		binder = newBinder;
+		registry = newRegistry;
+
+		logger.info("Loaded {} commands as version {} in {}ms",
+				newRegistry.getCommands().size(), newRegistry.getVersion(),
+				TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos));
+
+		registerWatches(newProperties);
+		retire(oldRegistry);
+		warmUp(newRegistry);
+
+	}
+
+	/**
+	 * Apply changed properties to the running commands
+	 *
+	 * @param newProperties the new configuration properties
+	 * @param newBinder     binder over the new properties
+	 */
+	private void rebind(Properties newProperties, ConfigurationBinder newBinder) {
+
+		ConfigurationBinder oldBinder = binder;
+		for (Command command : registry.getCommands()) {
+			if (newBinder.hasChanges(command.getClass(), oldBinder)) {
+				newBinder.rebind(command, oldBinder);
+				try {
+					command.configurationChanged();
+				} catch (RuntimeException e) {
+					logger.error("Error applying changed configuration to {}", command.getClass().getSimpleName(), e);
+				}
+				logger.info("Reconfigured {}", command.getClass().getSimpleName());
+			}
+		}
+
+		properties = newProperties;
+		binder = newBinder;
+
+	}
+
+	/**
+	 * Stop watching for changes and shut down every command
+	 */
+	synchronized void shutdown() {
+
+		scheduler.shutdownNow();
+		loadExecutor.shutdownNow();
+
+		if (watchService != null) {
+			try {
+				watchService.close();
+			} catch (IOException ignored) {
+
+			}
+		}
+
+		registry.retire();
+		registry.close();
+
+	}
+
+	/**
+	 * Build a registry from the given properties
+	 *
+	 * @param binder  binder over the configuration properties
+	 * @param version version of the new registry
+	 * @return the new registry
+	 */
+	private CommandRegistry load(ConfigurationBinder binder, long version) {
+
+		Properties properties = binder.getProperties();
+
+		// Load external jars, each in its own class loader
+
+		ClassLoader parent = PluginManager.class.getClassLoader();
+		List<URLClassLoader> classLoaders = new ArrayList<>();
+		for (String path : resourcePaths(properties)) {
+			try {
+				File resourceFile = new File(path);
+				logger.trace(resourceFile.getAbsolutePath());
+				DynamicURLClassLoader classLoader = new DynamicURLClassLoader(parent);
+				classLoader.addURL(resourceFile.toURI().toURL());
+				classLoaders.add(classLoader);
+			} catch (MalformedURLException e) {
+				logger.error("Invalid resource path: " + path, e);
+			}
+		}
+
+		// Add some default commands
+
+		List<Function<Bot, Command>> constructors = new ArrayList<>();
+
+		constructors.add(HelpCommand::new);
+		constructors.add(QuitCommand::new);
+		constructors.add(MetricsCommand::new);
+
+		String[] commandClassnames = properties.getProperty("commands").split("\\s*,\\s*");
+		for (String classname : commandClassnames) {
+			try {
+				Class<?> clazz = loadClass(classname, parent, classLoaders);
+				Constructor<?> cons = clazz.getConstructor(Bot.class);
+				constructors.add(bot -> {
+					try {
+						Command command = (Command) cons.newInstance(bot);
+						logger.info("Added command " + classname);
+						return command;
+					} catch (IllegalAccessException | InstantiationException | InvocationTargetException e) {
+						logger.error("Error creating command " + classname, e);
+						return null;
+					}
+				});
+			} catch (ClassNotFoundException e) {
+				logger.error("Cannot find class " + classname, e);
+			} catch (NoSuchMethodException e) {
+				logger.error("Failed to find the correct method in command " + classname, e);
+			} catch (Exception e) {
+				logger.error("Unknown error creating command " + classname, e);
+			}
+		}
+
+		// Construct and configure the commands, in parallel if enabled, keeping their order
+
+		List<Command> commands = new ArrayList<>();
+		if (parallel) {
+			List<CompletableFuture<Command>> futures = new ArrayList<>();
+			for (Function<Bot, Command> constructor : constructors) {
+				futures.add(CompletableFuture.supplyAsync(
+						() -> createCommand(binder, constructor), loadExecutor));
+			}
+
+			for (CompletableFuture<Command> future : futures) {
+				try {
+					Command command = future.join();
+					if (command != null) {
+						commands.add(command);
+					}
+				} catch (CompletionException e) {
+					logger.error("Unknown error creating command", e.getCause());
+				}
+			}
+		} else {
+			for (Function<Bot, Command> constructor : constructors) {
+				try {
+					Command command = createCommand(binder, constructor);
+					if (command != null) {
+						commands.add(command);
+					}
+				} catch (RuntimeException e) {
+					logger.error("Unknown error creating command", e);
+				}
+			}
+		}
+
+		return new CommandRegistry(version, commands, classLoaders);
+
+	}
+
+	/**
+	 * Find a class on the bot's own class path, or else in the first plugin jar that has it
+	 *
+	 * @param classname    fully qualified class name
+	 * @param parent       the bot's class loader
+	 * @param classLoaders plugin class loaders, in the order of the resources property
+	 * @return the class
+	 * @throws ClassNotFoundException if no class loader has the class
+	 */
+	private static Class<?> loadClass(
+			String classname, ClassLoader parent, List<URLClassLoader> classLoaders) throws ClassNotFoundException {
+
+		try {
+			return Class.forName(classname, true, parent);
+		} catch (ClassNotFoundException e) {
+			for (URLClassLoader classLoader : classLoaders) {
+				try {
+					return Class.forName(classname, true, classLoader);
+				} catch (ClassNotFoundException ignored) {
+
+				}
+			}
+
+			throw e;
+		}
+
+	}
+
+	/**
+	 * Constructs and configures a command
+	 *
+	 * @param binder             applies configuration properties to the command
+	 * @param commandConstructor the constructor of a Command to add
+	 * @return the command, or null if it couldn't be created or configured
+	 */
+	private Command createCommand(ConfigurationBinder binder, Function<Bot, Command> commandConstructor) {
+
+		Command command = commandConstructor.apply(bot);
+		if (null == command) {
+			return null;
+		}
+
+		// Apply any properties prefixed with this classname
+
+		binder.bind(command);
+
+		try {
+			command.configurationComplete();
+			return command;
+		} catch (ConfigurationException e) {
+			logger.error("Command configuration error in {}: {}",
+					command.getClass().toString(), e.getMessage());
+			command.shutdown();
+			return null;
+		}
+
+	}
+
+	/**
+	 * Run each command's warmUp on the load pool
+	 *
+	 * @param newRegistry the registry that was just loaded
+	 */
+	private void warmUp(CommandRegistry newRegistry) {
+
+		for (Command command : newRegistry.getCommands()) {
+			try {
+				loadExecutor.execute(() -> {
+					long startNanos = System.nanoTime();
+					try {
+						command.warmUp();
+						logger.debug("Warmed up {} in {}ms", command.getClass().getSimpleName(),
+								TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos));
+					} catch (RuntimeException e) {
+						logger.warn("Error warming up {}", command.getClass().getName(), e);
+					}
+				});
+			} catch (RejectedExecutionException ignored) {
+
+			}
+		}
+
+	}
+
+	/**
+	 * Wait for a replaced registry's commands to finish, then close it
+	 *
+	 * @param oldRegistry the registry that was replaced
+	 */
+	private void retire(CommandRegistry oldRegistry) {
+
+		oldRegistry.retire();
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(drainTimeoutMillis);
+
+		Runnable[] check = new Runnable[1];
+		check[0] = () -> {
+			int inFlight = oldRegistry.getInFlight();
+			if (inFlight > 0 && System.nanoTime() < deadline) {
+				scheduler.schedule(check[0], DRAIN_POLL_MILLIS, TimeUnit.MILLISECONDS);
+				return;
+			}
+
+			if (inFlight > 0) {
+				logger.warn("Closing command version {} with {} commands still running",
+						oldRegistry.getVersion(), inFlight);
+			}
+
+			oldRegistry.close();
+			logger.info("Closed command version {}", oldRegistry.getVersion());
+		};
+
+		scheduler.execute(check[0]);
+
+	}
+
+	/**
+	 * Reload after things have been quiet for a moment
+	 *
+	 * @param pluginsChanged whether a plugin jar changed, rather than just the properties file
+	 */
+	private synchronized void scheduleReload(boolean pluginsChanged) {
+
+		if (pendingReload != null) {
+			pendingReload.cancel(false);
+		}
+
+		pendingPluginsChanged |= pluginsChanged;
+		pendingReload = scheduler.schedule(() -> {
+			boolean reloadPlugins;
+			synchronized (this) {
+				reloadPlugins = pendingPluginsChanged;
+				pendingPluginsChanged = false;
+			}
+
+			try {
+				reload(reloadPlugins);
+			} catch (RuntimeException e) {
+				logger.error("Error reloading commands", e);
+			}
+		}, RELOAD_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+
+	}
+
+	/**
+	 * Watch the directories holding the resource jars and the properties file
+	 *
+	 * @param properties configuration properties listing the resource jars
+	 */
+	private synchronized void registerWatches(Properties properties) {
+
+		if (watchService == null) {
+			return;
+		}
+
+		Set<Path> files = new HashSet<>();
+		for (String path : resourcePaths(properties)) {
+			files.add(new File(path).toPath().toAbsolutePath().normalize());
+		}
+		if (propertiesPath != null) {
+			files.add(propertiesPath.toAbsolutePath().normalize());
+		}
+
+		for (Path file : files) {
+			Path directory = file.getParent();
+			if (directory == null) {
+				continue;
+			}
+
+			try {
+				directory.register(watchService,
+						StandardWatchEventKinds.ENTRY_CREATE,
+						StandardWatchEventKinds.ENTRY_MODIFY,
+						StandardWatchEventKinds.ENTRY_DELETE);
+			} catch (IOException e) {
+				logger.warn("Cannot watch {} for changes", directory, e);
+			}
+		}
+
+		watchedFiles = Collections.unmodifiableSet(files);
+
+	}
+
+	/**
+	 * Wait for file changes until the watch service is closed
+	 */
+	private void pollWatchService() {
+
+		try {
+			while (true) {
+				WatchKey key = watchService.take();
+				Path directory = (Path) key.watchable();
+
+				for (WatchEvent<?> event : key.pollEvents()) {
+					if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+						scheduleReload(true);
+						continue;
+					}
+
+					Path changed = directory.resolve((Path) event.context());
+					if (watchedFiles.contains(changed)) {
+						logger.debug("{} changed", changed);
+						scheduleReload(propertiesPath == null ||
+								!changed.equals(propertiesPath.toAbsolutePath().normalize()));
+					}
+				}
+
+				key.reset();
+			}
+		} catch (InterruptedException | ClosedWatchServiceException ignored) {
+
+		}
+
+	}
+
+	/**
+	 * Split the resources property into paths
+	 *
+	 * @param properties configuration properties
+	 * @return resource paths, without empty entries
+	 */
+	private static List<String> resourcePaths(Properties properties) {
+
+		List<String> paths = new ArrayList<>();
+		for (String path : properties.getProperty("resources").split("\\s*,\\s*")) {
+			if (!path.isEmpty()) {
+				paths.add(path);
+			}
+		}
+
+		return paths;
+
+	}
+
+}
@@ -0,0 +1,165 @@
+package ca.caseybanner.chief;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Joins many rooms at once.
+ * <p/>
+ * Joining a room blocks until the server replies, so rooms are joined on a small pool with
+ * at most the configured number of joins in flight. A failed join is retried after an
+ * exponential backoff with jitter, without holding a thread while it waits.
+ */
+class RoomJoiner {
+
+	private static final Logger logger = LogManager.getLogger(RoomJoiner.class);
+
+	private static final long MAX_BACKOFF_MILLIS = 30000;
+
+	/**
+	 * Joins a single room
+	 */
+	@FunctionalInterface
+	interface Join {
+
+		/**
+		 * @param room name of the room to join
+		 * @throws Exception if the join failed and should be retried
+		 */
+		void join(String room) throws Exception;
+
+	}
+
+	private final ScheduledThreadPoolExecutor executor;
+
+	/**
+	 * Rooms still being joined, given up on if the joiner is shut down
+	 */
+	private final Set<CompletableFuture<Boolean>> pending;
+	private final int attempts;
+	private final long initialBackoffMillis;
+
+	/**
+	 * Constructor
+	 *
+	 * @param concurrency          maximum rooms being joined at once
+	 * @param attempts             attempts per room before giving up
+	 * @param initialBackoffMillis wait before the first retry, doubled for each retry after that
+	 */
+	RoomJoiner(int concurrency, int attempts, long initialBackoffMillis) {
+
+		this.attempts = Math.max(1, attempts);
+		this.initialBackoffMillis = initialBackoffMillis;
+		this.executor = new ScheduledThreadPoolExecutor(
+				concurrency, CommandDispatcher.daemonThreadFactory("chief-join-"));
+		this.pending = ConcurrentHashMap.newKeySet();
+
+	}
+
+	/**
+	 * Join every room
+	 *
+	 * @param rooms names of the rooms to join
+	 * @param join  joins a single room
+	 * @return future number of rooms joined, completes once every room has joined or given up
+	 */
+	CompletableFuture<Integer> joinAll(List<String> rooms, Join join) {
+
+		AtomicInteger joined = new AtomicInteger();
+		CompletableFuture<?>[] joins = new CompletableFuture<?>[rooms.size()];
+
+		for (int i = 0; i < joins.length; i++) {
+			String room = rooms.get(i);
+			CompletableFuture<Boolean> result = new CompletableFuture<>();
+			pending.add(result);
+			result.thenAccept(success -> {
+				pending.remove(result);
+				if (success) {
+					joined.incrementAndGet();
+				}
+			});
+
+			try {
+				executor.execute(() -> attempt(room, join, 1, result));
+			} catch (RejectedExecutionException e) {
+				logger.warn("Not joining room {}, the room joiner is shut down", room);
+				result.complete(false);
+			}
+			joins[i] = result;
+		}
+
+		return CompletableFuture.allOf(joins).thenApply(ignored -> joined.get());
+
+	}
+
+	/**
+	 * Stop joining rooms
+	 */
+	void shutdown() {
+
+		executor.shutdownNow();
+
+		// Retries that hadn't run yet are dropped, so their rooms are given up on here
+
+		for (CompletableFuture<Boolean> result : pending) {
+			result.complete(false);
+		}
+
+	}
+
+	/**
+	 * Try to join a room, scheduling a retry if it fails
+	 *
+	 * @param room    name of the room to join
+	 * @param join    joins a single room
+	 * @param attempt the attempt number, starting at 1
+	 * @param result  completed with whether the room was joined
+	 */
+	private void attempt(String room, Join join, int attempt, CompletableFuture<Boolean> result) {
+
+		try {
+			join.join(room);
+			result.complete(true);
+			return;
+		} catch (Exception e) {
+			if (attempt >= attempts) {
+				logger.error("Giving up joining room {} after {} attempts", room, attempt, e);
+				result.complete(false);
+				return;
+			}
+
+			long backoffMillis = backoff(attempt);
+			logger.warn("Error joining room {}, retrying in {}ms: {}", room, backoffMillis, e.toString());
+
+			try {
+				executor.schedule(
+						() -> attempt(room, join, attempt + 1, result), backoffMillis, TimeUnit.MILLISECONDS);
+			} catch (RuntimeException rejected) {
+				result.complete(false);
+			}
+		}
+
+	}
+
+	/**
+	 * Exponential backoff with up to 20% jitter, so rooms that failed together don't retry together
+	 *
+	 * @param attempt the attempt that just failed, starting at 1
+	 * @return milliseconds to wait before the next attempt
+	 */
+	private long backoff(int attempt) {
+		long backoff = Math.min(MAX_BACKOFF_MILLIS, initialBackoffMillis << Math.min(attempt - 1, 20));
+		return backoff + ThreadLocalRandom.current().nextLong(backoff / 5 + 1);
+	}
+
+}
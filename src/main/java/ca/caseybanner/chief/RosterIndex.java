@@ -0,0 +1,219 @@
+package ca.caseybanner.chief;
+
+import org.jivesoftware.smack.Roster;
+import org.jivesoftware.smack.RosterEntry;
+import org.jivesoftware.smack.RosterListener;
+import org.jivesoftware.smack.packet.Presence;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Bidirectional index over the roster: bare JID to name, name to bare JID and mention name to
+ * bare JID.
+ * <p/>
+ * Readers see an immutable snapshot through a volatile field, so lookups are lock free.
+ * Roster events update the index by copying the snapshot and swapping in the new one.
+ */
+class RosterIndex implements RosterListener {
+
+	/**
+	 * An immutable view of the roster
+	 */
+	private static class Snapshot {
+
+		private final Map<String, String> nameByJid;
+		private final Map<String, String> jidByName;
+		private final Map<String, String> jidByMentionName;
+		private final Map<String, String> mentionNameByName;
+
+		Snapshot(Map<String, String> nameByJid) {
+
+			this.nameByJid = nameByJid;
+			this.jidByName = new HashMap<>(nameByJid.size() * 2);
+			this.jidByMentionName = new HashMap<>(nameByJid.size() * 2);
+			this.mentionNameByName = new HashMap<>(nameByJid.size() * 2);
+
+			nameByJid.forEach((jid, name) -> {
+				String mentionName = toMentionName(name);
+				jidByName.putIfAbsent(name, jid);
+				jidByMentionName.putIfAbsent(mentionName, jid);
+				mentionNameByName.putIfAbsent(name, mentionName);
+			});
+
+		}
+
+	}
+
+	private volatile Snapshot snapshot;
+	private volatile Roster roster;
+
+	RosterIndex() {
+		snapshot = new Snapshot(Collections.emptyMap());
+	}
+
+	/**
+	 * Index every entry in a roster and listen for changes to it
+	 *
+	 * @param roster the roster to index
+	 */
+	synchronized void attach(Roster roster) {
+
+		if (this.roster != roster) {
+			if (this.roster != null) {
+				this.roster.removeRosterListener(this);
+			}
+
+			roster.addRosterListener(this);
+			this.roster = roster;
+		}
+
+		Map<String, String> nameByJid = new HashMap<>();
+		for (RosterEntry entry : roster.getEntries()) {
+			if (entry.getName() != null) {
+				nameByJid.put(entry.getUser(), entry.getName());
+			}
+		}
+
+		snapshot = new Snapshot(nameByJid);
+
+	}
+
+	/**
+	 * Look up the roster name of a bare JID
+	 *
+	 * @param bareJid JID without a resource
+	 * @return the name, or null if the JID isn't in the roster
+	 */
+	String getName(String bareJid) {
+		return snapshot.nameByJid.get(bareJid);
+	}
+
+	/**
+	 * Look up the bare JID of a roster name
+	 *
+	 * @param name the roster name
+	 * @return the JID, or null if no entry has that name
+	 */
+	String getJid(String name) {
+		return snapshot.jidByName.get(name);
+	}
+
+	/**
+	 * Look up the bare JID of a mention name
+	 *
+	 * @param mentionName the mention name
+	 * @return the JID, or null if no entry has that mention name
+	 */
+	String getJidByMentionName(String mentionName) {
+		return snapshot.jidByMentionName.get(mentionName);
+	}
+
+	/**
+	 * Look up the precomputed mention name of a roster name
+	 *
+	 * @param name the roster name
+	 * @return the mention name, or null if no entry has that name
+	 */
+	String getMentionName(String name) {
+		return snapshot.mentionNameByName.get(name);
+	}
+
+	/**
+	 * Getter for the number of indexed entries
+	 *
+	 * @return entry count
+	 */
+	int size() {
+		return snapshot.nameByJid.size();
+	}
+
+	/**
+	 * Converts a name to a HipChat mention name by removing all whitespace
+	 *
+	 * @param name the name to convert
+	 * @return the mention name
+	 */
+	static String toMentionName(String name) {
+
+		StringBuilder builder = null;
+		for (int i = 0; i < name.length(); i++) {
+			char c = name.charAt(i);
+			if (Character.isWhitespace(c)) {
+				if (builder == null) {
+					builder = new StringBuilder(name.length());
+					builder.append(name, 0, i);
+				}
+			} else if (builder != null) {
+				builder.append(c);
+			}
+		}
+
+		return builder == null ? name : builder.toString();
+
+	}
+
+	/**
+	 * @see org.jivesoftware.smack.RosterListener
+	 */
+	@Override
+	public void entriesAdded(Collection<String> addresses) {
+		update(addresses);
+	}
+
+	/**
+	 * @see org.jivesoftware.smack.RosterListener
+	 */
+	@Override
+	public void entriesUpdated(Collection<String> addresses) {
+		update(addresses);
+	}
+
+	/**
+	 * @see org.jivesoftware.smack.RosterListener
+	 */
+	@Override
+	public synchronized void entriesDeleted(Collection<String> addresses) {
+
+		Map<String, String> nameByJid = new HashMap<>(snapshot.nameByJid);
+		addresses.forEach(nameByJid::remove);
+		snapshot = new Snapshot(nameByJid);
+
+	}
+
+	/**
+	 * @see org.jivesoftware.smack.RosterListener
+	 */
+	@Override
+	public void presenceChanged(Presence presence) {
+
+	}
+
+	/**
+	 * Re-read the given addresses from the roster
+	 *
+	 * @param addresses bare JIDs that were added or changed
+	 */
+	private synchronized void update(Collection<String> addresses) {
+
+		if (roster == null) {
+			return;
+		}
+
+		Map<String, String> nameByJid = new HashMap<>(snapshot.nameByJid);
+		for (String address : addresses) {
+			RosterEntry entry = roster.getEntry(address);
+			if (entry != null && entry.getName() != null) {
+				nameByJid.put(entry.getUser(), entry.getName());
+			} else {
+				nameByJid.remove(address);
+			}
+		}
+
+		snapshot = new Snapshot(nameByJid);
+
+	}
+
+}
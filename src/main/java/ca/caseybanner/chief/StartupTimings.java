@@ -0,0 +1,65 @@
+package ca.caseybanner.chief;
+
+import ca.caseybanner.chief.metrics.MetricsRegistry;
+import org.apache.logging.log4j.Logger;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Records how long each phase of startup took.
+ * <p/>
+ * Phases may overlap when startup is parallel, so they don't have to add up to the total.
+ */
+class StartupTimings {
+
+	private final long startNanos;
+	private final Map<String, Long> phaseNanos;
+
+	StartupTimings() {
+		this.startNanos = System.nanoTime();
+		this.phaseNanos = new LinkedHashMap<>();
+	}
+
+	/**
+	 * Record a phase that started at the given time and has just finished
+	 *
+	 * @param phase           name of the phase
+	 * @param phaseStartNanos System.nanoTime() when the phase started
+	 */
+	synchronized void record(String phase, long phaseStartNanos) {
+		phaseNanos.put(phase, System.nanoTime() - phaseStartNanos);
+	}
+
+	/**
+	 * Log the breakdown and expose it as gauges
+	 *
+	 * @param logger  where to log the breakdown
+	 * @param metrics registry to add the chief_startup_seconds gauges to
+	 */
+	synchronized void report(Logger logger, MetricsRegistry metrics) {
+
+		long totalNanos = System.nanoTime() - startNanos;
+
+		StringBuilder builder = new StringBuilder();
+		phaseNanos.forEach((phase, nanos) -> {
+			if (builder.length() > 0) {
+				builder.append(", ");
+			}
+			builder.append(phase).append(' ').append(TimeUnit.NANOSECONDS.toMillis(nanos)).append("ms");
+
+			double seconds = nanos / 1e9;
+			metrics.gauge("chief_startup_seconds", "Time taken by each phase of startup",
+					() -> seconds, "phase", phase);
+		});
+
+		double totalSeconds = totalNanos / 1e9;
+		metrics.gauge("chief_startup_seconds", "Time taken by each phase of startup",
+				() -> totalSeconds, "phase", "total");
+
+		logger.info("Started in {}ms ({})", TimeUnit.NANOSECONDS.toMillis(totalNanos), builder);
+
+	}
+
+}
@@ -8,6 +8,9 @@ import java.util.regex.Matcher;
  * Created by Chris on 10/14/14.
  */
 public abstract class SynchronousCommand extends Command {
+
+	private volatile SynchronousExecutor.Mode execution;
+
 	/**
 	 * Constructor
 	 *
@@ -20,7 +23,7 @@ public abstract class SynchronousCommand extends Command {
 	/**
 	 * Process a message and optionally return a response.
 	 *
-	 * @param from     the nickname the chat was from
+	 * @param from     the full JID the chat was from
 	 * @param message  the message itself
 	 * @param matcher  the matcher created by pattern returned by getPattern(),
 	 *                 already run on the message
@@ -31,7 +34,17 @@ public abstract class SynchronousCommand extends Command {
 			String from, String message, Matcher matcher, boolean fromRoom);
 
 	/**
-	 * Possibly async processing
+	 * Setter for execution
+	 *
+	 * @param execution where processMessage runs: inline, virtual or pool.
+	 *                  Defaults to the bot's syncExecution setting.
+	 */
+	public void setExecution(SynchronousExecutor.Mode execution) {
+		this.execution = execution;
+	}
+
+	/**
+	 * Runs processMessage using this command's execution mode
 	 *
 	 * @param from
 	 * @param message
@@ -40,7 +53,8 @@ public abstract class SynchronousCommand extends Command {
 	 * @return
 	 */
 	public CompletableFuture<Optional<String>> processAsyncMessage(
-			String from, String message, Matcher matcher, boolean fromRoom) {
-		return toFuture(processMessage(from, message, matcher, fromRoom));
+			Jid from, String message, Matcher matcher, boolean fromRoom) {
+		return getBot().getSynchronousExecutor().submit(
+				execution, () -> processMessage(from.toString(), message, matcher, fromRoom));
 	}
 }
@@ -0,0 +1,217 @@
+package ca.caseybanner.chief;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.lang.reflect.InvocationTargetException;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * Runs the blocking work of SynchronousCommands.
+ * <p/>
+ * Work can run inline on the caller's thread, on a virtual thread per task when the JVM
+ * supports them, or on a bounded pool of platform threads.
+ */
+public class SynchronousExecutor {
+
+	private static final Logger logger = LogManager.getLogger(SynchronousExecutor.class);
+
+	/**
+	 * Where synchronous work is run
+	 */
+	public enum Mode {
+
+		/**
+		 * On the calling thread
+		 */
+		INLINE,
+
+		/**
+		 * On a new virtual thread per task, falling back to POOL on JVMs without virtual threads
+		 */
+		VIRTUAL,
+
+		/**
+		 * On a bounded pool of platform threads
+		 */
+		POOL;
+
+		/**
+		 * Parse a mode from a configuration value
+		 *
+		 * @param value inline, virtual or pool
+		 * @return the mode
+		 */
+		public static Mode parse(String value) {
+			return Mode.valueOf(value.trim().toUpperCase(Locale.ROOT));
+		}
+
+	}
+
+	private final Mode defaultMode;
+	private final int poolSize;
+	private final int queueSize;
+	private final AtomicInteger inFlight;
+
+	private volatile ExecutorService virtualExecutor;
+	private volatile ThreadPoolExecutor poolExecutor;
+
+	/**
+	 * Constructor
+	 *
+	 * @param defaultMode mode used by commands that don't choose one
+	 * @param poolSize    number of platform threads in the pool
+	 * @param queueSize   maximum tasks waiting for a pool thread
+	 */
+	public SynchronousExecutor(Mode defaultMode, int poolSize, int queueSize) {
+		this.defaultMode = defaultMode;
+		this.poolSize = poolSize;
+		this.queueSize = queueSize;
+		this.inFlight = new AtomicInteger();
+	}
+
+	/**
+	 * Run some blocking work
+	 *
+	 * @param mode where to run it, null for the default mode
+	 * @param work the work to run
+	 * @param <T>  result type
+	 * @return future result of the work
+	 */
+	public <T> CompletableFuture<T> submit(Mode mode, Supplier<T> work) {
+
+		Mode effectiveMode = mode == null ? defaultMode : mode;
+
+		if (effectiveMode == Mode.INLINE) {
+			inFlight.incrementAndGet();
+			try {
+				return CompletableFuture.completedFuture(work.get());
+			} finally {
+				inFlight.decrementAndGet();
+			}
+		}
+
+		ExecutorService executor = effectiveMode == Mode.VIRTUAL ? getVirtualExecutor() : getPoolExecutor();
+
+		CompletableFuture<T> result = new CompletableFuture<>();
+		inFlight.incrementAndGet();
+		try {
+			executor.execute(() -> {
+				try {
+					result.complete(work.get());
+				} catch (Throwable t) {
+					result.completeExceptionally(t);
+				} finally {
+					inFlight.decrementAndGet();
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			inFlight.decrementAndGet();
+			result.completeExceptionally(e);
+		}
+
+		return result;
+
+	}
+
+	/**
+	 * Getter for the number of tasks currently running or waiting to run
+	 *
+	 * @return in-flight task count
+	 */
+	public int getInFlight() {
+		return inFlight.get();
+	}
+
+	/**
+	 * How full the platform pool is, as busy threads plus queued tasks over pool threads.
+	 * Values above 1 mean tasks are waiting for a thread.
+	 *
+	 * @return pool saturation, 0 if the pool hasn't been used
+	 */
+	public double getPoolSaturation() {
+
+		ThreadPoolExecutor pool = poolExecutor;
+		if (pool == null) {
+			return 0.0;
+		}
+
+		return (double) (pool.getActiveCount() + pool.getQueue().size()) / poolSize;
+
+	}
+
+	/**
+	 * Stop all executors
+	 */
+	public void shutdown() {
+
+		if (virtualExecutor != null) {
+			virtualExecutor.shutdown();
+		}
+
+		if (poolExecutor != null) {
+			poolExecutor.shutdown();
+		}
+
+	}
+
+	private ExecutorService getVirtualExecutor() {
+
+		if (virtualExecutor == null) {
+			synchronized (this) {
+				if (virtualExecutor == null) {
+					virtualExecutor = createVirtualExecutor();
+				}
+			}
+		}
+
+		return virtualExecutor;
+
+	}
+
+	private ThreadPoolExecutor getPoolExecutor() {
+
+		if (poolExecutor == null) {
+			synchronized (this) {
+				if (poolExecutor == null) {
+					poolExecutor = new ThreadPoolExecutor(
+							poolSize, poolSize, 60L, TimeUnit.SECONDS,
+							new ArrayBlockingQueue<>(queueSize),
+							CommandDispatcher.daemonThreadFactory("chief-sync-"));
+				}
+			}
+		}
+
+		return poolExecutor;
+
+	}
+
+	/**
+	 * Look up Executors.newVirtualThreadPerTaskExecutor, which only exists on Java 21 and up
+	 *
+	 * @return virtual thread executor, or the platform pool if virtual threads aren't available
+	 */
+	private ExecutorService createVirtualExecutor() {
+
+		try {
+			return (ExecutorService) Executors.class
+					.getMethod("newVirtualThreadPerTaskExecutor")
+					.invoke(null);
+		} catch (NoSuchMethodException | IllegalAccessException | InvocationTargetException e) {
+			logger.warn("Virtual threads are not available on this JVM, using a pool of {} threads",
+					poolSize);
+			return getPoolExecutor();
+		}
+
+	}
+
+}
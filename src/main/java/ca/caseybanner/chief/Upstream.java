@@ -0,0 +1,161 @@
+package ca.caseybanner.chief;
+
+import ca.caseybanner.chief.metrics.Counter;
+import ca.caseybanner.chief.metrics.MetricsRegistry;
+import ca.caseybanner.chief.util.CircuitBreaker;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An external service that commands call over HTTP, declared through HttpService.
+ * <p/>
+ * Requests to the service's host go through a circuit breaker, so a service that keeps failing
+ * is left alone for a while instead of every command waiting for it to time out, and a bulkhead,
+ * so a slow service can't hold more than a few threads at once. A request to a full bulkhead
+ * waits briefly for a place. Requests that are refused fail with an UpstreamUnavailableException.
+ */
+public class Upstream {
+
+	private final String host;
+	private final String name;
+	private final int maxConcurrent;
+	private final long waitMillis;
+	private final CircuitBreaker breaker;
+	private final Semaphore bulkhead;
+	private final Counter openRejections;
+	private final Counter bulkheadRejections;
+
+	/**
+	 * Constructor
+	 *
+	 * @param host             host name requests are sent to
+	 * @param name             name of the service to show users, like "the LCBO API"
+	 * @param failureThreshold consecutive failures that open the breaker
+	 * @param openMillis       milliseconds the breaker stays open before a probe is let through
+	 * @param maxConcurrent    most requests in flight at once
+	 * @param waitMillis       milliseconds a request waits for a place when maxConcurrent are in flight
+	 * @param metrics          registry to record the breaker and bulkhead into
+	 */
+	Upstream(String host, String name, int failureThreshold, long openMillis, int maxConcurrent,
+			long waitMillis, MetricsRegistry metrics) {
+
+		if (maxConcurrent < 1) {
+			throw new IllegalArgumentException("Must allow at least 1 concurrent request");
+		}
+
+		this.host = host;
+		this.name = name;
+		this.maxConcurrent = maxConcurrent;
+		this.waitMillis = waitMillis;
+		this.breaker = new CircuitBreaker(failureThreshold, openMillis, TimeUnit.MILLISECONDS);
+		this.bulkhead = new Semaphore(maxConcurrent);
+
+		openRejections = metrics.counter(
+				"chief_http_rejected_total", "HTTP requests refused without being sent",
+				"host", host, "reason", "open");
+		bulkheadRejections = metrics.counter(
+				"chief_http_rejected_total", "HTTP requests refused without being sent",
+				"host", host, "reason", "bulkhead");
+		metrics.gauge("chief_http_breaker_state", "Circuit breaker state, 0 closed, 1 half-open, 2 open",
+				() -> breaker.getState().ordinal(), "host", host);
+		metrics.gauge("chief_http_bulkhead_in_use", "HTTP requests in flight against the bulkhead limit",
+				() -> maxConcurrent - bulkhead.availablePermits(), "host", host);
+
+	}
+
+	/**
+	 * Getter for the host
+	 *
+	 * @return host name
+	 */
+	public String getHost() {
+		return host;
+	}
+
+	/**
+	 * Getter for the breaker state
+	 *
+	 * @return current state
+	 */
+	public CircuitBreaker.State getState() {
+		return breaker.getState();
+	}
+
+	/**
+	 * Check whether a request would be let through the breaker right now. A full bulkhead
+	 * doesn't count, requests wait for a place in it.
+	 *
+	 * @return false while the breaker is open or probing
+	 */
+	public boolean isAvailable() {
+		return breaker.isCallPermitted();
+	}
+
+	/**
+	 * A reply for users whose request was refused
+	 *
+	 * @return a message saying the service is unavailable and when to try again
+	 */
+	public String getUnavailableMessage() {
+
+		long retrySeconds = TimeUnit.MILLISECONDS.toSeconds(breaker.getRetryAfterMillis() + 999);
+		if (retrySeconds > 0) {
+			return "Sorry, " + name + " isn't responding right now, try again in " + retrySeconds +
+					(retrySeconds == 1 ? " second." : " seconds.");
+		}
+
+		return "Sorry, " + name + " is busy right now, try again in a moment.";
+
+	}
+
+	/**
+	 * Take a place in the bulkhead and pass the breaker, must be followed by release
+	 *
+	 * @return the breaker ticket to pass to release
+	 * @throws UpstreamUnavailableException if the request must not be sent
+	 */
+	long acquire() throws UpstreamUnavailableException, InterruptedIOException {
+
+		try {
+			if (!bulkhead.tryAcquire(waitMillis, TimeUnit.MILLISECONDS)) {
+				bulkheadRejections.increment();
+				throw new UpstreamUnavailableException(this,
+						host + " still had " + maxConcurrent + " requests in flight after " + waitMillis + "ms");
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted waiting for a request to " + host);
+		}
+
+		long ticket = breaker.tryAcquire();
+		if (ticket == CircuitBreaker.REFUSED) {
+			bulkhead.release();
+			openRejections.increment();
+			throw new UpstreamUnavailableException(this, "Circuit breaker for " + host + " is open");
+		}
+
+		return ticket;
+
+	}
+
+	/**
+	 * Give back the place taken by acquire and report how the request went
+	 *
+	 * @param ticket the breaker ticket acquire returned
+	 * @param failed true if the request failed in a way that counts against the service
+	 */
+	void release(long ticket, boolean failed) {
+
+		if (failed) {
+			breaker.recordFailure(ticket);
+		} else {
+			breaker.recordSuccess(ticket);
+		}
+
+		bulkhead.release();
+
+	}
+
+}
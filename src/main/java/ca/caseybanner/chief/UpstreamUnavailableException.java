@@ -0,0 +1,29 @@
+package ca.caseybanner.chief;
+
+import java.io.IOException;
+
+/**
+ * Thrown when a request to an upstream service isn't sent, because its circuit breaker is open
+ * or it already has as many requests in flight as its bulkhead allows.
+ */
+public class UpstreamUnavailableException extends IOException {
+
+	private static final long serialVersionUID = 1L;
+
+	private final transient Upstream upstream;
+
+	public UpstreamUnavailableException(Upstream upstream, String message) {
+		super(message);
+		this.upstream = upstream;
+	}
+
+	/**
+	 * Getter for the upstream
+	 *
+	 * @return the upstream that refused the request
+	 */
+	public Upstream getUpstream() {
+		return upstream;
+	}
+
+}
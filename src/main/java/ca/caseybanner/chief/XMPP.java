@@ -23,7 +23,8 @@ class XMPP {
 
 		// The spec says the only / can be after the domain
 
-		return jid.split("/")[0];
+		int slash = jid.indexOf('/');
+		return slash < 0 ? jid : jid.substring(0, slash);
 
 	}
 
@@ -7,27 +7,62 @@
 package ca.caseybanner.chief.commands;
 
 import ca.caseybanner.chief.Bot;
+import ca.caseybanner.chief.Command;
+import ca.caseybanner.chief.CommandRegistry;
+import ca.caseybanner.chief.CommandRouter;
 import ca.caseybanner.chief.SynchronousCommand;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 import java.util.Optional;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 /**
+ * Shows usage information for every command, one page at a time, or for a single command.
+ * <p/>
+ * The help text is rendered once per command registry version and reused until plugins are reloaded.
+ *
  * @author kcbanner
  */
 public class HelpCommand extends SynchronousCommand {
 
-	private static final Pattern PATTERN = Pattern.compile("^help");
+	private static final Pattern PATTERN = Pattern.compile("^help(?:\\s+(?<topic>\\S+))?\\s*$");
+	private static final Pattern PAGE_PATTERN = Pattern.compile("\\d{1,9}");
 	private static final String USAGE_HEADER = "Chief Bot Usage:\n";
 
+	/**
+	 * Help rendered for one version of the command registry
+	 */
+	private static class HelpIndex {
+
+		private final long version;
+		private final List<String> pages;
+		private final Map<String, String> usageByKeyword;
+
+		HelpIndex(long version, List<String> pages, Map<String, String> usageByKeyword) {
+			this.version = version;
+			this.pages = pages;
+			this.usageByKeyword = usageByKeyword;
+		}
+
+	}
+
+	private volatile HelpIndex index;
+	private volatile int pageSize;
+
 	public HelpCommand(Bot bot) {
 		super(bot);
+		pageSize = 20;
 	}
 
 	@Override
 	public String getUsage() {
-		return "help - displays usage information";
+		return "help [command|page] - displays usage information, for one command or one page of commands";
 	}
 
 	@Override
@@ -35,18 +70,121 @@ public class HelpCommand extends SynchronousCommand {
 		return PATTERN;
 	}
 
+	@Override
+	public CostClass getCostClass() {
+		return CostClass.LOCAL;
+	}
+
+	/**
+	 * Setter for pageSize
+	 *
+	 * @param pageSize number of commands listed on each page of help
+	 */
+	public void setPageSize(int pageSize) {
+		if (pageSize < 1) {
+			throw new IllegalArgumentException("Must be at least 1");
+		}
+		this.pageSize = pageSize;
+		this.index = null;
+	}
+
 	@Override
 	public Optional<String> processMessage(
 			String from, String message, Matcher matcher, boolean fromRoom) {
-		final StringBuilder builder = new StringBuilder(USAGE_HEADER);
 
-		getBot().getCommands().stream().forEach(command -> {
-			builder.append(command.getUsage());
-			builder.append("\n");
-		});
+		HelpIndex help = getIndex();
+		String topic = matcher.group("topic");
+
+		if (topic == null) {
+			return Optional.of(help.pages.get(0));
+		}
+
+		if (PAGE_PATTERN.matcher(topic).matches()) {
+			int page = Integer.parseInt(topic);
+			if (page < 1 || page > help.pages.size()) {
+				return Optional.of("There " + (help.pages.size() == 1 ? "is 1 page" : "are " + help.pages.size() + " pages")
+						+ " of help.");
+			}
+			return Optional.of(help.pages.get(page - 1));
+		}
+
+		String usage = help.usageByKeyword.get(topic.toLowerCase(Locale.ROOT));
+		if (usage == null) {
+			return Optional.of("I don't know a command called " + topic + ". Type `help` for a list of commands.");
+		}
+
+		return Optional.of(usage);
 
-		return Optional.of(builder.toString());
 	}
 
+	/**
+	 * Get the help for the current command registry, rendering it if the registry has changed
+	 *
+	 * @return rendered help
+	 */
+	private HelpIndex getIndex() {
+
+		CommandRegistry registry = getBot().getCommandRegistry();
+		HelpIndex help = index;
+
+		// Rendering twice in a race is harmless, both renders are identical
+
+		if (help == null || help.version != registry.getVersion()) {
+			help = render(registry);
+			index = help;
+		}
+
+		return help;
+
+	}
+
+	/**
+	 * Render the paged help and the per-command index
+	 *
+	 * @param registry the registry to render help for
+	 * @return rendered help
+	 */
+	private HelpIndex render(CommandRegistry registry) {
+
+		List<Command> commands = registry.getCommands();
+		int size = pageSize;
+		int pageCount = Math.max(1, (commands.size() + size - 1) / size);
+
+		List<String> pages = new ArrayList<>(pageCount);
+		Map<String, String> usageByKeyword = new HashMap<>();
+
+		for (int page = 0; page < pageCount; page++) {
+			StringBuilder builder = new StringBuilder(USAGE_HEADER);
+
+			int end = Math.min(commands.size(), (page + 1) * size);
+			for (int i = page * size; i < end; i++) {
+				builder.append(commands.get(i).getUsage());
+				builder.append("\n");
+			}
+
+			if (pageCount > 1) {
+				builder.append("Page ").append(page + 1).append(" of ").append(pageCount);
+				if (page + 1 < pageCount) {
+					builder.append(", type `help ").append(page + 2).append("` for more");
+				}
+				builder.append("\n");
+			}
+
+			pages.add(builder.toString());
+		}
+
+		// Commands are looked up by the literal keyword their pattern starts with,
+		// the first command with a keyword wins just like when routing
+
+		for (Command command : commands) {
+			String keyword = CommandRouter.literalPrefix(command.getPattern());
+			if (!keyword.isEmpty()) {
+				usageByKeyword.putIfAbsent(keyword.toLowerCase(Locale.ROOT), command.getUsage());
+			}
+		}
+
+		return new HelpIndex(registry.getVersion(), Collections.unmodifiableList(pages), usageByKeyword);
+
+	}
 
 }
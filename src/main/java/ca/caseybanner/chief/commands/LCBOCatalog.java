@@ -0,0 +1,119 @@
+package ca.caseybanner.chief.commands;
+
+import ca.caseybanner.chief.commands.LCBOCommand.LCBOProduct;
+import ca.caseybanner.chief.commands.LCBOCommand.LCBOStore;
+import ca.caseybanner.chief.util.TextIndex;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * An immutable, indexed snapshot of the LCBO products and stores kept by the mirror.
+ * <p/>
+ * Products are searched by name and producer, and stores by name and address, through a
+ * TextIndex so queries tolerate prefixes and typos. Stores can also be found by location.
+ */
+class LCBOCatalog {
+
+	private final List<LCBOProduct> products;
+	private final List<LCBOStore> stores;
+	private final TextIndex productIndex;
+	private final TextIndex storeIndex;
+	private final LCBOStoreLocator storeLocator;
+
+	/**
+	 * Build a catalog
+	 *
+	 * @param products live products
+	 * @param stores   live stores
+	 */
+	LCBOCatalog(List<LCBOProduct> products, List<LCBOStore> stores) {
+
+		this.products = Collections.unmodifiableList(new ArrayList<>(products));
+		this.stores = Collections.unmodifiableList(new ArrayList<>(stores));
+
+		List<String> productText = new ArrayList<>(products.size());
+		for (LCBOProduct product : products) {
+			productText.add(join(product.name, product.producer_name));
+		}
+
+		List<String> storeText = new ArrayList<>(stores.size());
+		for (LCBOStore store : stores) {
+			storeText.add(join(store.name, store.address_line_1, store.address_line_2, store.city));
+		}
+
+		this.productIndex = new TextIndex(productText);
+		this.storeIndex = new TextIndex(storeText);
+		this.storeLocator = new LCBOStoreLocator(stores);
+
+	}
+
+	List<LCBOProduct> getProducts() {
+		return products;
+	}
+
+	List<LCBOStore> getStores() {
+		return stores;
+	}
+
+	LCBOStoreLocator getStoreLocator() {
+		return storeLocator;
+	}
+
+	/**
+	 * Find products matching a query
+	 *
+	 * @param query the query
+	 * @param limit maximum number of products to return
+	 * @return matching products, best match first
+	 */
+	List<LCBOProduct> searchProducts(String query, int limit) {
+
+		List<LCBOProduct> results = new ArrayList<>();
+		for (int i : productIndex.search(query, limit)) {
+			results.add(products.get(i));
+		}
+
+		return results;
+
+	}
+
+	/**
+	 * Find stores matching a query
+	 *
+	 * @param query the query
+	 * @param limit maximum number of stores to return
+	 * @return matching stores, best match first
+	 */
+	List<LCBOStore> searchStores(String query, int limit) {
+
+		List<LCBOStore> results = new ArrayList<>();
+		for (int i : storeIndex.search(query, limit)) {
+			results.add(stores.get(i));
+		}
+
+		return results;
+
+	}
+
+	/**
+	 * Join the fields that are present with spaces
+	 */
+	private static String join(String... fields) {
+
+		StringBuilder builder = new StringBuilder();
+		for (String field : fields) {
+			if (field != null && !field.isEmpty()) {
+				if (builder.length() > 0) {
+					builder.append(' ');
+				}
+				builder.append(field);
+			}
+		}
+
+		return builder.toString();
+
+	}
+
+}
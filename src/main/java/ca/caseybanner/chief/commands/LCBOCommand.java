@@ -2,13 +2,18 @@ package ca.caseybanner.chief.commands;
 
 import ca.caseybanner.chief.Bot;
 import ca.caseybanner.chief.SynchronousCommand;
+import ca.caseybanner.chief.SynchronousExecutor;
+import ca.caseybanner.chief.Upstream;
+import ca.caseybanner.chief.UpstreamUnavailableException;
+import ca.caseybanner.chief.metrics.Counter;
+import ca.caseybanner.chief.util.ExpiringCache;
+import ca.caseybanner.chief.util.JsonCacheCodec;
+import ca.caseybanner.chief.util.SingleFlight;
 import com.google.api.client.http.GenericUrl;
 import com.google.api.client.http.HttpRequest;
 import com.google.api.client.http.HttpRequestFactory;
 import com.google.api.client.http.HttpResponse;
-import com.google.api.client.http.javanet.NetHttpTransport;
-import com.google.api.client.json.JsonObjectParser;
-import com.google.api.client.json.jackson2.JacksonFactory;
+import com.google.api.client.json.JsonFactory;
 import com.google.api.client.util.Data;
 import com.google.api.client.util.Key;
 import org.apache.logging.log4j.LogManager;
@@ -16,13 +21,25 @@ import org.apache.logging.log4j.Logger;
 
 import java.io.IOException;
 import java.net.URLEncoder;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 /**
  * A command to interface with the LCBO API
+ * <p/>
+ * Optionally the product and store catalog is mirrored locally and product searches are answered
+ * from the mirror, with the API only used when the mirror has no match.
  *
  * @author kcbanner
  */
@@ -31,16 +48,89 @@ public class LCBOCommand extends SynchronousCommand {
 	private static final Logger logger = LogManager.getLogger(LCBOCommand.class);
 
 	private static final String BASE_URL = "http://lcboapi.com";
+	private static final String API_HOST = "lcboapi.com";
 	private static final Pattern PATTERN = Pattern.compile(
 			"^lcbo\\s+((?<picture>picture)|(?<store>store)|(?<taste>taste))?(?<query>.+)$");
 
 	private static final Pattern STORE_QUERY_PATTERN = Pattern.compile(
 			"\\s+at\\s+(?<storequery>.*)$");
 
+	private static final Pattern NEAR_QUERY_PATTERN = Pattern.compile(
+			"\\s+near\\s+(?<location>.+)$");
+
+	private static final Pattern WHITESPACE_PATTERN = Pattern.compile("\\s+");
+
 	private static final int MAX_RESULTS = 1;
+	private static final int DEFAULT_MAX_STORES = 10;
+	private static final int DEFAULT_NEAR_STORES = 5;
+
+	/**
+	 * Stores per page when reading a product's whole inventory, and the most pages read
+	 */
+	private static final int INVENTORY_PAGE_SIZE = 100;
+	private static final int MAX_INVENTORY_PAGES = 20;
+
+	/**
+	 * How long the store list used for `near` is kept when the mirror isn't loaded, and the most
+	 * pages read when loading it
+	 */
+	private static final long STORE_LIST_TTL_MILLIS = TimeUnit.DAYS.toMillis(1);
+	private static final int MAX_STORE_LIST_PAGES = 20;
+	private static final long DEFAULT_MIRROR_INTERVAL_SECONDS = 3600;
+
+	/**
+	 * Most products a mirror search returns
+	 */
+	private static final int MIRROR_SEARCH_LIMIT = 100;
+
+	private static final long DEFAULT_CACHE_TTL_SECONDS = 600;
+	private static final int DEFAULT_CACHE_MAX_ENTRIES = 1000;
+	private static final long DEFAULT_CACHE_MAX_BYTES = 8 * 1024 * 1024;
 
-	private final JacksonFactory jsonFactory;
 	private final HttpRequestFactory requestFactory;
+	private final Upstream api;
+
+	/**
+	 * Product searches keyed by normalized query
+	 */
+	private final ExpiringCache<String, LCBOProductResponse> productCache;
+
+	/**
+	 * Store searches keyed by product id and normalized store query
+	 */
+	private final ExpiringCache<String, LCBOStoreResponse> storeCache;
+
+	/**
+	 * Store quantities of a product keyed by product id
+	 */
+	private final ExpiringCache<String, LCBOInventory> inventoryCache;
+
+	/**
+	 * Coalesces identical product and store searches that miss the cache at the same time
+	 */
+	private final SingleFlight<String, LCBOProductResponse> productFlight;
+	private final SingleFlight<String, LCBOStoreResponse> storeFlight;
+	private final SingleFlight<String, LCBOInventory> inventoryFlight;
+	private final SingleFlight<String, LCBOStoreLocator> storeListFlight;
+
+	/**
+	 * Locator over every store, used for `near` when the mirror isn't loaded
+	 */
+	private volatile LCBOStoreLocator storeListLocator;
+	private volatile long storeListLoadedMillis;
+
+	private volatile int maxStores;
+	private volatile int nearStores;
+
+	private volatile boolean mirrorEnabled;
+	private volatile long mirrorIntervalSeconds;
+	private volatile String mirrorFile;
+	private volatile String mirrorFixture;
+	private volatile boolean mirrorSettingsChanged;
+	private volatile LCBOMirror mirror;
+	private ScheduledExecutorService mirrorScheduler;
+	private final Counter mirrorHits;
+	private final Counter mirrorMisses;
 
 	public static class LCBOPager {
 
@@ -137,42 +227,48 @@ public class LCBOCommand extends SynchronousCommand {
 		@Key
 		String style;
 
+		@Key
+		String updated_at;
+
+		@Key
+		Boolean is_dead;
+
 		@Override
 		public String toString() {
 
 			StringBuilder builder = new StringBuilder(name);
 			builder.append(":\n");
 
-			if (!Data.isNull(origin))
+			if (isPresent(origin))
 				builder.append("  From: ").append(origin).append("\n");
 
-			if (!Data.isNull(primary_category)) {
+			if (isPresent(primary_category)) {
 				builder.append("  Style: ").append(primary_category);
 
-				if (!Data.isNull(secondary_category)) {
+				if (isPresent(secondary_category)) {
 					builder.append(" - ").append(secondary_category);
 				}
 
-				if (!Data.isNull(style)) {
+				if (isPresent(style)) {
 					builder.append(" - ").append(style);
 				}
 
 				builder.append("\n");
 			}
 
-			if (!Data.isNull(alcohol_content)) {
+			if (isPresent(alcohol_content)) {
 				builder.append("  Alchohol content: ")
 						.append((float) alcohol_content / 100.0)
 						.append("%\n");
 			}
 
-			if (!Data.isNull(packaging))
+			if (isPresent(packaging))
 				builder.append("  Package: ").append(packaging).append("\n");
 
-			if (!Data.isNull(price_in_cents)) {
+			if (isPresent(price_in_cents)) {
 				builder.append("  Price: $").append(price_in_cents / 100);
 
-				if (!Data.isNull(regular_price_in_cents) &&
+				if (isPresent(regular_price_in_cents) &&
 						regular_price_in_cents.compareTo(price_in_cents) != 0) {
 
 					builder.append(" (regular $")
@@ -183,14 +279,14 @@ public class LCBOCommand extends SynchronousCommand {
 				builder.append("\n");
 			}
 
-			if (!Data.isNull(producer_name))
+			if (isPresent(producer_name))
 				builder.append("  Produced by: ").append(producer_name).append("\n");
 
 
-			if (!Data.isNull(inventory_count)) {
+			if (isPresent(inventory_count)) {
 				builder.append("  Total Inventory: ").append(inventory_count).append(" units");
 
-				if (!Data.isNull(inventory_volume_in_milliliters)) {
+				if (isPresent(inventory_volume_in_milliliters)) {
 					builder.append(" (")
 							.append(inventory_volume_in_milliliters / 1000)
 							.append(" litres)");
@@ -207,11 +303,11 @@ public class LCBOCommand extends SynchronousCommand {
 		}
 
 		public boolean hasNotes() {
-			return !Data.isNull(tasting_note);
+			return isPresent(tasting_note);
 		}
 
 		public boolean hasServingSuggestion() {
-			return !Data.isNull(serving_suggestion);
+			return isPresent(serving_suggestion);
 		}
 
 	}
@@ -237,6 +333,9 @@ public class LCBOCommand extends SynchronousCommand {
 
 	public static class LCBOStore {
 
+		@Key
+		Integer id;
+
 		@Key
 		String name;
 
@@ -252,9 +351,24 @@ public class LCBOCommand extends SynchronousCommand {
 		@Key
 		String telephone;
 
+		@Key
+		String postal_code;
+
+		@Key
+		Double latitude;
+
+		@Key
+		Double longitude;
+
 		@Key
 		Integer quantity;
 
+		@Key
+		String updated_at;
+
+		@Key
+		Boolean is_dead;
+
 	}
 
 	public static class LCBOStoreResponse {
@@ -276,13 +390,282 @@ public class LCBOCommand extends SynchronousCommand {
 
 	}
 
+	/**
+	 * How many of a product each store has, read from every page of the product's store list
+	 */
+	public static class LCBOInventory {
+
+		/**
+		 * Quantity by store id, only stores with stock
+		 */
+		@Key
+		Map<String, Integer> quantities;
+
+		/**
+		 * False if the list was cut short, because a page failed or there were too many pages
+		 */
+		@Key
+		boolean complete;
+
+		@Key
+		int pages;
+
+	}
+
 	public LCBOCommand(Bot bot) {
 
 		super(bot);
 
-		jsonFactory = new JacksonFactory();
-		requestFactory = new NetHttpTransport().createRequestFactory(
-				(HttpRequest request) -> request.setParser(new JsonObjectParser(jsonFactory)));
+		requestFactory = bot.getHttpService().getRequestFactory();
+		api = bot.getHttpService().declareUpstream(API_HOST, "the LCBO API");
+
+		productCache = new ExpiringCache<>(
+				TimeUnit.SECONDS.toMillis(DEFAULT_CACHE_TTL_SECONDS),
+				DEFAULT_CACHE_MAX_ENTRIES,
+				DEFAULT_CACHE_MAX_BYTES,
+				LCBOCommand::estimateSize,
+				this::refreshInBackground);
+
+		storeCache = new ExpiringCache<>(
+				TimeUnit.SECONDS.toMillis(DEFAULT_CACHE_TTL_SECONDS),
+				DEFAULT_CACHE_MAX_ENTRIES,
+				DEFAULT_CACHE_MAX_BYTES,
+				LCBOCommand::estimateSize,
+				this::refreshInBackground);
+
+		inventoryCache = new ExpiringCache<>(
+				TimeUnit.SECONDS.toMillis(DEFAULT_CACHE_TTL_SECONDS),
+				DEFAULT_CACHE_MAX_ENTRIES,
+				DEFAULT_CACHE_MAX_BYTES,
+				inventory -> 64 + 64 * inventory.quantities.size(),
+				this::refreshInBackground);
+
+		productFlight = new SingleFlight<>();
+		storeFlight = new SingleFlight<>();
+		inventoryFlight = new SingleFlight<>();
+		storeListFlight = new SingleFlight<>();
+		maxStores = DEFAULT_MAX_STORES;
+		nearStores = DEFAULT_NEAR_STORES;
+		mirrorIntervalSeconds = DEFAULT_MIRROR_INTERVAL_SECONDS;
+
+		productCache.registerMetrics(bot.getMetrics(), "lcbo_products");
+		storeCache.registerMetrics(bot.getMetrics(), "lcbo_stores");
+		inventoryCache.registerMetrics(bot.getMetrics(), "lcbo_inventory");
+
+		mirrorHits = bot.getMetrics().counter(
+				"chief_lcbo_mirror_searches_total", "Product searches made while the LCBO mirror is loaded",
+				"result", "hit");
+		mirrorMisses = bot.getMetrics().counter(
+				"chief_lcbo_mirror_searches_total", "Product searches made while the LCBO mirror is loaded",
+				"result", "miss");
+		bot.getMetrics().gauge("chief_lcbo_mirror_products", "Products in the LCBO mirror", () -> {
+			LCBOCatalog catalog = mirror == null ? null : mirror.getCatalog();
+			return catalog == null ? 0 : catalog.getProducts().size();
+		});
+		bot.getMetrics().gauge("chief_lcbo_mirror_stores", "Stores in the LCBO mirror", () -> {
+			LCBOCatalog catalog = mirror == null ? null : mirror.getCatalog();
+			return catalog == null ? 0 : catalog.getStores().size();
+		});
+
+		// Start out with whatever was cached before the last restart
+
+		JsonFactory jsonFactory = bot.getHttpService().getJsonFactory();
+		bot.getDiskCache("lcbo_products").ifPresent(disk -> productCache.persistTo(
+				disk, Function.identity(), new JsonCacheCodec<>(jsonFactory, LCBOProductResponse.class)));
+		bot.getDiskCache("lcbo_stores").ifPresent(disk -> storeCache.persistTo(
+				disk, Function.identity(), new JsonCacheCodec<>(jsonFactory, LCBOStoreResponse.class)));
+		bot.getDiskCache("lcbo_inventory").ifPresent(disk -> inventoryCache.persistTo(
+				disk, Function.identity(), new JsonCacheCodec<>(jsonFactory, LCBOInventory.class)));
+	}
+
+	/**
+	 * Setter for cacheTtl
+	 *
+	 * @param cacheTtl seconds a cached API response stays fresh
+	 */
+	public void setCacheTtl(long cacheTtl) {
+		requireNonNegative(cacheTtl);
+		productCache.setTtl(cacheTtl, TimeUnit.SECONDS);
+		storeCache.setTtl(cacheTtl, TimeUnit.SECONDS);
+		inventoryCache.setTtl(cacheTtl, TimeUnit.SECONDS);
+	}
+
+	/**
+	 * Setter for cacheStaleWhileRevalidate
+	 *
+	 * @param cacheStaleWhileRevalidate seconds an expired response is still served while it is refreshed
+	 */
+	public void setCacheStaleWhileRevalidate(long cacheStaleWhileRevalidate) {
+		requireNonNegative(cacheStaleWhileRevalidate);
+		productCache.setStaleWhileRevalidate(cacheStaleWhileRevalidate, TimeUnit.SECONDS);
+		storeCache.setStaleWhileRevalidate(cacheStaleWhileRevalidate, TimeUnit.SECONDS);
+		inventoryCache.setStaleWhileRevalidate(cacheStaleWhileRevalidate, TimeUnit.SECONDS);
+	}
+
+	/**
+	 * Setter for cacheMaxEntries
+	 *
+	 * @param cacheMaxEntries maximum responses kept in each of the product, store and inventory caches
+	 */
+	public void setCacheMaxEntries(int cacheMaxEntries) {
+		requireNonNegative(cacheMaxEntries);
+		productCache.setMaxEntries(cacheMaxEntries);
+		storeCache.setMaxEntries(cacheMaxEntries);
+		inventoryCache.setMaxEntries(cacheMaxEntries);
+	}
+
+	/**
+	 * Setter for cacheMaxBytes
+	 *
+	 * @param cacheMaxBytes approximate maximum bytes kept in each of the product, store and inventory caches, like 8MB
+	 */
+	public void setCacheMaxBytes(long cacheMaxBytes) {
+		requireNonNegative(cacheMaxBytes);
+		productCache.setMaxBytes(cacheMaxBytes);
+		storeCache.setMaxBytes(cacheMaxBytes);
+		inventoryCache.setMaxBytes(cacheMaxBytes);
+	}
+
+	/**
+	 * Setter for maxStores
+	 *
+	 * @param maxStores how many stores with the most stock to list, applies to store searches not yet cached
+	 */
+	public void setMaxStores(int maxStores) {
+		if (maxStores < 1) {
+			throw new IllegalArgumentException("Must be at least 1");
+		}
+		this.maxStores = maxStores;
+	}
+
+	/**
+	 * Setter for nearStores
+	 *
+	 * @param nearStores how many of the closest stores with stock to list for `lcbo store ... near`
+	 */
+	public void setNearStores(int nearStores) {
+		if (nearStores < 1) {
+			throw new IllegalArgumentException("Must be at least 1");
+		}
+		this.nearStores = nearStores;
+	}
+
+	/**
+	 * Setter for mirror
+	 *
+	 * @param mirror true to keep a local copy of the catalog and search products in it
+	 */
+	public void setMirror(boolean mirror) {
+		this.mirrorEnabled = mirror;
+		this.mirrorSettingsChanged = true;
+	}
+
+	/**
+	 * Setter for mirrorInterval
+	 *
+	 * @param mirrorInterval seconds between incremental syncs of the mirror, 0 to only sync at startup
+	 */
+	public void setMirrorInterval(long mirrorInterval) {
+		requireNonNegative(mirrorInterval);
+		this.mirrorIntervalSeconds = mirrorInterval;
+		this.mirrorSettingsChanged = true;
+	}
+
+	/**
+	 * Setter for mirrorFile
+	 *
+	 * @param mirrorFile where to save the mirror between runs, empty to keep it in memory only
+	 */
+	public void setMirrorFile(String mirrorFile) {
+		this.mirrorFile = mirrorFile.isEmpty() ? null : mirrorFile;
+		this.mirrorSettingsChanged = true;
+	}
+
+	/**
+	 * Setter for mirrorFixture
+	 *
+	 * @param mirrorFixture directory of JSON pages to mirror instead of the API, empty to use the API
+	 */
+	public void setMirrorFixture(String mirrorFixture) {
+		this.mirrorFixture = mirrorFixture.isEmpty() ? null : mirrorFixture;
+		this.mirrorSettingsChanged = true;
+	}
+
+	@Override
+	public void configurationComplete() throws ConfigurationException {
+		startMirror();
+	}
+
+	@Override
+	public synchronized void configurationChanged() {
+
+		// The mirror is rebuilt from its new settings, searches use the API until it is ready
+
+		if (mirrorSettingsChanged) {
+			stopMirror();
+			startMirror();
+		}
+
+	}
+
+	@Override
+	public void shutdown() {
+		stopMirror();
+	}
+
+	private synchronized void startMirror() {
+
+		mirrorSettingsChanged = false;
+
+		if (!mirrorEnabled) {
+			return;
+		}
+
+		LCBOSource source = mirrorFixture != null ?
+				new LCBOSource.Fixture(Paths.get(mirrorFixture)) :
+				new LCBOSource.Api(BASE_URL, getBot().getHttpService());
+
+		LCBOMirror newMirror = new LCBOMirror(
+				source,
+				mirrorFile == null ? null : Paths.get(mirrorFile),
+				getBot().getHttpService().getJsonFactory());
+		mirror = newMirror;
+
+		// The saved snapshot is loaded and the first sync runs in the background,
+		// searches use the API until the mirror is ready
+
+		mirrorScheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "chief-lcbo-mirror");
+			thread.setDaemon(true);
+			return thread;
+		});
+		mirrorScheduler.execute(() -> {
+			newMirror.loadSnapshot();
+			newMirror.sync();
+		});
+
+		if (mirrorIntervalSeconds > 0) {
+			mirrorScheduler.scheduleWithFixedDelay(
+					newMirror::sync, mirrorIntervalSeconds, mirrorIntervalSeconds, TimeUnit.SECONDS);
+		}
+
+	}
+
+	private synchronized void stopMirror() {
+
+		if (mirrorScheduler != null) {
+			mirrorScheduler.shutdownNow();
+			mirrorScheduler = null;
+		}
+
+		mirror = null;
+
+	}
+
+	private static void requireNonNegative(long value) {
+		if (value < 0) {
+			throw new IllegalArgumentException("Must not be negative");
+		}
 	}
 
 	@Override
@@ -290,7 +673,8 @@ public class LCBOCommand extends SynchronousCommand {
 		return "lcbo <query> - search for <query>\n" +
 				"lcbo picture <query> - show a picture of <query>\n" +
 				"lcbo taste <query> - tasting notes for <query>\n" +
-				"lcbo store <query> [at <storequery>] - search stores that have <query>. Optionally narrow down the stores with <storequery>.";
+				"lcbo store <query> [at <storequery>] - search stores that have <query>. Optionally narrow down the stores with <storequery>.\n" +
+				"lcbo store <query> near <lat,lng|postal code> - the closest stores that have <query>.";
 	}
 
 	@Override
@@ -298,25 +682,317 @@ public class LCBOCommand extends SynchronousCommand {
 		return PATTERN;
 	}
 
+	/**
+	 * Normalize a query so equivalent queries share a cache entry
+	 *
+	 * @param query plaintext query
+	 * @return trimmed, lowercased query with whitespace collapsed
+	 */
+	private static String normalize(String query) {
+		return WHITESPACE_PATTERN.matcher(query.trim()).replaceAll(" ").toLowerCase(Locale.ROOT);
+	}
+
+	/**
+	 * Run a cache refresh off the calling thread
+	 *
+	 * @param refresh the refresh to run
+	 */
+	private void refreshInBackground(Runnable refresh) {
+		getBot().getSynchronousExecutor().submit(SynchronousExecutor.Mode.POOL, () -> {
+			refresh.run();
+			return null;
+		});
+	}
+
 	private Optional<LCBOProductResponse> findProduct(String query) {
 
+		// The mirror answers locally when it has a match, the API is the fallback
+
+		LCBOMirror currentMirror = mirror;
+		LCBOCatalog catalog = currentMirror == null ? null : currentMirror.getCatalog();
+		if (catalog != null) {
+			List<LCBOProduct> products = catalog.searchProducts(query, MIRROR_SEARCH_LIMIT);
+			if (!products.isEmpty()) {
+				mirrorHits.increment();
+
+				LCBOProductResponse response = new LCBOProductResponse();
+				response.results = products;
+				response.pager = new LCBOPager();
+				response.pager.total_record_count = products.size();
+				return Optional.of(response);
+			}
+
+			mirrorMisses.increment();
+		}
+
+		return Optional.ofNullable(productCache.get(normalize(query),
+				key -> productFlight.executeBlocking(key, () -> fetchProduct(key))));
+
+	}
+
+	/**
+	 * Search the API for products
+	 *
+	 * @param query normalized query
+	 * @return the response, or null if the request failed
+	 */
+	private LCBOProductResponse fetchProduct(String query) {
+
 		GenericUrl url;
 
 		try {
 			url = new GenericUrl(BASE_URL + "/products" + "?q=" + URLEncoder.encode(query, "UTF-8"));
 
 			HttpRequest request = requestFactory.buildGetRequest(url);
-			HttpResponse response = request.execute();
+			HttpResponse response = getBot().getHttpService().execute(request);
 
-			return Optional.of(response.parseAs(LCBOProductResponse.class));
+			return LCBOResponseDecoder.decodeProducts(response.getContent());
+		} catch (UpstreamUnavailableException ex) {
+			logger.debug("Not querying the API: {}", ex.getMessage());
 		} catch (IOException ex) {
 			logger.error("Error making API query: {}", query, ex);
 		}
 
-		return Optional.empty();
+		return null;
 
 	}
 
+	/**
+	 * Search the API for stores carrying a product
+	 *
+	 * @param productId  the product's id
+	 * @param storeQuery optional query to narrow down the stores
+	 * @return the response, or null if the request failed
+	 */
+	private LCBOStoreResponse fetchStores(int productId, String storeQuery) {
+
+		GenericUrl url;
+
+		try {
+			String urlString = BASE_URL +
+					"/products/" + productId +
+					"/stores";
+
+			if (storeQuery != null) {
+				urlString += "?q=" + URLEncoder.encode(storeQuery, "UTF-8")
+						+ "&order=products_count.desc";
+			}
+
+			url = new GenericUrl(urlString);
+
+			HttpRequest request = requestFactory.buildGetRequest(url);
+			HttpResponse response = getBot().getHttpService().execute(request);
+
+			// Only the stores with the most stock are kept
+
+			return LCBOResponseDecoder.decodeStores(response.getContent(), maxStores);
+		} catch (UpstreamUnavailableException ex) {
+			logger.debug("Not querying the API: {}", ex.getMessage());
+		} catch (IOException ex) {
+			logger.error("Error making API query: {} {}", productId, storeQuery, ex);
+		}
+
+		return null;
+
+	}
+
+	/**
+	 * Read every store carrying a product from the API, page by page
+	 *
+	 * @param productId the product's id
+	 * @return the stores with stock, marked incomplete if it was cut short, or null if the first page failed
+	 */
+	private LCBOInventory fetchInventory(int productId) {
+
+		LCBOInventory inventory = new LCBOInventory();
+		inventory.quantities = new HashMap<>();
+
+		for (int page = 1; page <= MAX_INVENTORY_PAGES; page++) {
+			LCBOStoreResponse storeResponse;
+
+			try {
+				GenericUrl url = new GenericUrl(BASE_URL + "/products/" + productId + "/stores" +
+						"?per_page=" + INVENTORY_PAGE_SIZE + "&page=" + page);
+
+				HttpResponse response = getBot().getHttpService().execute(requestFactory.buildGetRequest(url));
+				storeResponse = LCBOResponseDecoder.decodeStores(response.getContent(), Integer.MAX_VALUE);
+			} catch (UpstreamUnavailableException ex) {
+				logger.debug("Not querying the API: {}", ex.getMessage());
+				break;
+			} catch (IOException ex) {
+				logger.error("Error making API query for page {} of the inventory of: {}", page, productId, ex);
+				break;
+			}
+
+			for (LCBOStore store : storeResponse.results) {
+				if (isPresent(store.id) && isPresent(store.quantity) && store.quantity > 0) {
+					inventory.quantities.put(store.id.toString(), store.quantity);
+				}
+			}
+			inventory.pages = page;
+
+			if (storeResponse.results.isEmpty() || storeResponse.pager == null || storeResponse.pager.is_final_page) {
+				inventory.complete = true;
+				break;
+			}
+		}
+
+		if (inventory.pages == 0) {
+			return null;
+		}
+
+		if (!inventory.complete) {
+			logger.warn("Inventory of {} is incomplete, read {} pages", productId, inventory.pages);
+		}
+
+		return inventory;
+
+	}
+
+	/**
+	 * Get the locator for `near`, built once over every store and reused between requests
+	 *
+	 * @return the mirror's locator when it is loaded, otherwise one over the store list, null if
+	 * the store list couldn't be loaded
+	 */
+	private LCBOStoreLocator getStoreLocator() {
+
+		LCBOMirror currentMirror = mirror;
+		LCBOCatalog catalog = currentMirror == null ? null : currentMirror.getCatalog();
+		if (catalog != null) {
+			return catalog.getStoreLocator();
+		}
+
+		LCBOStoreLocator locator = storeListLocator;
+		if (locator != null && System.currentTimeMillis() - storeListLoadedMillis < STORE_LIST_TTL_MILLIS) {
+			return locator;
+		}
+
+		// Keep using the old list if reloading it fails
+
+		LCBOStoreLocator loaded = storeListFlight.executeBlocking("stores", this::loadStoreList);
+		return loaded != null ? loaded : locator;
+
+	}
+
+	/**
+	 * Read every store from the API and build a locator over them
+	 *
+	 * @return the locator, or null if the store list couldn't be read
+	 */
+	private LCBOStoreLocator loadStoreList() {
+
+		LCBOSource source = new LCBOSource.Api(BASE_URL, getBot().getHttpService());
+		List<LCBOStore> stores = new ArrayList<>();
+		boolean complete = false;
+
+		try {
+			for (int page = 1; page <= MAX_STORE_LIST_PAGES; page++) {
+				LCBOStoreResponse response = source.fetchStores(page);
+				for (LCBOStore store : response.results) {
+					if (!Boolean.TRUE.equals(store.is_dead)) {
+						stores.add(store);
+					}
+				}
+
+				if (response.results.isEmpty() || response.pager == null || response.pager.is_final_page) {
+					complete = true;
+					break;
+				}
+			}
+		} catch (UpstreamUnavailableException ex) {
+			logger.debug("Not querying the API: {}", ex.getMessage());
+			return null;
+		} catch (IOException ex) {
+			logger.error("Error loading the LCBO store list", ex);
+			return null;
+		}
+
+		if (!complete) {
+			logger.warn("LCBO store list is incomplete, read {} stores", stores.size());
+		}
+
+		LCBOStoreLocator locator = new LCBOStoreLocator(stores);
+		storeListLocator = locator;
+		storeListLoadedMillis = System.currentTimeMillis();
+		return locator;
+
+	}
+
+	/**
+	 * Roughly estimate the memory used by a product response
+	 *
+	 * @param response the response
+	 * @return estimated size in bytes
+	 */
+	private static int estimateSize(LCBOProductResponse response) {
+
+		int size = 64 + sizeOf(response.message) + sizeOf(response.suggestion);
+		if (response.results != null) {
+			for (LCBOProduct product : response.results) {
+				size += estimateSize(product);
+			}
+		}
+
+		return size;
+
+	}
+
+	/**
+	 * Roughly estimate the memory used by a store response
+	 *
+	 * @param response the response
+	 * @return estimated size in bytes
+	 */
+	private static int estimateSize(LCBOStoreResponse response) {
+
+		int size = 64 + sizeOf(response.message);
+		if (response.product != null) {
+			size += estimateSize(response.product);
+		}
+
+		if (response.results != null) {
+			for (LCBOStore store : response.results) {
+				size += 64 + sizeOf(store.name) + sizeOf(store.address_line_1) +
+						sizeOf(store.address_line_2) + sizeOf(store.city) + sizeOf(store.telephone);
+			}
+		}
+
+		return size;
+
+	}
+
+	private static int estimateSize(LCBOProduct product) {
+		return 128 + sizeOf(product.name) + sizeOf(product.origin) + sizeOf(product.packaging) +
+				sizeOf(product.producer_name) + sizeOf(product.serving_suggestion) +
+				sizeOf(product.tasting_note) + sizeOf(product.image_url) + sizeOf(product.image_thumb_url) +
+				sizeOf(product.primary_category) + sizeOf(product.secondary_category) + sizeOf(product.style);
+	}
+
+	/**
+	 * Check whether a field was in the response with a value, it may be missing or a JSON null
+	 *
+	 * @param value the field's value
+	 * @return true if the field has a value
+	 */
+	private static boolean isPresent(Object value) {
+		return value != null && !Data.isNull(value);
+	}
+
+	private static int sizeOf(String value) {
+		return value == null ? 0 : 40 + 2 * value.length();
+	}
+
+	/**
+	 * The reply when an API request failed, which is only worth telling users about when the
+	 * API has been refusing requests rather than failing once
+	 *
+	 * @return optional response
+	 */
+	private Optional<String> unavailableReply() {
+		return api.isAvailable() ? Optional.empty() : Optional.of(api.getUnavailableMessage());
+	}
+
 	/**
 	 * Process a message for querying products
 	 *
@@ -330,7 +1006,7 @@ public class LCBOCommand extends SynchronousCommand {
 		Optional<LCBOProductResponse> optionalLcboResponse = findProduct(query);
 
 		if (!optionalLcboResponse.isPresent()) {
-			return Optional.empty();
+			return unavailableReply();
 		}
 
 		final StringBuilder builder = new StringBuilder();
@@ -363,9 +1039,9 @@ public class LCBOCommand extends SynchronousCommand {
 			} else if (isPicture) {
 				LCBOProduct product = lcboResponse.results.get(0);
 
-				if (!Data.isNull(product.image_url)) {
+				if (isPresent(product.image_url)) {
 					builder.append(product.image_url);
-				} else if (!Data.isNull(product.image_thumb_url)) {
+				} else if (isPresent(product.image_thumb_url)) {
 					builder.append(product.image_thumb_url);
 				} else {
 					builder.append("No picture for ").append(product.name);
@@ -395,6 +1071,11 @@ public class LCBOCommand extends SynchronousCommand {
 	 */
 	private Optional<String> processStoreMessage(String query) {
 
+		Matcher nearMatcher = NEAR_QUERY_PATTERN.matcher(query);
+		if (nearMatcher.find()) {
+			return processNearMessage(query.substring(0, nearMatcher.start()), nearMatcher.group("location"));
+		}
+
 		// Split up the query (if it included the at)
 
 		Matcher queryMatcher = STORE_QUERY_PATTERN.matcher(query);
@@ -410,7 +1091,7 @@ public class LCBOCommand extends SynchronousCommand {
 		Optional<LCBOProductResponse> optionalLcboResponse = findProduct(query);
 
 		if (!optionalLcboResponse.isPresent()) {
-			return Optional.empty();
+			return unavailableReply();
 		}
 
 		final StringBuilder builder = new StringBuilder();
@@ -419,27 +1100,24 @@ public class LCBOCommand extends SynchronousCommand {
 		if (lcboResponse.results.isEmpty()) {
 			builder.append("I couldn't find that.\n");
 		} else {
-			LCBOProduct product = lcboResponse.results.get(0);
 
-			GenericUrl url;
+			// The product search is cached, so repeated store lookups reuse the product id
 
-			try {
-				String urlString = BASE_URL +
-						"/products/" + product.id +
-						"/stores";
-
-				if (storeQuery != null) {
-					urlString += "?q=" + URLEncoder.encode(storeQuery, "UTF-8")
-							+ "&order=products_count.desc";
-				}
-
-				url = new GenericUrl(urlString);
+			LCBOProduct product = lcboResponse.results.get(0);
 
-				HttpRequest request = requestFactory.buildGetRequest(url);
-				HttpResponse response = request.execute();
+			String normalizedStoreQuery = storeQuery == null ? null : normalize(storeQuery);
+			LCBOStoreResponse storeResponse = normalizedStoreQuery == null ? null :
+					searchMirrorStores(product, normalizedStoreQuery);
 
-				LCBOStoreResponse storeResponse = response.parseAs(LCBOStoreResponse.class);
+			if (storeResponse == null) {
+				storeResponse = storeCache.get(
+						product.id + "/" + (normalizedStoreQuery == null ? "" : normalizedStoreQuery),
+						key -> storeFlight.executeBlocking(key, () -> fetchStores(product.id, normalizedStoreQuery)));
+			}
 
+			if (storeResponse == null) {
+				return unavailableReply();
+			} else {
 				if (storeResponse.results.isEmpty()) {
 					builder.append("No matching stores found.");
 				} else {
@@ -447,8 +1125,9 @@ public class LCBOCommand extends SynchronousCommand {
 
 					builder.append("Stores with ").append(product.name).append(":");
 
-					storeResponse.results.stream().sorted((a, b) -> b.quantity - a.quantity)
-							.forEach(store -> builder.append("\nStore: ")
+					// Already sorted by quantity, most first
+
+					storeResponse.results.forEach(store -> builder.append("\nStore: ")
 									.append(store.name)
 									.append(" at ")
 									.append(store.address_line_1)
@@ -459,8 +1138,6 @@ public class LCBOCommand extends SynchronousCommand {
 									.append(" has ")
 									.append(store.quantity));
 				}
-			} catch (IOException ex) {
-				logger.error("Error making API query: {}", query, ex);
 			}
 
 		}
@@ -468,6 +1145,126 @@ public class LCBOCommand extends SynchronousCommand {
 		return Optional.of(builder.toString());
 	}
 
+	/**
+	 * Narrow down the stores with a product by searching the mirror's stores, with stock from the
+	 * product's cached inventory. The inventory is only read for `near`, when it isn't cached a
+	 * single filtered API request is cheaper than reading every page of it.
+	 *
+	 * @param product    the product
+	 * @param storeQuery normalized store query
+	 * @return matching stores with the most stock, or null if the mirror isn't loaded or no
+	 * complete inventory is cached, so the API should be asked
+	 */
+	private LCBOStoreResponse searchMirrorStores(LCBOProduct product, String storeQuery) {
+
+		LCBOMirror currentMirror = mirror;
+		LCBOCatalog catalog = currentMirror == null ? null : currentMirror.getCatalog();
+		if (catalog == null) {
+			return null;
+		}
+
+		LCBOInventory inventory = inventoryCache.getIfPresent(Integer.toString(product.id));
+		if (inventory == null || !inventory.complete) {
+			return null;
+		}
+
+		// Copies, so the quantity isn't written into the shared catalog
+
+		List<LCBOStore> stocked = new ArrayList<>();
+		for (LCBOStore store : catalog.searchStores(storeQuery, catalog.getStores().size())) {
+			Integer quantity = isPresent(store.id) ? inventory.quantities.get(store.id.toString()) : null;
+			if (quantity != null) {
+				LCBOStore copy = new LCBOStore();
+				copy.id = store.id;
+				copy.name = store.name;
+				copy.address_line_1 = store.address_line_1;
+				copy.address_line_2 = store.address_line_2;
+				copy.city = store.city;
+				copy.telephone = store.telephone;
+				copy.quantity = quantity;
+				stocked.add(copy);
+			}
+		}
+
+		stocked.sort((a, b) -> Integer.compare(b.quantity, a.quantity));
+
+		LCBOStoreResponse response = new LCBOStoreResponse();
+		response.product = product;
+		response.results = stocked.size() > maxStores ? new ArrayList<>(stocked.subList(0, maxStores)) : stocked;
+		return response;
+
+	}
+
+	/**
+	 * Process a message for the closest stores with a product in stock
+	 *
+	 * @param query    plaintext product query
+	 * @param location "latitude,longitude" or a postal code prefix
+	 * @return optional response
+	 */
+	private Optional<String> processNearMessage(String query, String location) {
+
+		Optional<LCBOProductResponse> optionalLcboResponse = findProduct(query);
+
+		if (!optionalLcboResponse.isPresent()) {
+			return unavailableReply();
+		}
+
+		LCBOProductResponse lcboResponse = optionalLcboResponse.get();
+		if (lcboResponse.results.isEmpty()) {
+			return Optional.of("I couldn't find that.\n");
+		}
+
+		// The inventory is cached per product and the locator is shared, so repeated requests are local
+
+		LCBOProduct product = lcboResponse.results.get(0);
+		LCBOInventory inventory = inventoryCache.get(Integer.toString(product.id),
+				key -> inventoryFlight.executeBlocking(key, () -> fetchInventory(product.id)));
+
+		LCBOStoreLocator locator = inventory == null ? null : getStoreLocator();
+		if (locator == null) {
+			return unavailableReply();
+		}
+
+		Map<String, Integer> quantities = inventory.quantities;
+
+		Optional<double[]> point = locator.resolve(location);
+		if (!point.isPresent()) {
+			return Optional.of("I don't know where " + location.trim() +
+					" is, try a postal code like M5V or a latitude and longitude like 43.64,-79.39.");
+		}
+
+		List<LCBOStoreLocator.NearbyStore> nearby = locator.nearest(
+				point.get(), nearStores, store -> isPresent(store.id) && quantities.containsKey(store.id.toString()));
+
+		String incomplete = inventory.complete ? "" :
+				"\n(Only part of the inventory could be read, closer stores may be missing.)";
+
+		if (nearby.isEmpty()) {
+			return Optional.of("No stores near " + location.trim() + " have " + product.name + "." + incomplete);
+		}
+
+		StringBuilder builder = new StringBuilder();
+		builder.append("Stores near ").append(location.trim()).append(" with ").append(product.name).append(":");
+
+		for (LCBOStoreLocator.NearbyStore nearbyStore : nearby) {
+			LCBOStore store = nearbyStore.getStore();
+			builder.append("\nStore: ")
+					.append(store.name)
+					.append(" at ")
+					.append(store.address_line_1)
+					.append(", ")
+					.append(store.city)
+					.append(String.format(Locale.ROOT, " (%.1f km)", nearbyStore.getDistanceKm()))
+					.append(" has ")
+					.append(quantities.get(store.id.toString()));
+		}
+
+		builder.append(incomplete);
+		return Optional.of(builder.toString());
+
+	}
+
 	@Override
 	public Optional<String> processMessage(
 			String from, String message, Matcher matcher, boolean fromRoom) {
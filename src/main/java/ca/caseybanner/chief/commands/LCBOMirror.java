@@ -0,0 +1,294 @@
+package ca.caseybanner.chief.commands;
+
+import ca.caseybanner.chief.commands.LCBOCommand.LCBOPager;
+import ca.caseybanner.chief.commands.LCBOCommand.LCBOProduct;
+import ca.caseybanner.chief.commands.LCBOCommand.LCBOProductResponse;
+import ca.caseybanner.chief.commands.LCBOCommand.LCBOStore;
+import ca.caseybanner.chief.commands.LCBOCommand.LCBOStoreResponse;
+import com.google.api.client.json.JsonFactory;
+import com.google.api.client.util.Key;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A local copy of the LCBO product and store catalog.
+ * <p/>
+ * The first sync reads every page from the source. Later syncs only read pages until they reach
+ * records older than the newest one already mirrored, and merge the changes in. After each
+ * sync a new LCBOCatalog is swapped in and, if a snapshot file is configured, the mirror is saved
+ * so the next start doesn't need a full sync.
+ */
+class LCBOMirror {
+
+	private static final Logger logger = LogManager.getLogger(LCBOMirror.class);
+
+	/**
+	 * Stop paging after this many pages, in case the source never reports a final page
+	 */
+	private static final int MAX_PAGES = 1000;
+
+	/**
+	 * What is saved to the snapshot file
+	 */
+	public static class Snapshot {
+
+		@Key
+		List<LCBOProduct> products;
+
+		@Key
+		List<LCBOStore> stores;
+
+		@Key
+		String products_updated_at;
+
+		@Key
+		String stores_updated_at;
+
+	}
+
+	private final LCBOSource source;
+	private final Path snapshotFile;
+	private final JsonFactory jsonFactory;
+
+	private volatile LCBOCatalog catalog;
+
+	/**
+	 * Newest updated_at mirrored so far, guarded by the sync lock
+	 */
+	private String productsUpdatedAt;
+	private String storesUpdatedAt;
+
+	/**
+	 * Constructor
+	 *
+	 * @param source       where to read the catalog from
+	 * @param snapshotFile where to save the mirror between runs, may be null
+	 * @param jsonFactory  JSON factory for the snapshot file
+	 */
+	LCBOMirror(LCBOSource source, Path snapshotFile, JsonFactory jsonFactory) {
+		this.source = source;
+		this.snapshotFile = snapshotFile;
+		this.jsonFactory = jsonFactory;
+	}
+
+	/**
+	 * Getter for the current catalog
+	 *
+	 * @return the catalog, or null until the snapshot has been loaded or the first sync has finished
+	 */
+	LCBOCatalog getCatalog() {
+		return catalog;
+	}
+
+	/**
+	 * Load the snapshot saved by an earlier run, if there is one
+	 */
+	synchronized void loadSnapshot() {
+
+		if (snapshotFile == null || !Files.exists(snapshotFile)) {
+			return;
+		}
+
+		try (InputStream content = Files.newInputStream(snapshotFile)) {
+			Snapshot snapshot = jsonFactory.fromInputStream(content, StandardCharsets.UTF_8, Snapshot.class);
+
+			productsUpdatedAt = snapshot.products_updated_at;
+			storesUpdatedAt = snapshot.stores_updated_at;
+			catalog = new LCBOCatalog(
+					snapshot.products == null ? new ArrayList<>() : snapshot.products,
+					snapshot.stores == null ? new ArrayList<>() : snapshot.stores);
+
+			logger.info("Loaded LCBO mirror snapshot with {} products and {} stores",
+					catalog.getProducts().size(), catalog.getStores().size());
+		} catch (IOException | RuntimeException e) {
+			logger.warn("Error loading LCBO mirror snapshot {}, doing a full sync", snapshotFile, e);
+			productsUpdatedAt = null;
+			storesUpdatedAt = null;
+		}
+
+	}
+
+	/**
+	 * Bring the mirror up to date with the source
+	 *
+	 * @return true if the sync finished, false if it failed and the old catalog was kept
+	 */
+	synchronized boolean sync() {
+
+		long startMillis = System.currentTimeMillis();
+		LCBOCatalog current = catalog;
+
+		Map<Integer, LCBOProduct> products = new LinkedHashMap<>();
+		Map<Integer, LCBOStore> stores = new LinkedHashMap<>();
+		if (current != null) {
+			current.getProducts().forEach(product -> products.put(product.id, product));
+			current.getStores().forEach(store -> stores.put(store.id, store));
+		}
+
+		String newProductsUpdatedAt;
+		String newStoresUpdatedAt;
+
+		try {
+			newProductsUpdatedAt = syncProducts(products);
+			newStoresUpdatedAt = syncStores(stores);
+		} catch (IOException | RuntimeException e) {
+			logger.error("Error syncing the LCBO mirror, keeping the current catalog", e);
+			return false;
+		}
+
+		productsUpdatedAt = newProductsUpdatedAt;
+		storesUpdatedAt = newStoresUpdatedAt;
+		catalog = new LCBOCatalog(new ArrayList<>(products.values()), new ArrayList<>(stores.values()));
+
+		logger.info("Synced LCBO mirror in {}ms, {} products and {} stores",
+				System.currentTimeMillis() - startMillis, products.size(), stores.size());
+
+		saveSnapshot();
+		return true;
+
+	}
+
+	/**
+	 * Read product pages until reaching products already mirrored, merging them in
+	 *
+	 * @param products mirrored products by id, updated in place
+	 * @return the newest updated_at seen
+	 */
+	private String syncProducts(Map<Integer, LCBOProduct> products) throws IOException {
+
+		String newest = productsUpdatedAt;
+
+		for (int page = 1; page <= MAX_PAGES; page++) {
+			LCBOProductResponse response = source.fetchProducts(page);
+			boolean caughtUp = false;
+
+			for (LCBOProduct product : response.results) {
+				if (isSeen(product.updated_at, productsUpdatedAt)) {
+					caughtUp = true;
+					break;
+				}
+
+				if (Boolean.TRUE.equals(product.is_dead)) {
+					products.remove(product.id);
+				} else {
+					products.put(product.id, product);
+				}
+
+				newest = newer(newest, product.updated_at);
+			}
+
+			if (caughtUp || isFinalPage(response.pager, response.results.size())) {
+				break;
+			}
+		}
+
+		return newest;
+
+	}
+
+	/**
+	 * Read store pages until reaching stores already mirrored, merging them in
+	 *
+	 * @param stores mirrored stores by id, updated in place
+	 * @return the newest updated_at seen
+	 */
+	private String syncStores(Map<Integer, LCBOStore> stores) throws IOException {
+
+		String newest = storesUpdatedAt;
+
+		for (int page = 1; page <= MAX_PAGES; page++) {
+			LCBOStoreResponse response = source.fetchStores(page);
+			boolean caughtUp = false;
+
+			for (LCBOStore store : response.results) {
+				if (isSeen(store.updated_at, storesUpdatedAt)) {
+					caughtUp = true;
+					break;
+				}
+
+				if (store.id == null) {
+					continue;
+				}
+
+				if (Boolean.TRUE.equals(store.is_dead)) {
+					stores.remove(store.id);
+				} else {
+					stores.put(store.id, store);
+				}
+
+				newest = newer(newest, store.updated_at);
+			}
+
+			if (caughtUp || isFinalPage(response.pager, response.results.size())) {
+				break;
+			}
+		}
+
+		return newest;
+
+	}
+
+	/**
+	 * Write the mirror to the snapshot file, replacing the old one atomically
+	 */
+	private void saveSnapshot() {
+
+		if (snapshotFile == null) {
+			return;
+		}
+
+		Snapshot snapshot = new Snapshot();
+		snapshot.products = catalog.getProducts();
+		snapshot.stores = catalog.getStores();
+		snapshot.products_updated_at = productsUpdatedAt;
+		snapshot.stores_updated_at = storesUpdatedAt;
+
+		Path temporary = snapshotFile.resolveSibling(snapshotFile.getFileName() + ".tmp");
+
+		try {
+			Path directory = snapshotFile.toAbsolutePath().getParent();
+			if (directory != null) {
+				Files.createDirectories(directory);
+			}
+
+			Files.write(temporary, jsonFactory.toByteArray(snapshot));
+			Files.move(temporary, snapshotFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			logger.warn("Error saving LCBO mirror snapshot {}", snapshotFile, e);
+		}
+
+	}
+
+	/**
+	 * Timestamps are ISO-8601 in UTC, so they compare as strings. Records updated in the same
+	 * second as the newest one mirrored are read again, they may have changed after the last
+	 * sync, and merging by id replaces the old copy.
+	 */
+	private static boolean isSeen(String updatedAt, String mirroredUpTo) {
+		return mirroredUpTo != null && updatedAt != null && !updatedAt.isEmpty() &&
+				updatedAt.compareTo(mirroredUpTo) < 0;
+	}
+
+	private static String newer(String a, String b) {
+		if (b == null || b.isEmpty()) {
+			return a;
+		}
+		return a == null || b.compareTo(a) > 0 ? b : a;
+	}
+
+	private static boolean isFinalPage(LCBOPager pager, int results) {
+		return results == 0 || pager == null || pager.is_final_page;
+	}
+
+}
@@ -0,0 +1,413 @@
+package ca.caseybanner.chief.commands;
+
+import ca.caseybanner.chief.commands.LCBOCommand.LCBOPager;
+import ca.caseybanner.chief.commands.LCBOCommand.LCBOProduct;
+import ca.caseybanner.chief.commands.LCBOCommand.LCBOProductResponse;
+import ca.caseybanner.chief.commands.LCBOCommand.LCBOStore;
+import ca.caseybanner.chief.commands.LCBOCommand.LCBOStoreResponse;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.google.api.client.util.Data;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Decodes LCBO API responses with the Jackson streaming parser.
+ * <p/>
+ * Only the fields the command renders are kept, everything else is skipped without being
+ * materialized. Store lists are reduced to the stores with the most stock as they are read,
+ * so a product stocked everywhere doesn't put every store on the heap.
+ * <p/>
+ * JSON nulls are decoded to the same Data null values the reflective parser uses, so the
+ * responses render and cache exactly like before.
+ */
+final class LCBOResponseDecoder {
+
+	private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+	/**
+	 * A store along with the order it was read in, so ties keep the API's order
+	 */
+	private static class RankedStore {
+
+		private final LCBOStore store;
+		private final int quantity;
+		private final int order;
+
+		RankedStore(LCBOStore store, int order) {
+			this.store = store;
+			this.quantity = store.quantity == null || Data.isNull(store.quantity) ? 0 : store.quantity;
+			this.order = order;
+		}
+
+	}
+
+	/**
+	 * Least stock first, and among equal stock the store read last first, so the head of a
+	 * min-heap is always the next store to drop
+	 */
+	private static final Comparator<RankedStore> WORST_FIRST = Comparator
+			.<RankedStore>comparingInt(ranked -> ranked.quantity)
+			.thenComparing(Comparator.<RankedStore>comparingInt(ranked -> ranked.order).reversed());
+
+	private LCBOResponseDecoder() {
+
+	}
+
+	/**
+	 * Decode a product search response
+	 *
+	 * @param content the response body, closed once it has been read
+	 * @return the response, its results are never null
+	 * @throws IOException if the body can't be read or isn't valid JSON
+	 */
+	static LCBOProductResponse decodeProducts(InputStream content) throws IOException {
+
+		LCBOProductResponse response = new LCBOProductResponse();
+		response.results = new ArrayList<>();
+
+		try (JsonParser parser = JSON_FACTORY.createParser(content)) {
+			expectObject(parser, parser.nextToken());
+
+			while (parser.nextToken() == JsonToken.FIELD_NAME) {
+				String field = parser.getCurrentName();
+				JsonToken token = parser.nextToken();
+
+				switch (field) {
+					case "status":
+						response.status = intValue(parser, token, 0);
+						break;
+					case "message":
+						response.message = text(parser, token);
+						break;
+					case "suggestion":
+						response.suggestion = text(parser, token);
+						break;
+					case "pager":
+						response.pager = readPager(parser, token);
+						break;
+					case "result":
+						if (token == JsonToken.START_ARRAY) {
+							while (parser.nextToken() == JsonToken.START_OBJECT) {
+								response.results.add(readProduct(parser));
+							}
+						} else {
+							parser.skipChildren();
+						}
+						break;
+					default:
+						parser.skipChildren();
+				}
+			}
+		}
+
+		return response;
+
+	}
+
+	/**
+	 * Decode a store search response, keeping only the stores with the most stock
+	 *
+	 * @param content   the response body, closed once it has been read
+	 * @param maxStores how many stores to keep
+	 * @return the response, its results are never null and are sorted by quantity, most first
+	 * @throws IOException if the body can't be read or isn't valid JSON
+	 */
+	static LCBOStoreResponse decodeStores(InputStream content, int maxStores) throws IOException {
+
+		LCBOStoreResponse response = new LCBOStoreResponse();
+		PriorityQueue<RankedStore> top = new PriorityQueue<>(Math.min(maxStores, 64) + 1, WORST_FIRST);
+		int order = 0;
+
+		try (JsonParser parser = JSON_FACTORY.createParser(content)) {
+			expectObject(parser, parser.nextToken());
+
+			while (parser.nextToken() == JsonToken.FIELD_NAME) {
+				String field = parser.getCurrentName();
+				JsonToken token = parser.nextToken();
+
+				switch (field) {
+					case "status":
+						response.status = intValue(parser, token, 0);
+						break;
+					case "message":
+						response.message = text(parser, token);
+						break;
+					case "pager":
+						response.pager = readPager(parser, token);
+						break;
+					case "product":
+						if (token == JsonToken.START_OBJECT) {
+							response.product = readProduct(parser);
+						} else {
+							parser.skipChildren();
+						}
+						break;
+					case "result":
+						if (token == JsonToken.START_ARRAY) {
+							while (parser.nextToken() == JsonToken.START_OBJECT) {
+								top.add(new RankedStore(readStore(parser), order++));
+								if (top.size() > maxStores) {
+									top.poll();
+								}
+							}
+						} else {
+							parser.skipChildren();
+						}
+						break;
+					default:
+						parser.skipChildren();
+				}
+			}
+		}
+
+		List<RankedStore> ranked = new ArrayList<>(top);
+		ranked.sort(WORST_FIRST.reversed());
+
+		response.results = new ArrayList<>(ranked.size());
+		for (RankedStore rankedStore : ranked) {
+			response.results.add(rankedStore.store);
+		}
+
+		return response;
+
+	}
+
+	/**
+	 * Read the fields of a product that are rendered, the parser is on its START_OBJECT
+	 */
+	private static LCBOProduct readProduct(JsonParser parser) throws IOException {
+
+		LCBOProduct product = new LCBOProduct();
+
+		while (parser.nextToken() == JsonToken.FIELD_NAME) {
+			String field = parser.getCurrentName();
+			JsonToken token = parser.nextToken();
+
+			switch (field) {
+				case "id":
+					product.id = intValue(parser, token, 0);
+					break;
+				case "name":
+					product.name = text(parser, token);
+					break;
+				case "origin":
+					product.origin = text(parser, token);
+					break;
+				case "package":
+					product.packaging = text(parser, token);
+					break;
+				case "producer_name":
+					product.producer_name = text(parser, token);
+					break;
+				case "serving_suggestion":
+					product.serving_suggestion = text(parser, token);
+					break;
+				case "tasting_note":
+					product.tasting_note = text(parser, token);
+					break;
+				case "image_url":
+					product.image_url = text(parser, token);
+					break;
+				case "image_thumb_url":
+					product.image_thumb_url = text(parser, token);
+					break;
+				case "inventory_count":
+					product.inventory_count = integer(parser, token);
+					break;
+				case "inventory_volume_in_milliliters":
+					product.inventory_volume_in_milliliters = integer(parser, token);
+					break;
+				case "primary_category":
+					product.primary_category = text(parser, token);
+					break;
+				case "secondary_category":
+					product.secondary_category = text(parser, token);
+					break;
+				case "alcohol_content":
+					product.alcohol_content = integer(parser, token);
+					break;
+				case "price_in_cents":
+					product.price_in_cents = integer(parser, token);
+					break;
+				case "regular_price_in_cents":
+					product.regular_price_in_cents = integer(parser, token);
+					break;
+				case "style":
+					product.style = text(parser, token);
+					break;
+				case "updated_at":
+					product.updated_at = text(parser, token);
+					break;
+				case "is_dead":
+					product.is_dead = bool(parser, token);
+					break;
+				default:
+					parser.skipChildren();
+			}
+		}
+
+		return product;
+
+	}
+
+	/**
+	 * Read the fields of a store that are rendered, the parser is on its START_OBJECT
+	 */
+	private static LCBOStore readStore(JsonParser parser) throws IOException {
+
+		LCBOStore store = new LCBOStore();
+
+		while (parser.nextToken() == JsonToken.FIELD_NAME) {
+			String field = parser.getCurrentName();
+			JsonToken token = parser.nextToken();
+
+			switch (field) {
+				case "id":
+					store.id = integer(parser, token);
+					break;
+				case "name":
+					store.name = text(parser, token);
+					break;
+				case "address_line_1":
+					store.address_line_1 = text(parser, token);
+					break;
+				case "address_line_2":
+					store.address_line_2 = text(parser, token);
+					break;
+				case "city":
+					store.city = text(parser, token);
+					break;
+				case "telephone":
+					store.telephone = text(parser, token);
+					break;
+				case "postal_code":
+					store.postal_code = text(parser, token);
+					break;
+				case "latitude":
+					store.latitude = decimal(parser, token);
+					break;
+				case "longitude":
+					store.longitude = decimal(parser, token);
+					break;
+				case "quantity":
+					store.quantity = integer(parser, token);
+					break;
+				case "updated_at":
+					store.updated_at = text(parser, token);
+					break;
+				case "is_dead":
+					store.is_dead = bool(parser, token);
+					break;
+				default:
+					parser.skipChildren();
+			}
+		}
+
+		return store;
+
+	}
+
+	/**
+	 * Read the total record count and whether this is the last page from a pager
+	 */
+	private static LCBOPager readPager(JsonParser parser, JsonToken token) throws IOException {
+
+		if (token != JsonToken.START_OBJECT) {
+			parser.skipChildren();
+			return null;
+		}
+
+		LCBOPager pager = new LCBOPager();
+
+		while (parser.nextToken() == JsonToken.FIELD_NAME) {
+			String field = parser.getCurrentName();
+			JsonToken valueToken = parser.nextToken();
+
+			if ("total_record_count".equals(field)) {
+				pager.total_record_count = integer(parser, valueToken);
+			} else if ("is_final_page".equals(field)) {
+				pager.is_final_page = valueToken == JsonToken.VALUE_TRUE;
+			} else {
+				parser.skipChildren();
+			}
+		}
+
+		return pager;
+
+	}
+
+	private static String text(JsonParser parser, JsonToken token) throws IOException {
+
+		if (token == JsonToken.VALUE_NULL) {
+			return Data.NULL_STRING;
+		}
+
+		if (token.isScalarValue()) {
+			return parser.getText();
+		}
+
+		parser.skipChildren();
+		return null;
+
+	}
+
+	private static Integer integer(JsonParser parser, JsonToken token) throws IOException {
+
+		if (token == JsonToken.VALUE_NULL) {
+			return Data.NULL_INTEGER;
+		}
+
+		if (token.isNumeric()) {
+			return parser.getIntValue();
+		}
+
+		parser.skipChildren();
+		return null;
+
+	}
+
+	private static Double decimal(JsonParser parser, JsonToken token) throws IOException {
+
+		if (token == JsonToken.VALUE_NULL) {
+			return Data.NULL_DOUBLE;
+		}
+
+		if (token.isNumeric()) {
+			return parser.getDoubleValue();
+		}
+
+		parser.skipChildren();
+		return null;
+
+	}
+
+	private static Boolean bool(JsonParser parser, JsonToken token) throws IOException {
+
+		if (token == JsonToken.VALUE_TRUE || token == JsonToken.VALUE_FALSE) {
+			return token == JsonToken.VALUE_TRUE;
+		}
+
+		parser.skipChildren();
+		return null;
+
+	}
+
+	private static int intValue(JsonParser parser, JsonToken token, int defaultValue) throws IOException {
+		Integer value = integer(parser, token);
+		return value == null || Data.isNull(value) ? defaultValue : value;
+	}
+
+	private static void expectObject(JsonParser parser, JsonToken token) throws IOException {
+		if (token != JsonToken.START_OBJECT) {
+			throw new IOException("Expected a JSON object but got " + token + " at " + parser.getCurrentLocation());
+		}
+	}
+
+}
@@ -0,0 +1,131 @@
+package ca.caseybanner.chief.commands;
+
+import ca.caseybanner.chief.HttpService;
+import ca.caseybanner.chief.commands.LCBOCommand.LCBOPager;
+import ca.caseybanner.chief.commands.LCBOCommand.LCBOProductResponse;
+import ca.caseybanner.chief.commands.LCBOCommand.LCBOStoreResponse;
+import com.google.api.client.http.GenericUrl;
+import com.google.api.client.http.HttpResponse;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+
+/**
+ * Where the LCBO mirror reads the catalog from, one page at a time.
+ * <p/>
+ * Pages are ordered by when the record was last updated, newest first, so an incremental sync
+ * can stop as soon as it reaches records it has already seen. Records that were removed are
+ * still listed, marked dead.
+ */
+interface LCBOSource {
+
+	/**
+	 * Get a page of products
+	 *
+	 * @param page page number, starting at 1
+	 * @return the page, its pager says whether it is the last one
+	 * @throws IOException if the page couldn't be read
+	 */
+	LCBOProductResponse fetchProducts(int page) throws IOException;
+
+	/**
+	 * Get a page of stores
+	 *
+	 * @param page page number, starting at 1
+	 * @return the page, its pager says whether it is the last one
+	 * @throws IOException if the page couldn't be read
+	 */
+	LCBOStoreResponse fetchStores(int page) throws IOException;
+
+	/**
+	 * Reads pages from the LCBO API
+	 */
+	class Api implements LCBOSource {
+
+		private static final int PAGE_SIZE = 100;
+
+		private final String baseUrl;
+		private final HttpService httpService;
+
+		Api(String baseUrl, HttpService httpService) {
+			this.baseUrl = baseUrl;
+			this.httpService = httpService;
+		}
+
+		@Override
+		public LCBOProductResponse fetchProducts(int page) throws IOException {
+			HttpResponse response = httpService.execute(httpService.getRequestFactory().buildGetRequest(url("/products", page)));
+			return LCBOResponseDecoder.decodeProducts(response.getContent());
+		}
+
+		@Override
+		public LCBOStoreResponse fetchStores(int page) throws IOException {
+			HttpResponse response = httpService.execute(httpService.getRequestFactory().buildGetRequest(url("/stores", page)));
+			return LCBOResponseDecoder.decodeStores(response.getContent(), Integer.MAX_VALUE);
+		}
+
+		private GenericUrl url(String path, int page) {
+			return new GenericUrl(baseUrl + path +
+					"?order=updated_at.desc&per_page=" + PAGE_SIZE + "&page=" + page);
+		}
+
+	}
+
+	/**
+	 * Reads pages from JSON files in a directory, named products-1.json, stores-1.json and so on,
+	 * in the same format the API returns. A missing page is treated as the end of the list.
+	 */
+	class Fixture implements LCBOSource {
+
+		private final Path directory;
+
+		Fixture(Path directory) {
+			this.directory = directory;
+		}
+
+		@Override
+		public LCBOProductResponse fetchProducts(int page) throws IOException {
+
+			Path file = directory.resolve("products-" + page + ".json");
+			if (!Files.exists(file)) {
+				LCBOProductResponse response = new LCBOProductResponse();
+				response.results = new ArrayList<>();
+				response.pager = finalPage();
+				return response;
+			}
+
+			try (InputStream content = Files.newInputStream(file)) {
+				return LCBOResponseDecoder.decodeProducts(content);
+			}
+
+		}
+
+		@Override
+		public LCBOStoreResponse fetchStores(int page) throws IOException {
+
+			Path file = directory.resolve("stores-" + page + ".json");
+			if (!Files.exists(file)) {
+				LCBOStoreResponse response = new LCBOStoreResponse();
+				response.results = new ArrayList<>();
+				response.pager = finalPage();
+				return response;
+			}
+
+			try (InputStream content = Files.newInputStream(file)) {
+				return LCBOResponseDecoder.decodeStores(content, Integer.MAX_VALUE);
+			}
+
+		}
+
+		private static LCBOPager finalPage() {
+			LCBOPager pager = new LCBOPager();
+			pager.is_final_page = true;
+			return pager;
+		}
+
+	}
+
+}
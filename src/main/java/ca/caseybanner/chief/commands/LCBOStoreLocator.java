@@ -0,0 +1,191 @@
+package ca.caseybanner.chief.commands;
+
+import ca.caseybanner.chief.commands.LCBOCommand.LCBOStore;
+import ca.caseybanner.chief.util.KdTree;
+import com.google.api.client.util.Data;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Optional;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.function.Predicate;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Finds the stores closest to a location.
+ * <p/>
+ * Stores are placed on the unit sphere and kept in a k-d tree, so straight-line distance
+ * between points orders stores the same way as distance along the earth's surface. Locations
+ * are either a latitude and longitude, or a postal code prefix, which is placed at the middle
+ * of the stores whose postal codes start with it.
+ */
+class LCBOStoreLocator {
+
+	private static final double EARTH_RADIUS_KM = 6371.0;
+
+	private static final Pattern COORDINATES_PATTERN = Pattern.compile(
+			"^(?<latitude>[-+]?\\d{1,2}(?:\\.\\d+)?)\\s*,\\s*(?<longitude>[-+]?\\d{1,3}(?:\\.\\d+)?)$");
+
+	private static final Pattern POSTAL_PATTERN = Pattern.compile("^[A-Za-z](?:\\d(?:[A-Za-z](?:\\d(?:[A-Za-z]\\d?)?)?)?)?$");
+
+	private final KdTree<LCBOStore> tree;
+
+	/**
+	 * Stores with a location, by postal code without spaces
+	 */
+	private final TreeMap<String, List<LCBOStore>> storesByPostalCode;
+
+	/**
+	 * A store and how far it is from the location searched
+	 */
+	static class NearbyStore {
+
+		private final LCBOStore store;
+		private final double distanceKm;
+
+		NearbyStore(LCBOStore store, double distanceKm) {
+			this.store = store;
+			this.distanceKm = distanceKm;
+		}
+
+		LCBOStore getStore() {
+			return store;
+		}
+
+		double getDistanceKm() {
+			return distanceKm;
+		}
+
+	}
+
+	/**
+	 * Build a locator, stores without a latitude and longitude are left out
+	 *
+	 * @param stores the stores
+	 */
+	LCBOStoreLocator(List<LCBOStore> stores) {
+
+		this.tree = new KdTree<>(stores, 3, store -> hasLocation(store) ?
+				toUnitVector(store.latitude, store.longitude) : null);
+
+		this.storesByPostalCode = new TreeMap<>();
+		for (LCBOStore store : stores) {
+			if (hasLocation(store) && isPresent(store.postal_code)) {
+				storesByPostalCode.computeIfAbsent(normalizePostalCode(store.postal_code), key -> new ArrayList<>())
+						.add(store);
+			}
+		}
+
+	}
+
+	/**
+	 * Getter for the number of stores with a location
+	 *
+	 * @return store count
+	 */
+	int size() {
+		return tree.size();
+	}
+
+	/**
+	 * Turn a location typed by a user into a point
+	 *
+	 * @param location "latitude,longitude" or a postal code prefix like "M5V"
+	 * @return the point, empty if the location can't be read or no store has that postal code
+	 */
+	Optional<double[]> resolve(String location) {
+
+		String trimmed = location.trim();
+
+		Matcher matcher = COORDINATES_PATTERN.matcher(trimmed);
+		if (matcher.matches()) {
+			double latitude = Double.parseDouble(matcher.group("latitude"));
+			double longitude = Double.parseDouble(matcher.group("longitude"));
+			if (Math.abs(latitude) > 90 || Math.abs(longitude) > 180) {
+				return Optional.empty();
+			}
+			return Optional.of(toUnitVector(latitude, longitude));
+		}
+
+		String prefix = normalizePostalCode(trimmed);
+		if (!POSTAL_PATTERN.matcher(prefix).matches()) {
+			return Optional.empty();
+		}
+
+		// The middle of the matching stores, pushed back out to the sphere
+
+		SortedMap<String, List<LCBOStore>> matching = storesByPostalCode.subMap(prefix, prefix + Character.MAX_VALUE);
+		double[] sum = new double[3];
+		for (List<LCBOStore> stores : matching.values()) {
+			for (LCBOStore store : stores) {
+				double[] point = toUnitVector(store.latitude, store.longitude);
+				for (int i = 0; i < sum.length; i++) {
+					sum[i] += point[i];
+				}
+			}
+		}
+
+		double length = Math.sqrt(sum[0] * sum[0] + sum[1] * sum[1] + sum[2] * sum[2]);
+		if (length == 0) {
+			return Optional.empty();
+		}
+
+		return Optional.of(new double[]{sum[0] / length, sum[1] / length, sum[2] / length});
+
+	}
+
+	/**
+	 * Find the stores closest to a point
+	 *
+	 * @param point  a point from resolve
+	 * @param count  maximum number of stores to return
+	 * @param filter only stores it accepts are returned
+	 * @return the closest stores, closest first
+	 */
+	List<NearbyStore> nearest(double[] point, int count, Predicate<LCBOStore> filter) {
+
+		List<NearbyStore> result = new ArrayList<>();
+		for (KdTree.Neighbour<LCBOStore> neighbour : tree.nearest(point, count, filter)) {
+			result.add(new NearbyStore(neighbour.getItem(), toKilometres(neighbour.getDistance())));
+		}
+
+		return result;
+
+	}
+
+	private static boolean hasLocation(LCBOStore store) {
+		return isPresent(store.latitude) && isPresent(store.longitude);
+	}
+
+	private static boolean isPresent(Object value) {
+		return value != null && !Data.isNull(value);
+	}
+
+	private static String normalizePostalCode(String postalCode) {
+		return postalCode.replaceAll("\\s+", "").toUpperCase(Locale.ROOT);
+	}
+
+	private static double[] toUnitVector(double latitude, double longitude) {
+
+		double phi = Math.toRadians(latitude);
+		double lambda = Math.toRadians(longitude);
+
+		return new double[]{
+				Math.cos(phi) * Math.cos(lambda),
+				Math.cos(phi) * Math.sin(lambda),
+				Math.sin(phi)
+		};
+
+	}
+
+	/**
+	 * Convert a straight-line distance between unit vectors to a distance along the surface
+	 */
+	private static double toKilometres(double chord) {
+		return 2 * EARTH_RADIUS_KM * Math.asin(Math.min(1.0, chord / 2));
+	}
+
+}
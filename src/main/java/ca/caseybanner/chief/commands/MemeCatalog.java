@@ -0,0 +1,203 @@
+package ca.caseybanner.chief.commands;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+
+/**
+ * An immutable, indexed snapshot of the Imgflip meme templates.
+ * <p/>
+ * Exact names are looked up through a hash index, and substring searches and "did you mean"
+ * suggestions go through an index of the lowercase trigrams in each name.
+ */
+class MemeCatalog {
+
+	private static final int GRAM = 3;
+
+	/**
+	 * Minimum similarity (shared trigrams over all distinct trigrams) for a suggestion
+	 */
+	private static final double MIN_SUGGESTION_SCORE = 0.3;
+
+	private final List<MemeCommand.Meme> memes;
+	private final String[] lowerNames;
+	private final int[] gramCounts;
+	private final Map<String, MemeCommand.Meme> byName;
+	private final Map<String, MemeCommand.Meme> byLowerName;
+	private final Map<String, int[]> postings;
+
+	/**
+	 * Build a catalog
+	 *
+	 * @param memes the templates, in the order they should be listed
+	 */
+	MemeCatalog(List<MemeCommand.Meme> memes) {
+
+		this.memes = Collections.unmodifiableList(new ArrayList<>(memes));
+		this.lowerNames = new String[memes.size()];
+		this.gramCounts = new int[memes.size()];
+		this.byName = new HashMap<>();
+		this.byLowerName = new HashMap<>();
+
+		Map<String, List<Integer>> gramIndex = new HashMap<>();
+
+		for (int i = 0; i < memes.size(); i++) {
+			MemeCommand.Meme meme = memes.get(i);
+			String lowerName = meme.name.toLowerCase(Locale.ROOT);
+
+			lowerNames[i] = lowerName;
+			byName.putIfAbsent(meme.name, meme);
+			byLowerName.putIfAbsent(lowerName, meme);
+
+			Set<String> grams = grams(lowerName);
+			gramCounts[i] = grams.size();
+			for (String gram : grams) {
+				gramIndex.computeIfAbsent(gram, key -> new ArrayList<>()).add(i);
+			}
+		}
+
+		this.postings = new HashMap<>(gramIndex.size() * 2);
+		gramIndex.forEach((gram, indexes) ->
+				postings.put(gram, indexes.stream().mapToInt(Integer::intValue).toArray()));
+
+	}
+
+	/**
+	 * Getter for the number of templates
+	 *
+	 * @return template count
+	 */
+	int size() {
+		return memes.size();
+	}
+
+	/**
+	 * Find a template by its exact name
+	 *
+	 * @param name the template name
+	 * @return the template, if there is one with exactly that name
+	 */
+	Optional<MemeCommand.Meme> findByName(String name) {
+		return Optional.ofNullable(byName.get(name));
+	}
+
+	/**
+	 * Find the templates whose names contain a query, ignoring case
+	 *
+	 * @param query the query, or an empty string for every template
+	 * @return matching templates in catalog order
+	 */
+	List<MemeCommand.Meme> search(String query) {
+
+		String lowerQuery = query.toLowerCase(Locale.ROOT);
+		if (lowerQuery.isEmpty()) {
+			return memes;
+		}
+
+		List<MemeCommand.Meme> results = new ArrayList<>();
+
+		if (lowerQuery.length() < GRAM) {
+			for (int i = 0; i < lowerNames.length; i++) {
+				if (lowerNames[i].contains(lowerQuery)) {
+					results.add(memes.get(i));
+				}
+			}
+
+			return results;
+		}
+
+		// Any match must contain every trigram of the query, so only the
+		// names in the shortest posting list need to be checked
+
+		int[] candidates = null;
+		for (String gram : grams(lowerQuery)) {
+			int[] posting = postings.get(gram);
+			if (posting == null) {
+				return results;
+			}
+
+			if (candidates == null || posting.length < candidates.length) {
+				candidates = posting;
+			}
+		}
+
+		for (int i : candidates) {
+			if (lowerNames[i].contains(lowerQuery)) {
+				results.add(memes.get(i));
+			}
+		}
+
+		return results;
+
+	}
+
+	/**
+	 * Suggest the template with the most similar name
+	 *
+	 * @param name a name that didn't match exactly
+	 * @return the closest template, if any is close enough
+	 */
+	Optional<MemeCommand.Meme> suggest(String name) {
+
+		String lowerName = name.toLowerCase(Locale.ROOT);
+
+		MemeCommand.Meme caseInsensitiveMatch = byLowerName.get(lowerName);
+		if (caseInsensitiveMatch != null) {
+			return Optional.of(caseInsensitiveMatch);
+		}
+
+		Set<String> grams = grams(lowerName);
+		if (grams.isEmpty()) {
+			return Optional.empty();
+		}
+
+		int[] shared = new int[memes.size()];
+		for (String gram : grams) {
+			int[] posting = postings.get(gram);
+			if (posting != null) {
+				for (int i : posting) {
+					shared[i]++;
+				}
+			}
+		}
+
+		int best = -1;
+		double bestScore = MIN_SUGGESTION_SCORE;
+		for (int i = 0; i < shared.length; i++) {
+			if (shared[i] > 0) {
+				double score = (double) shared[i] / (grams.size() + gramCounts[i] - shared[i]);
+				if (score > bestScore) {
+					bestScore = score;
+					best = i;
+				}
+			}
+		}
+
+		return best < 0 ? Optional.empty() : Optional.of(memes.get(best));
+
+	}
+
+	/**
+	 * Distinct trigrams of a string
+	 *
+	 * @param value lowercase string
+	 * @return trigrams in order of first appearance
+	 */
+	private static Set<String> grams(String value) {
+
+		Set<String> grams = new LinkedHashSet<>();
+		for (int i = 0; i + GRAM <= value.length(); i++) {
+			grams.add(value.substring(i, i + GRAM));
+		}
+
+		return grams;
+
+	}
+
+}
@@ -2,15 +2,17 @@ package ca.caseybanner.chief.commands;
 
 import ca.caseybanner.chief.Bot;
 import ca.caseybanner.chief.SynchronousCommand;
+import ca.caseybanner.chief.Upstream;
+import ca.caseybanner.chief.UpstreamUnavailableException;
+import ca.caseybanner.chief.util.DiskCache;
+import ca.caseybanner.chief.util.JsonCacheCodec;
+import ca.caseybanner.chief.util.SingleFlight;
 import com.google.api.client.http.GenericUrl;
 import com.google.api.client.http.HttpContent;
 import com.google.api.client.http.HttpRequest;
 import com.google.api.client.http.HttpRequestFactory;
 import com.google.api.client.http.HttpResponse;
 import com.google.api.client.http.UrlEncodedContent;
-import com.google.api.client.http.javanet.NetHttpTransport;
-import com.google.api.client.json.JsonObjectParser;
-import com.google.api.client.json.jackson2.JacksonFactory;
 import com.google.api.client.util.Key;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -18,6 +20,9 @@ import org.apache.logging.log4j.Logger;
 import java.io.IOException;
 import java.util.List;
 import java.util.Optional;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -38,16 +43,34 @@ public class MemeCommand extends SynchronousCommand {
 	private static final String LIST_URL = "get_memes";
 	private static final String IMAGE_URL = "caption_image";
 
-	private final JacksonFactory jsonFactory;
+	private static final long DEFAULT_REFRESH_INTERVAL_SECONDS = 3600;
+
 	private final HttpRequestFactory requestFactory;
+	private final Upstream imgflip;
+
+	private volatile String username;
+	private volatile String password;
+	private volatile long refreshIntervalSeconds;
+	private boolean prefetch;
+
+	/**
+	 * Current meme catalog, replaced as a whole when it is refreshed
+	 */
+	private volatile MemeCatalog catalog;
+
+	private ScheduledExecutorService refreshScheduler;
 
-	private String username;
-	private String password;
+	/**
+	 * Keeps the last meme list on disk, so a restart doesn't need to fetch it again
+	 */
+	private final Optional<DiskCache> diskCache;
+	private final JsonCacheCodec<ListResponse> listCodec;
 
 	/**
-	 * Cached meme list
+	 * Coalesces concurrent loads of the meme list and identical meme generations
 	 */
-	private List<Meme> memes;
+	private final SingleFlight<String, Boolean> listFlight;
+	private final SingleFlight<String, Optional<String>> generateFlight;
 
 	/**
 	 * Response from the get_memes endpoint
@@ -153,11 +176,44 @@ public class MemeCommand extends SynchronousCommand {
 	public MemeCommand(Bot bot) {
 		super(bot);
 
-		jsonFactory = new JacksonFactory();
-		requestFactory = new NetHttpTransport().createRequestFactory(
-				(HttpRequest request) -> request.setParser(new JsonObjectParser(jsonFactory)));
+		requestFactory = bot.getHttpService().getRequestFactory();
+		imgflip = bot.getHttpService().declareUpstream("api.imgflip.com", "Imgflip");
 
-		memes = null;
+		listFlight = new SingleFlight<>();
+		generateFlight = new SingleFlight<>();
+
+		catalog = null;
+		refreshIntervalSeconds = DEFAULT_REFRESH_INTERVAL_SECONDS;
+
+		diskCache = bot.getDiskCache("meme_list");
+		listCodec = new JsonCacheCodec<>(bot.getHttpService().getJsonFactory(), ListResponse.class);
+		loadCachedMemeList();
+
+		bot.getMetrics().gauge("chief_meme_catalog_size", "Memes in the loaded catalog", () -> {
+			MemeCatalog currentCatalog = catalog;
+			return currentCatalog == null ? 0 : currentCatalog.size();
+		});
+	}
+
+	/**
+	 * Setter for refreshInterval
+	 *
+	 * @param refreshInterval seconds between reloads of the meme list, 0 to never reload
+	 */
+	public void setRefreshInterval(long refreshInterval) {
+		if (refreshInterval < 0) {
+			throw new IllegalArgumentException("Must not be negative");
+		}
+		this.refreshIntervalSeconds = refreshInterval;
+	}
+
+	/**
+	 * Setter for prefetch
+	 *
+	 * @param prefetch true to load the meme list in the background at startup instead of on first use
+	 */
+	public void setPrefetch(boolean prefetch) {
+		this.prefetch = prefetch;
 	}
 
 	/**
@@ -185,6 +241,52 @@ public class MemeCommand extends SynchronousCommand {
 			throw new ConfigurationException("Both username and password must be specified");
 		}
 
+		startRefresh();
+
+	}
+
+	@Override
+	public synchronized void configurationChanged() {
+
+		// The refresh interval may have changed, so restart the refresh schedule
+
+		shutdown();
+		startRefresh();
+
+	}
+
+	private synchronized void startRefresh() {
+
+		long intervalSeconds = refreshIntervalSeconds;
+		if (intervalSeconds > 0) {
+			refreshScheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+				Thread thread = new Thread(runnable, "chief-meme-refresh");
+				thread.setDaemon(true);
+				return thread;
+			});
+			refreshScheduler.scheduleWithFixedDelay(
+					this::loadMemeList, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+		}
+
+	}
+
+	@Override
+	public void warmUp() {
+
+		if (prefetch && catalog == null) {
+			listFlight.executeBlocking(LIST_URL, this::loadMemeList);
+		}
+
+	}
+
+	@Override
+	public synchronized void shutdown() {
+
+		if (refreshScheduler != null) {
+			refreshScheduler.shutdownNow();
+			refreshScheduler = null;
+		}
+
 	}
 
 	@Override
@@ -200,7 +302,27 @@ public class MemeCommand extends SynchronousCommand {
 	}
 
 	/**
-	 * Loads the meme list from imgflip.
+	 * Loads the meme list saved by an earlier run, if it hasn't expired
+	 */
+	private void loadCachedMemeList() {
+
+		DiskCache.Record record = diskCache.map(disk -> disk.get(LIST_URL)).orElse(null);
+		if (record == null) {
+			return;
+		}
+
+		try {
+			ListResponse listResponse = listCodec.decode(record.getValue());
+			catalog = new MemeCatalog(listResponse.data.memes);
+			logger.trace("{} memes loaded from the disk cache", catalog.size());
+		} catch (IOException | RuntimeException e) {
+			logger.warn("Error reading cached meme list", e);
+		}
+
+	}
+
+	/**
+	 * Loads the meme list from imgflip and swaps in a new catalog.
 	 */
 	private boolean loadMemeList() {
 
@@ -210,18 +332,28 @@ public class MemeCommand extends SynchronousCommand {
 			url = new GenericUrl(BASE_URL + LIST_URL);
 
 			HttpRequest request = requestFactory.buildGetRequest(url);
-			HttpResponse response = request.execute();
+			HttpResponse response = getBot().getHttpService().execute(request);
 
 			ListResponse listResponse = response.parseAs(ListResponse.class);
 
 			if (listResponse.success) {
-				memes = listResponse.data.memes;
-				logger.trace("{} memes loaded", memes.size());
+				MemeCatalog newCatalog = new MemeCatalog(listResponse.data.memes);
+				catalog = newCatalog;
+				logger.trace("{} memes loaded", newCatalog.size());
+
+				if (diskCache.isPresent()) {
+					long ttlSeconds = refreshIntervalSeconds > 0 ? refreshIntervalSeconds : DEFAULT_REFRESH_INTERVAL_SECONDS;
+					diskCache.get().put(LIST_URL, listCodec.encode(listResponse),
+							System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(ttlSeconds));
+				}
+
 				return true;
 			} else {
 				logger.error("Error making API query: {}", listResponse.error_message);
 				return false;
 			}
+		} catch (UpstreamUnavailableException e) {
+			logger.debug("Not loading the meme list: {}", e.getMessage());
 		} catch (IOException e) {
 			logger.error("Error making API query: {}", e);
 		}
@@ -249,7 +381,7 @@ public class MemeCommand extends SynchronousCommand {
 					new CaptionRequest(templateId, username, password, topText, bottomText));
 
 			HttpRequest request = requestFactory.buildPostRequest(url, content);
-			HttpResponse response = request.execute();
+			HttpResponse response = getBot().getHttpService().execute(request);
 
 			CaptionResponse captionResponse = response.parseAs(CaptionResponse.class);
 
@@ -259,6 +391,8 @@ public class MemeCommand extends SynchronousCommand {
 				logger.error("Error making API query: {}", captionResponse.error_message);
 				return Optional.empty();
 			}
+		} catch (UpstreamUnavailableException e) {
+			return Optional.of(imgflip.getUnavailableMessage());
 		} catch (IOException e) {
 			logger.error("Error making API query: {}", e);
 		}
@@ -274,12 +408,17 @@ public class MemeCommand extends SynchronousCommand {
 
 		// If we don't have the meme list, get it first
 
-		if (memes == null) {
-			if (!loadMemeList()) {
+		if (catalog == null) {
+			if (!listFlight.executeBlocking(LIST_URL, this::loadMemeList)) {
+				if (!imgflip.isAvailable()) {
+					return Optional.of(imgflip.getUnavailableMessage());
+				}
 				return Optional.of("Couldn't load meme list, please check error logs");
 			}
 		}
 
+		MemeCatalog currentCatalog = catalog;
+
 		if (command.equals("list")) {
 
 			// The list can be big, so don't spam rooms
@@ -290,18 +429,14 @@ public class MemeCommand extends SynchronousCommand {
 
 			// Check for an optional query
 
-			final Optional<String> memeQuery;
+			String memeQuery = "";
 			if (matcher.group("args") != null) {
 				logger.trace("Args was \"{}\"", matcher.group("args"));
-				memeQuery = Optional.of(matcher.group("args").trim().toLowerCase());
-			} else {
-				memeQuery = Optional.empty();
+				memeQuery = matcher.group("args").trim();
 			}
 
 			StringBuilder builder = new StringBuilder("Found these memes:\n");
-			memes.stream().filter(
-					meme -> !memeQuery.isPresent() || meme.name.toLowerCase().contains(memeQuery.get()))
-					.forEach(meme -> builder.append(meme.name).append("\n"));
+			currentCatalog.search(memeQuery).forEach(meme -> builder.append(meme.name).append("\n"));
 
 			return Optional.of(builder.toString());
 		} else if (command.equals("plz")) {
@@ -343,12 +478,19 @@ public class MemeCommand extends SynchronousCommand {
 				return Optional.of("Please specify at least top or bottom text");
 			}
 
-			// Search through all the memes
+			Optional<Meme> meme = currentCatalog.findByName(memeName);
+			if (meme.isPresent()) {
+				String templateId = meme.get().id;
+				String top = topText;
+				String bottom = bottomText;
+				return generateFlight.executeBlocking(templateId + "\n" + top + "\n" + bottom,
+						() -> generateMeme(templateId, top, bottom));
+			}
 
-			for (Meme meme : memes) {
-				if (meme.name.equals(memeName)) {
-					return generateMeme(meme.id, topText, bottomText);
-				}
+			Optional<Meme> suggestion = currentCatalog.suggest(memeName);
+			if (suggestion.isPresent()) {
+				return Optional.of("I couldn't find that meme, did you mean \"" +
+						suggestion.get().name + "\"?");
 			}
 
 			return Optional.of("I couldn't find that meme, please specify it " +
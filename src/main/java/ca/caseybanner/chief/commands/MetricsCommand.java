@@ -0,0 +1,87 @@
+package ca.caseybanner.chief.commands;
+
+import ca.caseybanner.chief.Bot;
+import ca.caseybanner.chief.SynchronousCommand;
+import ca.caseybanner.chief.metrics.Counter;
+import ca.caseybanner.chief.metrics.Gauge;
+import ca.caseybanner.chief.metrics.LatencyHistogram;
+import ca.caseybanner.chief.metrics.MetricsRegistry;
+
+import java.util.Locale;
+import java.util.Optional;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Shows the bot's metrics in chat.
+ * <p/>
+ * Latencies are shown as count, median, 99th percentile and maximum in milliseconds.
+ */
+public class MetricsCommand extends SynchronousCommand {
+
+	private static final Pattern PATTERN = Pattern.compile("^metrics(?:\\s+(?<filter>\\S+))?$");
+
+	public MetricsCommand(Bot bot) {
+		super(bot);
+	}
+
+	@Override
+	public String getUsage() {
+		return "metrics [filter] - show the bot's metrics, optionally only those whose name contains [filter]";
+	}
+
+	@Override
+	public Pattern getPattern() {
+		return PATTERN;
+	}
+
+	@Override
+	public Optional<String> processMessage(
+			String from, String message, Matcher matcher, boolean fromRoom) {
+
+		String filter = matcher.group("filter");
+		StringBuilder builder = new StringBuilder();
+
+		for (MetricsRegistry.Family family : getBot().getMetrics().getFamilies()) {
+			if (filter != null && !family.getName().contains(filter)) {
+				continue;
+			}
+
+			family.getMetrics().forEach((labels, metric) -> {
+				builder.append(family.getName());
+				if (!labels.isEmpty()) {
+					builder.append('{').append(labels).append('}');
+				}
+				builder.append(' ');
+
+				if (metric instanceof Counter) {
+					builder.append(((Counter) metric).get());
+				} else if (metric instanceof Gauge) {
+					builder.append(String.format(Locale.ROOT, "%.2f", ((Gauge) metric).get()));
+				} else if (metric instanceof LatencyHistogram) {
+					LatencyHistogram.Snapshot snapshot = ((LatencyHistogram) metric).snapshot();
+					builder.append(String.format(Locale.ROOT, "count=%d p50=%.1fms p99=%.1fms max=%.1fms",
+							snapshot.getCount(),
+							snapshot.getPercentileSeconds(50) * 1000,
+							snapshot.getPercentileSeconds(99) * 1000,
+							snapshot.getMaxSeconds() * 1000));
+				}
+
+				builder.append('\n');
+			});
+		}
+
+		if (builder.length() == 0) {
+			return Optional.of("No metrics found.");
+		}
+
+		return Optional.of(builder.toString());
+
+	}
+
+	@Override
+	public boolean isAdminOnly() {
+		return true;
+	}
+
+}
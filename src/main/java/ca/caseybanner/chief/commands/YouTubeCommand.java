@@ -7,10 +7,17 @@
 package ca.caseybanner.chief.commands;
 
 import ca.caseybanner.chief.Bot;
-import ca.caseybanner.chief.SynchronousCommand;
-import com.google.api.client.http.HttpRequest;
-import com.google.api.client.http.javanet.NetHttpTransport;
-import com.google.api.client.json.jackson2.JacksonFactory;
+import ca.caseybanner.chief.Command;
+import ca.caseybanner.chief.Jid;
+import ca.caseybanner.chief.Upstream;
+import ca.caseybanner.chief.UpstreamUnavailableException;
+import ca.caseybanner.chief.util.CacheCodec;
+import ca.caseybanner.chief.util.ExpiringCache;
+import ca.caseybanner.chief.util.QuotaMeter;
+import ca.caseybanner.chief.util.SingleFlight;
+import com.google.api.client.googleapis.json.GoogleJsonError;
+import com.google.api.client.googleapis.json.GoogleJsonErrorContainer;
+import com.google.api.client.http.HttpResponseException;
 import com.google.api.services.youtube.YouTube;
 import com.google.api.services.youtube.model.ResourceId;
 import com.google.api.services.youtube.model.SearchListResponse;
@@ -19,34 +26,85 @@ import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 import java.io.IOException;
+import java.time.ZoneId;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.Locale;
 import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
+import java.util.stream.Collectors;
 
 /**
+ * Searches YouTube asynchronously.
+ * <p/>
+ * Every search costs quota units, so results are cached by query and units spent are counted
+ * per day. When a search would go over the daily quota only cached results are returned.
+ *
  * @author kcbanner
  */
-public class YouTubeCommand extends SynchronousCommand {
+public class YouTubeCommand extends Command {
 
 	private static final Logger logger = LogManager.getLogger(YouTubeCommand.class);
 
 	private static final Pattern PATTERN = Pattern.compile("^youtube\\s+(.+)$");
-	private final YouTube youtube;
-	private String apiKey;
+
+	/**
+	 * Quota cost of a search.list call
+	 */
+	private static final long SEARCH_COST = 100;
+
+	/**
+	 * 403 error reasons that mean the quota is used up, other 403s are bad keys or permissions
+	 */
+	private static final List<String> QUOTA_REASONS = Arrays.asList("quotaExceeded", "dailyLimitExceeded");
+
+	private static final long DEFAULT_DAILY_QUOTA = 10000;
+	private static final long DEFAULT_CACHE_TTL_SECONDS = 24 * 60 * 60;
+	private static final int DEFAULT_CACHE_MAX_ENTRIES = 10000;
+
+	/**
+	 * Cached in place of a video id when a search had no results
+	 */
+	private static final String NO_RESULTS = "";
+
+	/**
+	 * Built on first use or by warmUp, building the client is slow
+	 */
+	private volatile YouTube youtube;
+	private final SingleFlight<String, String> searchFlight;
+	private final ExpiringCache<String, String> videoCache;
+	private final QuotaMeter quotaMeter;
+	private final Upstream api;
+	private volatile String apiKey;
 
 	public YouTubeCommand(Bot bot) {
 		super(bot);
 
-		youtube = new YouTube.Builder(
-				new NetHttpTransport(),
-				new JacksonFactory(),
-				(HttpRequest request) -> {
-				})
-				.setApplicationName("chief-bot")
-				.build();
+		searchFlight = new SingleFlight<>();
+		videoCache = new ExpiringCache<>(
+				TimeUnit.SECONDS.toMillis(DEFAULT_CACHE_TTL_SECONDS),
+				DEFAULT_CACHE_MAX_ENTRIES,
+				Long.MAX_VALUE,
+				videoId -> 40 + 2 * videoId.length(),
+				Runnable::run);
 
+		// YouTube quotas reset at midnight Pacific time
+
+		quotaMeter = new QuotaMeter(DEFAULT_DAILY_QUOTA, ZoneId.of("America/Los_Angeles"));
 		apiKey = null;
+		api = bot.getHttpService().declareUpstream("www.googleapis.com", "YouTube");
+
+		videoCache.registerMetrics(bot.getMetrics(), "youtube_videos");
+		bot.getDiskCache("youtube_videos").ifPresent(
+				disk -> videoCache.persistTo(disk, Function.identity(), CacheCodec.UTF8));
+		bot.getMetrics().gauge("chief_quota_remaining", "API quota units left today",
+				quotaMeter::getRemaining, "api", "youtube");
 
 	}
 
@@ -59,6 +117,38 @@ public class YouTubeCommand extends SynchronousCommand {
 
 	}
 
+	@Override
+	public void warmUp() {
+		getYouTube();
+	}
+
+	/**
+	 * Get the YouTube client, building it the first time
+	 *
+	 * @return the YouTube client
+	 */
+	private YouTube getYouTube() {
+
+		YouTube client = youtube;
+		if (client == null) {
+			synchronized (this) {
+				client = youtube;
+				if (client == null) {
+					client = new YouTube.Builder(
+							getBot().getHttpService().getTransport(),
+							getBot().getHttpService().getJsonFactory(),
+							getBot().getHttpService())
+							.setApplicationName("chief-bot")
+							.build();
+					youtube = client;
+				}
+			}
+		}
+
+		return client;
+
+	}
+
 	/**
 	 * Setter for apiKey
 	 *
@@ -68,6 +158,30 @@ public class YouTubeCommand extends SynchronousCommand {
 		this.apiKey = apiKey;
 	}
 
+	/**
+	 * Setter for dailyQuota
+	 *
+	 * @param dailyQuota quota units available per day
+	 */
+	public void setDailyQuota(long dailyQuota) {
+		if (dailyQuota < 0) {
+			throw new IllegalArgumentException("Must not be negative");
+		}
+		quotaMeter.setDailyLimit(dailyQuota);
+	}
+
+	/**
+	 * Setter for cacheTtl
+	 *
+	 * @param cacheTtl seconds a search result stays cached
+	 */
+	public void setCacheTtl(long cacheTtl) {
+		if (cacheTtl < 0) {
+			throw new IllegalArgumentException("Must not be negative");
+		}
+		videoCache.setTtl(cacheTtl, TimeUnit.SECONDS);
+	}
+
 	@Override
 	public String getUsage() {
 		return "youtube <query> - searches youtube and returns the first result for <query>";
@@ -79,37 +193,181 @@ public class YouTubeCommand extends SynchronousCommand {
 	}
 
 	@Override
-	public Optional<String> processMessage(
-			String from, String message, Matcher matcher, boolean fromRoom) {
+	public CompletableFuture<Optional<String>> processAsyncMessage(
+			Jid from, String message, Matcher matcher, boolean fromRoom) {
 
 		String query = matcher.group(1);
+		String key = query.trim().toLowerCase(Locale.ROOT);
+
+		String videoId = videoCache.getIfPresent(key);
+		if (videoId != null) {
+			return toFuture(toResponse(query, videoId));
+		}
+
+		// Identical searches made at the same time share one API call
+
+		return searchFlight.execute(key, () -> search(key, query))
+				.thenApply(searchedVideoId -> toResponse(query, searchedVideoId))
+				.exceptionally(ex -> {
+					Throwable cause = ex instanceof CompletionException && ex.getCause() != null ?
+							ex.getCause() : ex;
+
+					if (cause instanceof QuotaExceededException || cause instanceof UpstreamUnavailableException) {
+
+						// Out of quota or YouTube is down, fall back to whatever we have cached even if it's old
+
+						String staleVideoId = videoCache.getIncludingExpired(key);
+						if (staleVideoId != null) {
+							return toResponse(query, staleVideoId);
+						}
+
+						if (cause instanceof UpstreamUnavailableException) {
+							return Optional.of(api.getUnavailableMessage());
+						}
+
+						return Optional.of("I'm out of YouTube searches for today, try again tomorrow.");
+					}
+
+					logger.error("Error searching YouTube", cause);
+					return Optional.empty();
+				});
+
+	}
+
+	/**
+	 * Search YouTube for a video and cache the result
+	 *
+	 * @param key   normalized query
+	 * @param query plaintext query
+	 * @return future video id, or NO_RESULTS
+	 */
+	private CompletableFuture<String> search(String key, String query) {
+
+		// Don't spend quota on a search that won't be sent
+
+		if (!api.isAvailable()) {
+			CompletableFuture<String> unavailable = new CompletableFuture<>();
+			unavailable.completeExceptionally(new UpstreamUnavailableException(api, "YouTube is unavailable"));
+			return unavailable;
+		}
+
+		if (!quotaMeter.tryConsume(SEARCH_COST)) {
+			CompletableFuture<String> exceeded = new CompletableFuture<>();
+			exceeded.completeExceptionally(new QuotaExceededException());
+			return exceeded;
+		}
 
 		try {
-			YouTube.Search.List search = youtube.search().list("id,snippet");
+			YouTube.Search.List search = getYouTube().search().list("id,snippet");
 			search.setKey(this.apiKey);
 			search.setQ(query);
 			search.setType("video");
 
 			search.setFields("items(id/kind,id/videoId,snippet/title,snippet)");
 			search.setMaxResults(1L);
-			SearchListResponse searchResponse = search.execute();
 
-			List<SearchResult> searchResultList = searchResponse.getItems();
-			if (searchResultList != null) {
-				SearchResult result = searchResultList.get(0);
-				ResourceId id = result.getId();
+			return getBot().getHttpService()
+					.executeAsync(search.buildHttpRequest(), SearchListResponse.class)
+					.handle((searchResponse, ex) -> {
+						if (ex != null) {
+							Throwable cause = ex instanceof CompletionException && ex.getCause() != null ?
+									ex.getCause() : ex;
 
-				if (id.getKind().equals("youtube#video")) {
-					return Optional.of("http://www.youtube.com/watch?v=" + id.getVideoId());
-				}
-			} else {
-				return Optional.of("Sorry, no results for `" + query + "`!");
-			}
+							if (cause instanceof HttpResponseException &&
+									((HttpResponseException) cause).getStatusCode() == 403) {
+								List<String> reasons = getErrorReasons((HttpResponseException) cause);
+								if (reasons.stream().anyMatch(QUOTA_REASONS::contains)) {
+									logger.warn("YouTube rejected search with {}, treating quota as exhausted", reasons);
+									quotaMeter.exhaust();
+									throw new CompletionException(new QuotaExceededException());
+								}
+
+								logger.error("YouTube refused search with {}", reasons.isEmpty() ?
+										((HttpResponseException) cause).getContent() : reasons);
+							}
+
+							throw new CompletionException(cause);
+						}
+
+						String videoId = NO_RESULTS;
+
+						List<SearchResult> searchResultList = searchResponse.getItems();
+						if (searchResultList != null && !searchResultList.isEmpty()) {
+							ResourceId id = searchResultList.get(0).getId();
+							if ("youtube#video".equals(id.getKind())) {
+								videoId = id.getVideoId();
+							}
+						}
+
+						videoCache.put(key, videoId);
+						return videoId;
+					});
 		} catch (IOException ex) {
-			logger.error("Error searching YouTube", ex);
+			CompletableFuture<String> failed = new CompletableFuture<>();
+			failed.completeExceptionally(ex);
+			return failed;
 		}
 
-		return Optional.empty();
+	}
+
+	/**
+	 * Read the error reasons from a Google API error response
+	 *
+	 * @param e the error response
+	 * @return reasons like quotaExceeded or keyInvalid, empty if the body isn't a Google API error
+	 */
+	private List<String> getErrorReasons(HttpResponseException e) {
+
+		String content = e.getContent();
+		if (content == null || content.isEmpty()) {
+			return Collections.emptyList();
+		}
+
+		try {
+			GoogleJsonError error = getBot().getHttpService().getJsonFactory()
+					.fromString(content, GoogleJsonErrorContainer.class)
+					.getError();
+			if (error == null || error.getErrors() == null) {
+				return Collections.emptyList();
+			}
+
+			return error.getErrors().stream()
+					.map(GoogleJsonError.ErrorInfo::getReason)
+					.filter(reason -> reason != null)
+					.collect(Collectors.toList());
+		} catch (IOException | IllegalArgumentException ex) {
+			return Collections.emptyList();
+		}
+
+	}
+
+	/**
+	 * Build the response for a search result
+	 *
+	 * @param query   plaintext query
+	 * @param videoId the video found, or NO_RESULTS
+	 * @return optional response
+	 */
+	private static Optional<String> toResponse(String query, String videoId) {
+
+		if (NO_RESULTS.equals(videoId)) {
+			return Optional.of("Sorry, no results for `" + query + "`!");
+		}
+
+		return Optional.of("http://www.youtube.com/watch?v=" + videoId);
+
+	}
+
+	/**
+	 * Thrown when a search can't be made because the daily quota is used up
+	 */
+	private static class QuotaExceededException extends Exception {
+
+		private static final long serialVersionUID = 1L;
+
+		QuotaExceededException() {
+			super("YouTube daily quota exceeded");
+		}
 
 	}
 
@@ -0,0 +1,31 @@
+package ca.caseybanner.chief.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A count that only goes up.
+ * <p/>
+ * Backed by a LongAdder so threads incrementing the same counter don't contend.
+ */
+public class Counter implements Metric {
+
+	private final LongAdder count = new LongAdder();
+
+	public void increment() {
+		count.increment();
+	}
+
+	public void add(long amount) {
+		count.add(amount);
+	}
+
+	public long get() {
+		return count.sum();
+	}
+
+	@Override
+	public Type getType() {
+		return Type.COUNTER;
+	}
+
+}
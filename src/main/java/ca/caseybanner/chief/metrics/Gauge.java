@@ -0,0 +1,30 @@
+package ca.caseybanner.chief.metrics;
+
+import java.util.function.DoubleSupplier;
+
+/**
+ * A value read from its owner each time metrics are collected, like a queue depth
+ */
+public class Gauge implements Metric {
+
+	private final DoubleSupplier supplier;
+
+	/**
+	 * Constructor
+	 *
+	 * @param supplier reads the current value, must be cheap and thread safe
+	 */
+	public Gauge(DoubleSupplier supplier) {
+		this.supplier = supplier;
+	}
+
+	public double get() {
+		return supplier.getAsDouble();
+	}
+
+	@Override
+	public Type getType() {
+		return Type.GAUGE;
+	}
+
+}
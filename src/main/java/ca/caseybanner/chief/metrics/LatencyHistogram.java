@@ -0,0 +1,110 @@
+package ca.caseybanner.chief.metrics;
+
+import org.HdrHistogram.ConcurrentHistogram;
+import org.HdrHistogram.Histogram;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Latency distribution backed by an HDR histogram.
+ * <p/>
+ * Values are recorded in microseconds with two significant digits, so percentiles are
+ * accurate to within 1% no matter how skewed the distribution is. Recording is lock free
+ * and doesn't allocate. Latencies over an hour are recorded as an hour.
+ */
+public class LatencyHistogram implements Metric {
+
+	private static final long HIGHEST_MICROS = TimeUnit.HOURS.toMicros(1);
+	private static final int SIGNIFICANT_DIGITS = 2;
+
+	private final ConcurrentHistogram histogram;
+	private final LongAdder sumMicros;
+
+	public LatencyHistogram() {
+		this.histogram = new ConcurrentHistogram(HIGHEST_MICROS, SIGNIFICANT_DIGITS);
+		this.sumMicros = new LongAdder();
+	}
+
+	/**
+	 * Record a latency
+	 *
+	 * @param nanos the latency in nanoseconds
+	 */
+	public void record(long nanos) {
+		long micros = Math.min(HIGHEST_MICROS, Math.max(0, TimeUnit.NANOSECONDS.toMicros(nanos)));
+		histogram.recordValue(micros);
+		sumMicros.add(micros);
+	}
+
+	/**
+	 * Record the time elapsed since a System.nanoTime() reading
+	 *
+	 * @param startNanos when the timed operation started
+	 */
+	public void recordSince(long startNanos) {
+		record(System.nanoTime() - startNanos);
+	}
+
+	/**
+	 * Take a copy of the distribution to read percentiles from
+	 *
+	 * @return snapshot of everything recorded so far
+	 */
+	public Snapshot snapshot() {
+		return new Snapshot(histogram.copy(), sumMicros.sum());
+	}
+
+	@Override
+	public Type getType() {
+		return Type.SUMMARY;
+	}
+
+	/**
+	 * A point in time copy of a LatencyHistogram
+	 */
+	public static class Snapshot {
+
+		private final Histogram histogram;
+		private final long sumMicros;
+
+		Snapshot(Histogram histogram, long sumMicros) {
+			this.histogram = histogram;
+			this.sumMicros = sumMicros;
+		}
+
+		public long getCount() {
+			return histogram.getTotalCount();
+		}
+
+		/**
+		 * Getter for the total of all recorded latencies
+		 *
+		 * @return sum in seconds
+		 */
+		public double getSumSeconds() {
+			return sumMicros / 1e6;
+		}
+
+		/**
+		 * Getter for a percentile
+		 *
+		 * @param percentile between 0 and 100
+		 * @return latency at that percentile in seconds, 0 if nothing has been recorded
+		 */
+		public double getPercentileSeconds(double percentile) {
+			return histogram.getValueAtPercentile(percentile) / 1e6;
+		}
+
+		/**
+		 * Getter for the largest recorded latency
+		 *
+		 * @return maximum in seconds
+		 */
+		public double getMaxSeconds() {
+			return histogram.getMaxValue() / 1e6;
+		}
+
+	}
+
+}
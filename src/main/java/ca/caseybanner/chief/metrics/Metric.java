@@ -0,0 +1,36 @@
+package ca.caseybanner.chief.metrics;
+
+/**
+ * A value tracked by the MetricsRegistry
+ */
+public interface Metric {
+
+	/**
+	 * The kinds of metric, named after their Prometheus types
+	 */
+	enum Type {
+
+		COUNTER("counter"),
+		GAUGE("gauge"),
+		SUMMARY("summary");
+
+		private final String prometheusName;
+
+		Type(String prometheusName) {
+			this.prometheusName = prometheusName;
+		}
+
+		public String getPrometheusName() {
+			return prometheusName;
+		}
+
+	}
+
+	/**
+	 * Getter for the kind of metric
+	 *
+	 * @return metric type
+	 */
+	Type getType();
+
+}
@@ -0,0 +1,233 @@
+package ca.caseybanner.chief.metrics;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.function.DoubleSupplier;
+import java.util.function.Supplier;
+
+/**
+ * Holds every metric the bot and its commands record into.
+ * <p/>
+ * Metrics are grouped into families by name, and each metric in a family is identified by its
+ * labels, given as alternating name and value strings. Looking a metric up builds a key from
+ * its labels, so callers on hot paths should look their metrics up once and keep them.
+ */
+public class MetricsRegistry {
+
+	/**
+	 * Quantiles reported for latency histograms
+	 */
+	private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+	private final ConcurrentSkipListMap<String, Family> families;
+
+	public MetricsRegistry() {
+		this.families = new ConcurrentSkipListMap<>();
+	}
+
+	/**
+	 * Get or create a counter
+	 *
+	 * @param name   metric name, like chief_messages_received_total
+	 * @param help   description of the metric
+	 * @param labels alternating label names and values
+	 * @return the counter
+	 */
+	public Counter counter(String name, String help, String... labels) {
+		return family(name, help, Metric.Type.COUNTER).get(labels, Counter::new);
+	}
+
+	/**
+	 * Get or create a latency histogram
+	 *
+	 * @param name   metric name, like chief_command_seconds
+	 * @param help   description of the metric
+	 * @param labels alternating label names and values
+	 * @return the histogram
+	 */
+	public LatencyHistogram histogram(String name, String help, String... labels) {
+		return family(name, help, Metric.Type.SUMMARY).get(labels, LatencyHistogram::new);
+	}
+
+	/**
+	 * Register a gauge, replacing any gauge already registered with the same name and labels
+	 *
+	 * @param name     metric name, like chief_dispatch_queue_depth
+	 * @param help     description of the metric
+	 * @param supplier reads the current value
+	 * @param labels   alternating label names and values
+	 */
+	public void gauge(String name, String help, DoubleSupplier supplier, String... labels) {
+		family(name, help, Metric.Type.GAUGE).put(labels, new Gauge(supplier));
+	}
+
+	/**
+	 * Getter for every family, sorted by name
+	 *
+	 * @return the metric families
+	 */
+	public List<Family> getFamilies() {
+		return new ArrayList<>(families.values());
+	}
+
+	/**
+	 * Write every metric in the Prometheus text exposition format
+	 *
+	 * @param out where to write the metrics
+	 */
+	public void writePrometheus(StringBuilder out) {
+
+		for (Family family : families.values()) {
+			out.append("# HELP ").append(family.name).append(' ').append(family.help).append('\n');
+			out.append("# TYPE ").append(family.name).append(' ')
+					.append(family.type.getPrometheusName()).append('\n');
+
+			family.metrics.forEach((labels, metric) -> {
+				if (metric instanceof Counter) {
+					writeSample(out, family.name, labels, null, ((Counter) metric).get());
+				} else if (metric instanceof Gauge) {
+					writeSample(out, family.name, labels, null, ((Gauge) metric).get());
+				} else if (metric instanceof LatencyHistogram) {
+					LatencyHistogram.Snapshot snapshot = ((LatencyHistogram) metric).snapshot();
+					for (double quantile : QUANTILES) {
+						writeSample(out, family.name, labels, "quantile=\"" + quantile + "\"",
+								snapshot.getPercentileSeconds(quantile * 100));
+					}
+					writeSample(out, family.name + "_sum", labels, null, snapshot.getSumSeconds());
+					writeSample(out, family.name + "_count", labels, null, snapshot.getCount());
+				}
+			});
+		}
+
+	}
+
+	/**
+	 * Get or create a family, checking that it is used consistently
+	 */
+	private Family family(String name, String help, Metric.Type type) {
+
+		Family family = families.computeIfAbsent(name, key -> new Family(name, help, type));
+		if (family.type != type) {
+			throw new IllegalArgumentException(
+					"Metric " + name + " is a " + family.type + ", not a " + type);
+		}
+
+		return family;
+
+	}
+
+	private static void writeSample(
+			StringBuilder out, String name, String labels, String extraLabel, double value) {
+
+		out.append(name);
+		if (!labels.isEmpty() || extraLabel != null) {
+			out.append('{').append(labels);
+			if (extraLabel != null) {
+				if (!labels.isEmpty()) {
+					out.append(',');
+				}
+				out.append(extraLabel);
+			}
+			out.append('}');
+		}
+
+		out.append(' ');
+		if (value == Math.rint(value) && !Double.isInfinite(value)) {
+			out.append((long) value);
+		} else {
+			out.append(value);
+		}
+		out.append('\n');
+
+	}
+
+	/**
+	 * Render labels the way Prometheus expects them, which doubles as the key within a family
+	 *
+	 * @param labels alternating label names and values
+	 * @return labels like room="dev@conf.example.com",type="room"
+	 */
+	static String formatLabels(String... labels) {
+
+		if (labels.length % 2 != 0) {
+			throw new IllegalArgumentException("Labels must be name and value pairs");
+		}
+
+		StringBuilder builder = new StringBuilder();
+		for (int i = 0; i < labels.length; i += 2) {
+			if (i > 0) {
+				builder.append(',');
+			}
+
+			builder.append(labels[i]).append("=\"");
+			String value = labels[i + 1];
+			for (int j = 0; j < value.length(); j++) {
+				char c = value.charAt(j);
+				if (c == '\\' || c == '"') {
+					builder.append('\\').append(c);
+				} else if (c == '\n') {
+					builder.append("\\n");
+				} else {
+					builder.append(c);
+				}
+			}
+			builder.append('"');
+		}
+
+		return builder.toString();
+
+	}
+
+	/**
+	 * All the metrics sharing a name
+	 */
+	public static class Family {
+
+		private final String name;
+		private final String help;
+		private final Metric.Type type;
+		private final ConcurrentSkipListMap<String, Metric> metrics;
+
+		Family(String name, String help, Metric.Type type) {
+			this.name = name;
+			this.help = help;
+			this.type = type;
+			this.metrics = new ConcurrentSkipListMap<>();
+		}
+
+		@SuppressWarnings("unchecked")
+		private <T extends Metric> T get(String[] labels, Supplier<T> constructor) {
+			return (T) metrics.computeIfAbsent(formatLabels(labels), key -> constructor.get());
+		}
+
+		private void put(String[] labels, Metric metric) {
+			metrics.put(formatLabels(labels), metric);
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public String getHelp() {
+			return help;
+		}
+
+		public Metric.Type getType() {
+			return type;
+		}
+
+		/**
+		 * Getter for the metrics in this family
+		 *
+		 * @return metrics keyed by their formatted labels, sorted by labels
+		 */
+		public Map<String, Metric> getMetrics() {
+			return Collections.unmodifiableMap(metrics);
+		}
+
+	}
+
+}
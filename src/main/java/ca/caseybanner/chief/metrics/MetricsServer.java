@@ -0,0 +1,110 @@
+package ca.caseybanner.chief.metrics;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Serves the registry at /metrics in the Prometheus text format.
+ * <p/>
+ * Uses the HTTP server built into the JDK on a single daemon thread, scrapes are cheap and
+ * infrequent. Binds to the loopback address unless told otherwise.
+ */
+public class MetricsServer {
+
+	private static final Logger logger = LogManager.getLogger(MetricsServer.class);
+
+	private static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+	private final MetricsRegistry registry;
+	private final InetSocketAddress address;
+	private HttpServer server;
+	private ExecutorService executor;
+
+	/**
+	 * Constructor
+	 *
+	 * @param registry the metrics to serve
+	 * @param host     address to bind to
+	 * @param port     port to listen on
+	 */
+	public MetricsServer(MetricsRegistry registry, String host, int port) {
+		this.registry = registry;
+		this.address = new InetSocketAddress(host, port);
+	}
+
+	/**
+	 * Start listening
+	 *
+	 * @throws IOException if the port can't be bound
+	 */
+	public synchronized void start() throws IOException {
+
+		if (server != null) {
+			return;
+		}
+
+		executor = Executors.newSingleThreadExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "chief-metrics");
+			thread.setDaemon(true);
+			return thread;
+		});
+
+		server = HttpServer.create(address, 0);
+		server.createContext("/metrics", this::handle);
+		server.setExecutor(executor);
+		server.start();
+
+		logger.info("Serving metrics on http://{}:{}/metrics",
+				address.getHostString(), server.getAddress().getPort());
+
+	}
+
+	/**
+	 * Stop listening
+	 */
+	public synchronized void stop() {
+
+		if (server != null) {
+			server.stop(0);
+			executor.shutdown();
+			server = null;
+		}
+
+	}
+
+	private void handle(HttpExchange exchange) throws IOException {
+
+		try {
+			if (!"GET".equals(exchange.getRequestMethod())) {
+				exchange.sendResponseHeaders(405, -1);
+				return;
+			}
+
+			StringBuilder builder = new StringBuilder(8192);
+			registry.writePrometheus(builder);
+			byte[] body = builder.toString().getBytes(StandardCharsets.UTF_8);
+
+			exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+			exchange.sendResponseHeaders(200, body.length);
+			try (OutputStream out = exchange.getResponseBody()) {
+				out.write(body);
+			}
+		} catch (RuntimeException e) {
+			logger.error("Error serving metrics", e);
+			exchange.sendResponseHeaders(500, -1);
+		} finally {
+			exchange.close();
+		}
+
+	}
+
+}
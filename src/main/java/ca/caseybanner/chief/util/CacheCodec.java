@@ -0,0 +1,34 @@
+package ca.caseybanner.chief.util;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Converts cached values to and from bytes, so they can be kept in a DiskCache
+ *
+ * @param <V> value type
+ */
+public interface CacheCodec<V> {
+
+	/**
+	 * Stores strings as UTF-8
+	 */
+	CacheCodec<String> UTF8 = new CacheCodec<String>() {
+
+		@Override
+		public byte[] encode(String value) {
+			return value.getBytes(StandardCharsets.UTF_8);
+		}
+
+		@Override
+		public String decode(byte[] bytes) {
+			return new String(bytes, StandardCharsets.UTF_8);
+		}
+
+	};
+
+	byte[] encode(V value) throws IOException;
+
+	V decode(byte[] bytes) throws IOException;
+
+}
@@ -0,0 +1,176 @@
+package ca.caseybanner.chief.util;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Stops calls to a failing service for a while, then lets a single probe through to see if it
+ * has recovered.
+ * <p/>
+ * The breaker starts closed. After enough consecutive failures it opens and refuses every call
+ * for the open time. The first call after that is the half-open probe: if it succeeds the
+ * breaker closes again, if it fails the breaker stays open for another open time. A probe that
+ * never reports back is replaced by a new one after the open time.
+ * <p/>
+ * Each allowed call gets a ticket to report back with. Opening the breaker or starting a probe
+ * issues new tickets, so calls that started earlier can't close or reopen it, only the current
+ * probe can.
+ */
+public class CircuitBreaker {
+
+	public enum State {
+		CLOSED,
+		HALF_OPEN,
+		OPEN
+	}
+
+	/**
+	 * Returned by tryAcquire when the call must not be made
+	 */
+	public static final long REFUSED = -1;
+
+	private final int failureThreshold;
+	private final long openNanos;
+
+	private State state;
+	private int consecutiveFailures;
+	private long openedAtNanos;
+	private long probeStartedNanos;
+	private long generation;
+
+	/**
+	 * Constructor
+	 *
+	 * @param failureThreshold consecutive failures that open the breaker
+	 * @param openTime         how long the breaker stays open before probing
+	 * @param unit             unit of openTime
+	 */
+	public CircuitBreaker(int failureThreshold, long openTime, TimeUnit unit) {
+
+		if (failureThreshold < 1) {
+			throw new IllegalArgumentException("Must be at least 1");
+		}
+
+		this.failureThreshold = failureThreshold;
+		this.openNanos = unit.toNanos(openTime);
+		this.state = State.CLOSED;
+
+	}
+
+	/**
+	 * Ask to make a call, a call that is allowed must report back with recordSuccess or recordFailure
+	 *
+	 * @return the ticket to report back with, or REFUSED if the call must not be made
+	 */
+	public synchronized long tryAcquire() {
+
+		long now = System.nanoTime();
+
+		switch (state) {
+			case CLOSED:
+				return generation;
+			case OPEN:
+				if (now - openedAtNanos < openNanos) {
+					return REFUSED;
+				}
+				state = State.HALF_OPEN;
+				probeStartedNanos = now;
+				return ++generation;
+			default:
+				if (now - probeStartedNanos < openNanos) {
+					return REFUSED;
+				}
+				probeStartedNanos = now;
+				return ++generation;
+		}
+
+	}
+
+	/**
+	 * Check whether tryAcquire would allow a call right now, without starting a probe
+	 *
+	 * @return true if a call would go ahead
+	 */
+	public synchronized boolean isCallPermitted() {
+
+		long now = System.nanoTime();
+
+		switch (state) {
+			case CLOSED:
+				return true;
+			case OPEN:
+				return now - openedAtNanos >= openNanos;
+			default:
+				return now - probeStartedNanos >= openNanos;
+		}
+
+	}
+
+	/**
+	 * Report a call that succeeded
+	 *
+	 * @param ticket the ticket tryAcquire returned for the call
+	 */
+	public synchronized void recordSuccess(long ticket) {
+
+		// Calls started before the breaker opened don't close it, only the probe does
+
+		if (ticket != generation || state == State.OPEN) {
+			return;
+		}
+
+		state = State.CLOSED;
+		consecutiveFailures = 0;
+
+	}
+
+	/**
+	 * Report a call that failed
+	 *
+	 * @param ticket the ticket tryAcquire returned for the call
+	 */
+	public synchronized void recordFailure(long ticket) {
+
+		if (ticket != generation) {
+			return;
+		}
+
+		if (state == State.HALF_OPEN) {
+			open();
+		} else if (state == State.CLOSED && ++consecutiveFailures >= failureThreshold) {
+			open();
+		}
+
+	}
+
+	/**
+	 * Getter for the state
+	 *
+	 * @return current state
+	 */
+	public synchronized State getState() {
+		return state;
+	}
+
+	/**
+	 * Getter for how long until the breaker lets a probe through
+	 *
+	 * @return milliseconds, 0 if it isn't open
+	 */
+	public synchronized long getRetryAfterMillis() {
+
+		if (state != State.OPEN) {
+			return 0;
+		}
+
+		return Math.max(0, TimeUnit.NANOSECONDS.toMillis(openNanos - (System.nanoTime() - openedAtNanos)));
+
+	}
+
+	private void open() {
+		state = State.OPEN;
+		openedAtNanos = System.nanoTime();
+		consecutiveFailures = 0;
+		generation++;
+	}
+
+}
@@ -0,0 +1,458 @@
+package ca.caseybanner.chief.util;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * A persistent key value store for cached responses, kept in a single memory-mapped segment file.
+ * <p/>
+ * Records are only ever appended, and an in-memory index points at the newest record for each key.
+ * Each record carries a CRC, so when the file is opened after a crash it is read up to the first
+ * torn or corrupt record and writing continues from there. When the segment fills up and enough
+ * of it is taken by replaced or expired records, it is compacted: live records that haven't
+ * expired are copied into a new file, which then atomically replaces the old one. Otherwise new
+ * records are not stored until older ones expire.
+ * <p/>
+ * Record layout: length (int), CRC32 of the rest (int), expiry time in epoch milliseconds (long),
+ * key length (int), UTF-8 key, value. A length of 0 marks the end of the data.
+ */
+public class DiskCache implements Closeable {
+
+	private static final Logger logger = LogManager.getLogger(DiskCache.class);
+
+	private static final int HEADER_SIZE = 8;
+	private static final int BODY_PREFIX_SIZE = 12;
+
+	/**
+	 * Receives live records when reading the whole cache
+	 */
+	@FunctionalInterface
+	public interface Visitor {
+
+		void visit(String key, byte[] value, long expiresAt);
+
+	}
+
+	/**
+	 * A value read from the cache along with when it expires
+	 */
+	public static class Record {
+
+		private final byte[] value;
+		private final long expiresAt;
+
+		Record(byte[] value, long expiresAt) {
+			this.value = value;
+			this.expiresAt = expiresAt;
+		}
+
+		public byte[] getValue() {
+			return value;
+		}
+
+		public long getExpiresAt() {
+			return expiresAt;
+		}
+
+	}
+
+	/**
+	 * Where the newest record for a key lives
+	 */
+	private static class Location {
+
+		private final int offset;
+		private final int size;
+		private final long expiresAt;
+
+		Location(int offset, int size, long expiresAt) {
+			this.offset = offset;
+			this.size = size;
+			this.expiresAt = expiresAt;
+		}
+
+	}
+
+	private final Path file;
+	private final int capacity;
+	private final Map<String, Location> index;
+
+	private FileChannel channel;
+	private MappedByteBuffer buffer;
+	private int end;
+	private long deadBytes;
+	private boolean closed;
+
+	/**
+	 * Open a cache file, creating it if it doesn't exist and recovering whatever was written before
+	 *
+	 * @param file     the segment file
+	 * @param capacity maximum size of the file in bytes
+	 * @throws IOException if the file can't be opened or mapped
+	 */
+	public DiskCache(Path file, int capacity) throws IOException {
+
+		this.file = file;
+		this.capacity = capacity;
+		this.index = new HashMap<>();
+
+		// A compaction that didn't finish leaves its temporary file behind, the original is still intact
+
+		Files.deleteIfExists(compactionFile());
+
+		channel = open(file);
+		buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+		recover();
+
+		if (deadBytes > end / 2) {
+			compact();
+		}
+
+	}
+
+	/**
+	 * Get a value that hasn't expired
+	 *
+	 * @param key the key to look up
+	 * @return the record, or null if it isn't stored or has expired
+	 */
+	public synchronized Record get(String key) {
+
+		if (closed) {
+			return null;
+		}
+
+		Location location = index.get(key);
+		if (location == null || location.expiresAt <= System.currentTimeMillis()) {
+			return null;
+		}
+
+		return new Record(readValue(location), location.expiresAt);
+
+	}
+
+	/**
+	 * Store a value, replacing any earlier value for the key
+	 *
+	 * @param key       the key
+	 * @param value     the value
+	 * @param expiresAt when the value expires, in epoch milliseconds
+	 */
+	public synchronized void put(String key, byte[] value, long expiresAt) {
+
+		if (closed) {
+			return;
+		}
+
+		byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+		int size = HEADER_SIZE + BODY_PREFIX_SIZE + keyBytes.length + value.length;
+
+		// Leave room for the end marker after the record. Compacting rewrites the whole file, so
+		// it is only done when it would free enough space for the record.
+
+		if (end + size + 4 > capacity) {
+			if (end - reclaimableBytes() + size + 4 > capacity) {
+				logger.debug("No room for {} bytes in {}, not storing {}", size, file, key);
+
+				// The older value mustn't be read back in place of the one that wasn't stored
+
+				Location previous = index.remove(key);
+				if (previous != null) {
+					deadBytes += previous.size;
+				}
+				return;
+			}
+
+			compact();
+			if (end + size + 4 > capacity) {
+				return;
+			}
+		}
+
+		append(buffer, end, keyBytes, value, expiresAt);
+
+		Location previous = index.put(key, new Location(end, size, expiresAt));
+		if (previous != null) {
+			deadBytes += previous.size;
+		}
+
+		end += size;
+		buffer.putInt(end, 0);
+
+	}
+
+	/**
+	 * Visit every record that hasn't expired
+	 *
+	 * @param visitor receives each live record
+	 */
+	public synchronized void forEach(Visitor visitor) {
+
+		if (closed) {
+			return;
+		}
+
+		long now = System.currentTimeMillis();
+		for (Map.Entry<String, Location> entry : index.entrySet()) {
+			Location location = entry.getValue();
+			if (location.expiresAt > now) {
+				visitor.visit(entry.getKey(), readValue(location), location.expiresAt);
+			}
+		}
+
+	}
+
+	/**
+	 * Rewrite the file with only the live records that haven't expired
+	 */
+	public synchronized void compact() {
+
+		if (closed) {
+			return;
+		}
+
+		long now = System.currentTimeMillis();
+		Path compacted = compactionFile();
+
+		try {
+			Files.deleteIfExists(compacted);
+			FileChannel newChannel = open(compacted);
+			MappedByteBuffer newBuffer = newChannel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+			Map<String, Location> newIndex = new HashMap<>();
+			int newEnd = 0;
+
+			for (Map.Entry<String, Location> entry : index.entrySet()) {
+				Location location = entry.getValue();
+				if (location.expiresAt <= now) {
+					continue;
+				}
+
+				byte[] keyBytes = entry.getKey().getBytes(StandardCharsets.UTF_8);
+				append(newBuffer, newEnd, keyBytes, readValue(location), location.expiresAt);
+				newIndex.put(entry.getKey(), new Location(newEnd, location.size, location.expiresAt));
+				newEnd += location.size;
+			}
+
+			if (newEnd + 4 <= capacity) {
+				newBuffer.putInt(newEnd, 0);
+			}
+
+			newBuffer.force();
+			Files.move(compacted, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+			logger.debug("Compacted {} from {} to {} bytes", file, end, newEnd);
+
+			channel.close();
+			channel = newChannel;
+			buffer = newBuffer;
+			index.clear();
+			index.putAll(newIndex);
+			end = newEnd;
+			deadBytes = 0;
+		} catch (IOException e) {
+			logger.warn("Error compacting {}", file, e);
+			try {
+				Files.deleteIfExists(compacted);
+			} catch (IOException ignored) {
+
+			}
+		}
+
+	}
+
+	/**
+	 * Bytes a compaction would free, caller must hold the lock
+	 *
+	 * @return replaced and expired record bytes
+	 */
+	private long reclaimableBytes() {
+
+		long now = System.currentTimeMillis();
+		long expiredBytes = 0;
+		for (Location location : index.values()) {
+			if (location.expiresAt <= now) {
+				expiredBytes += location.size;
+			}
+		}
+
+		return deadBytes + expiredBytes;
+
+	}
+
+	/**
+	 * Getter for the number of keys stored, including expired ones not yet compacted away
+	 *
+	 * @return key count
+	 */
+	public synchronized int size() {
+		return index.size();
+	}
+
+	/**
+	 * Getter for the bytes written to the segment, including replaced records
+	 *
+	 * @return bytes used
+	 */
+	public synchronized int getBytes() {
+		return end;
+	}
+
+	/**
+	 * Flush the segment to disk and close it
+	 */
+	@Override
+	public synchronized void close() {
+
+		if (closed) {
+			return;
+		}
+
+		closed = true;
+		buffer.force();
+
+		try {
+			channel.close();
+		} catch (IOException e) {
+			logger.warn("Error closing {}", file, e);
+		}
+
+	}
+
+	/**
+	 * Read records from the start of the file, stopping at the end marker or the first bad record
+	 */
+	private void recover() {
+
+		int position = 0;
+		int records = 0;
+		CRC32 crc = new CRC32();
+
+		while (position + HEADER_SIZE + BODY_PREFIX_SIZE <= capacity) {
+			int length = buffer.getInt(position);
+			if (length < BODY_PREFIX_SIZE || length > capacity - position - HEADER_SIZE) {
+				break;
+			}
+
+			byte[] body = new byte[length];
+			buffer.position(position + HEADER_SIZE);
+			buffer.get(body);
+
+			crc.reset();
+			crc.update(body, 0, length);
+			if ((int) crc.getValue() != buffer.getInt(position + 4)) {
+				logger.warn("Corrupt record at offset {} in {}, discarding the rest of the file", position, file);
+				break;
+			}
+
+			long expiresAt = buffer.getLong(position + HEADER_SIZE);
+			int keyLength = buffer.getInt(position + HEADER_SIZE + 8);
+			if (keyLength < 0 || keyLength > length - BODY_PREFIX_SIZE) {
+				break;
+			}
+
+			String key = new String(body, BODY_PREFIX_SIZE, keyLength, StandardCharsets.UTF_8);
+			int size = HEADER_SIZE + length;
+
+			Location previous = index.put(key, new Location(position, size, expiresAt));
+			if (previous != null) {
+				deadBytes += previous.size;
+			}
+
+			position += size;
+			records++;
+		}
+
+		end = position;
+		if (end + 4 <= capacity) {
+			buffer.putInt(end, 0);
+		}
+
+		// Expired records count as dead so they get compacted away
+
+		long now = System.currentTimeMillis();
+		Iterator<Location> locations = index.values().iterator();
+		while (locations.hasNext()) {
+			Location location = locations.next();
+			if (location.expiresAt <= now) {
+				deadBytes += location.size;
+				locations.remove();
+			}
+		}
+
+		logger.debug("Recovered {} records, {} live, from {}", records, index.size(), file);
+
+	}
+
+	/**
+	 * Read the value of a record, caller must hold the lock
+	 *
+	 * @param location where the record is
+	 * @return the value
+	 */
+	private byte[] readValue(Location location) {
+
+		int keyLength = buffer.getInt(location.offset + HEADER_SIZE + 8);
+		int valueOffset = location.offset + HEADER_SIZE + BODY_PREFIX_SIZE + keyLength;
+
+		byte[] value = new byte[location.offset + location.size - valueOffset];
+		buffer.position(valueOffset);
+		buffer.get(value);
+		return value;
+
+	}
+
+	/**
+	 * Write a record, the caller has made sure there is room
+	 *
+	 * @param target    the buffer to write to
+	 * @param offset    where to write the record
+	 * @param key       UTF-8 key
+	 * @param value     the value
+	 * @param expiresAt expiry time in epoch milliseconds
+	 */
+	private static void append(MappedByteBuffer target, int offset, byte[] key, byte[] value, long expiresAt) {
+
+		int length = BODY_PREFIX_SIZE + key.length + value.length;
+
+		target.position(offset + HEADER_SIZE);
+		target.putLong(expiresAt);
+		target.putInt(key.length);
+		target.put(key);
+		target.put(value);
+
+		CRC32 crc = new CRC32();
+		byte[] body = new byte[length];
+		target.position(offset + HEADER_SIZE);
+		target.get(body);
+		crc.update(body, 0, length);
+
+		// The length goes in last, so a record only becomes visible to recovery once it is complete
+
+		target.putInt(offset + 4, (int) crc.getValue());
+		target.putInt(offset, length);
+
+	}
+
+	private Path compactionFile() {
+		return file.resolveSibling(file.getFileName() + ".compact");
+	}
+
+	private static FileChannel open(Path path) throws IOException {
+		return FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+	}
+
+}
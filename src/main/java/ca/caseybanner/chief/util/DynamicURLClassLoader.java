@@ -19,6 +19,16 @@ public class DynamicURLClassLoader extends URLClassLoader {
 		super(loader.getURLs());
 	}
 
+	/**
+	 * Create an empty url class loader delegating to a parent.
+	 * On Java 9 and up the system class loader is no longer a URLClassLoader.
+	 *
+	 * @param parent
+	 */
+	public DynamicURLClassLoader(ClassLoader parent) {
+		super(new URL[0], parent);
+	}
+
 	/**
 	 * Add a url to the class loader
 	 *
@@ -0,0 +1,436 @@
+package ca.caseybanner.chief.util;
+
+import ca.caseybanner.chief.metrics.Counter;
+import ca.caseybanner.chief.metrics.MetricsRegistry;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.function.ToIntFunction;
+
+/**
+ * A bounded in-memory cache with time based expiry.
+ * <p/>
+ * Entries expire after a TTL and the least recently used entries are evicted when the cache
+ * holds too many entries or too many (estimated) bytes. Optionally, expired entries are still
+ * served for a grace period while a fresh value is loaded in the background.
+ * <p/>
+ * The cache can be backed by a DiskCache, so it starts out warm after a restart. Values are
+ * written through to disk as they are added and misses are looked up on disk before loading.
+ *
+ * @param <K> key type
+ * @param <V> value type
+ */
+public class ExpiringCache<K, V> {
+
+	private static final Logger logger = LogManager.getLogger(ExpiringCache.class);
+
+	private final LinkedHashMap<K, Entry<V>> entries;
+	private final ToIntFunction<V> weigher;
+	private final Executor refreshExecutor;
+
+	/**
+	 * Swapped for counters in a registry by registerMetrics
+	 */
+	private volatile Counter hits;
+	private volatile Counter staleHits;
+	private volatile Counter misses;
+	private volatile Counter evictions;
+	private volatile Counter diskHits;
+
+	private volatile Persistence<V> persistence;
+
+	private volatile long ttlMillis;
+	private volatile long staleWhileRevalidateMillis;
+	private volatile int maxEntries;
+	private volatile long maxBytes;
+
+	private long totalBytes;
+
+	private static class Entry<V> {
+
+		private final V value;
+		private final int weight;
+		private final long expiresAt;
+		private boolean refreshing;
+
+		Entry(V value, int weight, long expiresAt) {
+			this.value = value;
+			this.weight = weight;
+			this.expiresAt = expiresAt;
+		}
+
+	}
+
+	/**
+	 * The disk tier and how to convert keys and values for it
+	 */
+	private static class Persistence<V> {
+
+		private final DiskCache disk;
+		private final CacheCodec<V> codec;
+
+		Persistence(DiskCache disk, CacheCodec<V> codec) {
+			this.disk = disk;
+			this.codec = codec;
+		}
+
+	}
+
+	/**
+	 * Constructor
+	 *
+	 * @param ttlMillis       how long entries stay fresh
+	 * @param maxEntries      maximum number of entries
+	 * @param maxBytes        maximum total weight of all entries
+	 * @param weigher         estimates the size of a value in bytes
+	 * @param refreshExecutor runs background refreshes of stale entries
+	 */
+	public ExpiringCache(
+			long ttlMillis, int maxEntries, long maxBytes, ToIntFunction<V> weigher, Executor refreshExecutor) {
+
+		this.ttlMillis = ttlMillis;
+		this.maxEntries = maxEntries;
+		this.maxBytes = maxBytes;
+		this.weigher = weigher;
+		this.refreshExecutor = refreshExecutor;
+		this.staleWhileRevalidateMillis = 0;
+
+		this.entries = new LinkedHashMap<>(16, 0.75f, true);
+
+		this.hits = new Counter();
+		this.staleHits = new Counter();
+		this.misses = new Counter();
+		this.evictions = new Counter();
+		this.diskHits = new Counter();
+
+	}
+
+	/**
+	 * Back this cache with a disk cache, loading every unexpired value already stored in it.
+	 * Keys are stored as their toString().
+	 *
+	 * @param disk      the disk cache to read from and write through to
+	 * @param keyParser converts a stored key back into a key
+	 * @param codec     converts values to and from bytes
+	 * @return the number of values loaded
+	 */
+	public int persistTo(DiskCache disk, Function<String, K> keyParser, CacheCodec<V> codec) {
+
+		List<K> keys = new ArrayList<>();
+		List<Entry<V>> loaded = new ArrayList<>();
+
+		disk.forEach((key, bytes, expiresAt) -> {
+			try {
+				V value = codec.decode(bytes);
+				keys.add(keyParser.apply(key));
+				loaded.add(new Entry<>(value, weigher.applyAsInt(value), expiresAt));
+			} catch (IOException | RuntimeException e) {
+				logger.debug("Skipping unreadable cached value for {}", key, e);
+			}
+		});
+
+		synchronized (this) {
+			for (int i = 0; i < keys.size(); i++) {
+				if (!entries.containsKey(keys.get(i))) {
+					entries.put(keys.get(i), loaded.get(i));
+					totalBytes += loaded.get(i).weight;
+				}
+			}
+			evict();
+		}
+
+		persistence = new Persistence<>(disk, codec);
+		return keys.size();
+
+	}
+
+	/**
+	 * Get a value, loading it on a miss.
+	 * <p/>
+	 * If the entry has expired but is within the stale-while-revalidate window, the stale
+	 * value is returned and a refresh is started in the background.
+	 *
+	 * @param key    the key to look up
+	 * @param loader loads the value for a key, may return null if it couldn't be loaded
+	 * @return the cached or loaded value, or null if it couldn't be loaded
+	 */
+	public V get(K key, Function<K, V> loader) {
+
+		long now = System.currentTimeMillis();
+		boolean refresh = false;
+		V staleValue = null;
+
+		synchronized (this) {
+			Entry<V> entry = entries.get(key);
+			if (entry != null) {
+				if (now < entry.expiresAt) {
+					hits.increment();
+					return entry.value;
+				}
+
+				if (now < entry.expiresAt + staleWhileRevalidateMillis) {
+					staleHits.increment();
+					staleValue = entry.value;
+					refresh = !entry.refreshing;
+					entry.refreshing = true;
+				} else {
+					remove(key);
+				}
+			}
+		}
+
+		if (staleValue != null) {
+			if (refresh) {
+				refreshExecutor.execute(() -> {
+					V value = loader.apply(key);
+					if (value != null) {
+						put(key, value);
+					} else {
+						synchronized (this) {
+							Entry<V> entry = entries.get(key);
+							if (entry != null) {
+								entry.refreshing = false;
+							}
+						}
+					}
+				});
+			}
+
+			return staleValue;
+		}
+
+		V persisted = loadPersisted(key);
+		if (persisted != null) {
+			return persisted;
+		}
+
+		misses.increment();
+
+		V value = loader.apply(key);
+		if (value != null) {
+			put(key, value);
+		}
+
+		return value;
+
+	}
+
+	/**
+	 * Get a fresh value without loading it
+	 *
+	 * @param key the key to look up
+	 * @return the value, or null if it isn't cached or has expired
+	 */
+	public V getIfPresent(K key) {
+
+		synchronized (this) {
+			Entry<V> entry = entries.get(key);
+			if (entry != null && System.currentTimeMillis() < entry.expiresAt) {
+				hits.increment();
+				return entry.value;
+			}
+		}
+
+		V persisted = loadPersisted(key);
+		if (persisted == null) {
+			misses.increment();
+		}
+
+		return persisted;
+
+	}
+
+	/**
+	 * Get a value even if it has expired, as long as it hasn't been evicted yet.
+	 * Used to degrade gracefully when fresh values can't be loaded.
+	 *
+	 * @param key the key to look up
+	 * @return the value, or null if it isn't cached
+	 */
+	public synchronized V getIncludingExpired(K key) {
+
+		Entry<V> entry = entries.get(key);
+		if (entry != null) {
+			staleHits.increment();
+			return entry.value;
+		}
+
+		misses.increment();
+		return null;
+
+	}
+
+	/**
+	 * Add or replace a value
+	 *
+	 * @param key   the key
+	 * @param value the value
+	 */
+	public void put(K key, V value) {
+
+		int weight = weigher.applyAsInt(value);
+		long expiresAt = System.currentTimeMillis() + ttlMillis;
+
+		synchronized (this) {
+			remove(key);
+			entries.put(key, new Entry<>(value, weight, expiresAt));
+			totalBytes += weight;
+			evict();
+		}
+
+		Persistence<V> currentPersistence = persistence;
+		if (currentPersistence != null) {
+			try {
+				currentPersistence.disk.put(key.toString(), currentPersistence.codec.encode(value), expiresAt);
+			} catch (IOException | RuntimeException e) {
+				logger.warn("Error writing {} to the disk cache", key, e);
+			}
+		}
+
+	}
+
+	/**
+	 * Look up a value that isn't in memory on disk, and keep it in memory if it's there
+	 *
+	 * @param key the key to look up
+	 * @return the value, or null if there's no disk cache or it doesn't have a fresh value
+	 */
+	private V loadPersisted(K key) {
+
+		Persistence<V> currentPersistence = persistence;
+		if (currentPersistence == null) {
+			return null;
+		}
+
+		DiskCache.Record record = currentPersistence.disk.get(key.toString());
+		if (record == null) {
+			return null;
+		}
+
+		try {
+			V value = currentPersistence.codec.decode(record.getValue());
+			int weight = weigher.applyAsInt(value);
+
+			synchronized (this) {
+				remove(key);
+				entries.put(key, new Entry<>(value, weight, record.getExpiresAt()));
+				totalBytes += weight;
+				evict();
+			}
+
+			diskHits.increment();
+			return value;
+		} catch (IOException | RuntimeException e) {
+			logger.debug("Skipping unreadable cached value for {}", key, e);
+			return null;
+		}
+
+	}
+
+	/**
+	 * Remove everything from memory, values already written to disk are kept
+	 */
+	public synchronized void clear() {
+		entries.clear();
+		totalBytes = 0;
+	}
+
+	public void setTtl(long ttl, TimeUnit unit) {
+		this.ttlMillis = unit.toMillis(ttl);
+	}
+
+	public void setStaleWhileRevalidate(long staleWhileRevalidate, TimeUnit unit) {
+		this.staleWhileRevalidateMillis = unit.toMillis(staleWhileRevalidate);
+	}
+
+	public synchronized void setMaxEntries(int maxEntries) {
+		this.maxEntries = maxEntries;
+		evict();
+	}
+
+	public synchronized void setMaxBytes(long maxBytes) {
+		this.maxBytes = maxBytes;
+		evict();
+	}
+
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	public synchronized long getBytes() {
+		return totalBytes;
+	}
+
+	/**
+	 * Expose this cache's size as gauges and its hit counts as counters
+	 *
+	 * @param metrics the registry to register with
+	 * @param name    cache name, used as the cache label
+	 */
+	public void registerMetrics(MetricsRegistry metrics, String name) {
+
+		metrics.gauge("chief_cache_entries", "Entries in the cache", this::size, "cache", name);
+		metrics.gauge("chief_cache_bytes", "Estimated size of the cache", this::getBytes, "cache", name);
+
+		hits = registerCounter(metrics, "chief_cache_hits_total", "Fresh cache hits", name, hits);
+		staleHits = registerCounter(metrics, "chief_cache_stale_hits_total",
+				"Stale cache hits served while refreshing", name, staleHits);
+		misses = registerCounter(metrics, "chief_cache_misses_total", "Cache misses", name, misses);
+		diskHits = registerCounter(metrics, "chief_cache_disk_hits_total", "Misses answered from the disk cache",
+				name, diskHits);
+		evictions = registerCounter(metrics, "chief_cache_evictions_total",
+				"Entries evicted to stay under the limits", name, evictions);
+
+	}
+
+	/**
+	 * Get the registry's counter, carrying over anything counted before it was registered
+	 */
+	private static Counter registerCounter(MetricsRegistry metrics, String metricName, String help, String name,
+			Counter counted) {
+
+		Counter counter = metrics.counter(metricName, help, "cache", name);
+		counter.add(counted.get());
+		return counter;
+
+	}
+
+	/**
+	 * Remove an entry, caller must hold the lock
+	 *
+	 * @param key the key to remove
+	 */
+	private void remove(K key) {
+		Entry<V> old = entries.remove(key);
+		if (old != null) {
+			totalBytes -= old.weight;
+		}
+	}
+
+	/**
+	 * Evict least recently used entries until the cache is within its limits,
+	 * caller must hold the lock
+	 */
+	private void evict() {
+
+		Iterator<Map.Entry<K, Entry<V>>> iterator = entries.entrySet().iterator();
+		while (iterator.hasNext() && (entries.size() > maxEntries || totalBytes > maxBytes)) {
+			Map.Entry<K, Entry<V>> eldest = iterator.next();
+			totalBytes -= eldest.getValue().weight;
+			iterator.remove();
+			evictions.increment();
+			logger.trace("Evicted {}", eldest.getKey());
+		}
+
+	}
+
+}
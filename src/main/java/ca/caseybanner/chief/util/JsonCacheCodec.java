@@ -0,0 +1,40 @@
+package ca.caseybanner.chief.util;
+
+import com.google.api.client.json.JsonFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Stores API responses as the JSON they were parsed from, using their @Key fields
+ *
+ * @param <V> response type
+ */
+public class JsonCacheCodec<V> implements CacheCodec<V> {
+
+	private final JsonFactory jsonFactory;
+	private final Class<V> type;
+
+	/**
+	 * Constructor
+	 *
+	 * @param jsonFactory the JSON factory to serialize with
+	 * @param type        class to parse stored values as
+	 */
+	public JsonCacheCodec(JsonFactory jsonFactory, Class<V> type) {
+		this.jsonFactory = jsonFactory;
+		this.type = type;
+	}
+
+	@Override
+	public byte[] encode(V value) throws IOException {
+		return jsonFactory.toByteArray(value);
+	}
+
+	@Override
+	public V decode(byte[] bytes) throws IOException {
+		return jsonFactory.fromInputStream(new ByteArrayInputStream(bytes), StandardCharsets.UTF_8, type);
+	}
+
+}
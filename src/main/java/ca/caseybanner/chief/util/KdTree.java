@@ -0,0 +1,256 @@
+package ca.caseybanner.chief.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+/**
+ * An immutable k-d tree for nearest neighbour searches by Euclidean distance.
+ * <p/>
+ * The tree is stored in a flat array, the median of each range is its node and the axis cycles
+ * with depth. A search descends toward the query point first and only visits the other side of
+ * a split when it could hold something closer than the worst result found so far.
+ *
+ * @param <T> item type
+ */
+public class KdTree<T> {
+
+	private final int dimensions;
+	private final Object[] items;
+	private final double[][] points;
+
+	/**
+	 * A search result and its distance from the query point
+	 *
+	 * @param <T> item type
+	 */
+	public static class Neighbour<T> {
+
+		private final T item;
+		private final double distance;
+
+		Neighbour(T item, double distance) {
+			this.item = item;
+			this.distance = distance;
+		}
+
+		public T getItem() {
+			return item;
+		}
+
+		/**
+		 * Getter for the distance
+		 *
+		 * @return Euclidean distance from the query point
+		 */
+		public double getDistance() {
+			return distance;
+		}
+
+	}
+
+	/**
+	 * Build a tree
+	 *
+	 * @param items       the items to index
+	 * @param dimensions  number of coordinates per point
+	 * @param coordinates gets an item's point, items without one (null) are left out
+	 */
+	public KdTree(List<T> items, int dimensions, Function<T, double[]> coordinates) {
+
+		if (dimensions < 1) {
+			throw new IllegalArgumentException("Must have at least one dimension");
+		}
+
+		this.dimensions = dimensions;
+
+		List<Object> indexedItems = new ArrayList<>(items.size());
+		List<double[]> indexedPoints = new ArrayList<>(items.size());
+		for (T item : items) {
+			double[] point = coordinates.apply(item);
+			if (point != null) {
+				if (point.length != dimensions) {
+					throw new IllegalArgumentException("Expected " + dimensions + " coordinates, got " + point.length);
+				}
+				indexedItems.add(item);
+				indexedPoints.add(point.clone());
+			}
+		}
+
+		this.items = indexedItems.toArray();
+		this.points = indexedPoints.toArray(new double[0][]);
+
+		build(0, this.points.length, 0);
+
+	}
+
+	/**
+	 * Getter for the number of indexed items
+	 *
+	 * @return item count
+	 */
+	public int size() {
+		return items.length;
+	}
+
+	/**
+	 * Find the items closest to a point
+	 *
+	 * @param point  the query point
+	 * @param count  maximum number of items to return
+	 * @param filter only items it accepts are returned
+	 * @return the closest accepted items, closest first
+	 */
+	public List<Neighbour<T>> nearest(double[] point, int count, Predicate<? super T> filter) {
+
+		if (point.length != dimensions) {
+			throw new IllegalArgumentException("Expected " + dimensions + " coordinates, got " + point.length);
+		}
+
+		if (count <= 0 || items.length == 0) {
+			return new ArrayList<>();
+		}
+
+		// Farthest first, so the head is the result to drop when a closer one turns up
+
+		PriorityQueue<Neighbour<T>> best = new PriorityQueue<>(count + 1,
+				Comparator.<Neighbour<T>>comparingDouble(neighbour -> neighbour.distance).reversed());
+
+		search(0, items.length, 0, point, count, filter, best);
+
+		List<Neighbour<T>> result = new ArrayList<>(best);
+		result.sort(Comparator.comparingDouble(neighbour -> neighbour.distance));
+
+		for (int i = 0; i < result.size(); i++) {
+			Neighbour<T> neighbour = result.get(i);
+			result.set(i, new Neighbour<>(neighbour.item, Math.sqrt(neighbour.distance)));
+		}
+
+		return Collections.unmodifiableList(result);
+
+	}
+
+	/**
+	 * Arrange items[from, to) so the median on this depth's axis is in the middle, everything
+	 * before it is no greater and everything after it no smaller, then do the same for each half
+	 */
+	private void build(int from, int to, int depth) {
+
+		if (to - from <= 1) {
+			return;
+		}
+
+		int axis = depth % dimensions;
+		int middle = (from + to) >>> 1;
+		select(from, to - 1, middle, axis);
+
+		build(from, middle, depth + 1);
+		build(middle + 1, to, depth + 1);
+
+	}
+
+	/**
+	 * Quickselect the k-th smallest point on an axis into position k
+	 */
+	private void select(int left, int right, int k, int axis) {
+
+		while (left < right) {
+			double pivot = points[(left + right) >>> 1][axis];
+			int i = left;
+			int j = right;
+
+			while (i <= j) {
+				while (points[i][axis] < pivot) {
+					i++;
+				}
+				while (points[j][axis] > pivot) {
+					j--;
+				}
+				if (i <= j) {
+					swap(i++, j--);
+				}
+			}
+
+			if (k <= j) {
+				right = j;
+			} else if (k >= i) {
+				left = i;
+			} else {
+				return;
+			}
+		}
+
+	}
+
+	@SuppressWarnings("unchecked")
+	private void search(int from, int to, int depth, double[] point, int count,
+			Predicate<? super T> filter, PriorityQueue<Neighbour<T>> best) {
+
+		if (from >= to) {
+			return;
+		}
+
+		int axis = depth % dimensions;
+		int middle = (from + to) >>> 1;
+
+		T item = (T) items[middle];
+		if (filter.test(item)) {
+			double distance = squaredDistance(point, points[middle]);
+			if (best.size() < count || distance < best.peek().distance) {
+				best.add(new Neighbour<>(item, distance));
+				if (best.size() > count) {
+					best.poll();
+				}
+			}
+		}
+
+		double offset = point[axis] - points[middle][axis];
+		boolean lowFirst = offset < 0;
+
+		if (lowFirst) {
+			search(from, middle, depth + 1, point, count, filter, best);
+		} else {
+			search(middle + 1, to, depth + 1, point, count, filter, best);
+		}
+
+		// The other side is only worth visiting if the split plane is closer than the worst result
+
+		if (best.size() < count || offset * offset < best.peek().distance) {
+			if (lowFirst) {
+				search(middle + 1, to, depth + 1, point, count, filter, best);
+			} else {
+				search(from, middle, depth + 1, point, count, filter, best);
+			}
+		}
+
+	}
+
+	private static double squaredDistance(double[] a, double[] b) {
+
+		double sum = 0;
+		for (int i = 0; i < a.length; i++) {
+			double difference = a[i] - b[i];
+			sum += difference * difference;
+		}
+
+		return sum;
+
+	}
+
+	private void swap(int i, int j) {
+
+		Object item = items[i];
+		items[i] = items[j];
+		items[j] = item;
+
+		double[] point = points[i];
+		points[i] = points[j];
+		points[j] = point;
+
+	}
+
+}
@@ -0,0 +1,104 @@
+package ca.caseybanner.chief.util;
+
+import java.time.Clock;
+import java.time.LocalDate;
+import java.time.ZoneId;
+
+/**
+ * Tracks units of a daily API quota.
+ * <p/>
+ * The count resets at midnight in the quota's time zone.
+ */
+public class QuotaMeter {
+
+	private final ZoneId zone;
+	private final Clock clock;
+
+	private volatile long dailyLimit;
+	private LocalDate day;
+	private long spent;
+
+	/**
+	 * Constructor
+	 *
+	 * @param dailyLimit units available per day
+	 * @param zone       time zone in which the quota's day starts
+	 */
+	public QuotaMeter(long dailyLimit, ZoneId zone) {
+		this.dailyLimit = dailyLimit;
+		this.zone = zone;
+		this.clock = Clock.system(zone);
+		this.day = LocalDate.now(clock);
+	}
+
+	/**
+	 * Spend units if there are enough left today
+	 *
+	 * @param units units the call will cost
+	 * @return true if the units were spent, false if that would go over the limit
+	 */
+	public synchronized boolean tryConsume(long units) {
+
+		roll();
+
+		if (spent + units > dailyLimit) {
+			return false;
+		}
+
+		spent += units;
+		return true;
+
+	}
+
+	/**
+	 * Mark the rest of today's quota as spent, for when the API reports it has run out
+	 */
+	public synchronized void exhaust() {
+		roll();
+		spent = Math.max(spent, dailyLimit);
+	}
+
+	/**
+	 * Getter for units spent today
+	 *
+	 * @return units spent
+	 */
+	public synchronized long getSpent() {
+		roll();
+		return spent;
+	}
+
+	/**
+	 * Getter for units left today
+	 *
+	 * @return units remaining
+	 */
+	public synchronized long getRemaining() {
+		roll();
+		return Math.max(0, dailyLimit - spent);
+	}
+
+	public void setDailyLimit(long dailyLimit) {
+		this.dailyLimit = dailyLimit;
+	}
+
+	public long getDailyLimit() {
+		return dailyLimit;
+	}
+
+	public ZoneId getZone() {
+		return zone;
+	}
+
+	/**
+	 * Reset the count if the day has changed, caller must hold the lock
+	 */
+	private void roll() {
+		LocalDate today = LocalDate.now(clock);
+		if (!today.equals(day)) {
+			day = today;
+			spent = 0;
+		}
+	}
+
+}
@@ -0,0 +1,110 @@
+package ca.caseybanner.chief.util;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Coalesces concurrent identical requests.
+ * <p/>
+ * While a request for a key is in flight, further requests for the same key wait for and share
+ * its result instead of starting their own. Once it completes the key is forgotten, so the next
+ * request starts a new call. Results are not cached beyond that.
+ *
+ * @param <K> key type, usually normalized request arguments
+ * @param <V> result type
+ */
+public class SingleFlight<K, V> {
+
+	private final ConcurrentHashMap<K, CompletableFuture<V>> inFlight;
+	private final AtomicLong shared;
+
+	public SingleFlight() {
+		this.inFlight = new ConcurrentHashMap<>();
+		this.shared = new AtomicLong();
+	}
+
+	/**
+	 * Start an asynchronous request, or join the one already in flight for this key
+	 *
+	 * @param key      identifies identical requests
+	 * @param supplier starts the request
+	 * @return future result shared by every caller with this key
+	 */
+	public CompletableFuture<V> execute(K key, Supplier<CompletableFuture<V>> supplier) {
+
+		CompletableFuture<V> mine = new CompletableFuture<>();
+		CompletableFuture<V> existing = inFlight.putIfAbsent(key, mine);
+		if (existing != null) {
+			shared.incrementAndGet();
+			return existing;
+		}
+
+		try {
+			supplier.get().whenComplete((value, ex) -> {
+				inFlight.remove(key, mine);
+				if (ex != null) {
+					mine.completeExceptionally(ex);
+				} else {
+					mine.complete(value);
+				}
+			});
+		} catch (RuntimeException e) {
+			inFlight.remove(key, mine);
+			mine.completeExceptionally(e);
+		}
+
+		return mine;
+
+	}
+
+	/**
+	 * Run a blocking request on the calling thread, or wait for the one already in flight
+	 * for this key
+	 *
+	 * @param key    identifies identical requests
+	 * @param loader performs the request
+	 * @return the result shared by every caller with this key
+	 */
+	public V executeBlocking(K key, Supplier<V> loader) {
+
+		CompletableFuture<V> mine = new CompletableFuture<>();
+		CompletableFuture<V> existing = inFlight.putIfAbsent(key, mine);
+		if (existing != null) {
+			shared.incrementAndGet();
+			return existing.join();
+		}
+
+		try {
+			V value = loader.get();
+			mine.complete(value);
+			return value;
+		} catch (RuntimeException e) {
+			mine.completeExceptionally(e);
+			throw e;
+		} finally {
+			inFlight.remove(key, mine);
+		}
+
+	}
+
+	/**
+	 * Getter for the number of distinct requests currently in flight
+	 *
+	 * @return in-flight request count
+	 */
+	public int getInFlight() {
+		return inFlight.size();
+	}
+
+	/**
+	 * Getter for the number of requests that joined one already in flight
+	 *
+	 * @return shared request count
+	 */
+	public long getShared() {
+		return shared.get();
+	}
+
+}
@@ -0,0 +1,307 @@
+package ca.caseybanner.chief.util;
+
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.regex.Pattern;
+
+/**
+ * An immutable inverted index over short documents, like product or store names.
+ * <p/>
+ * Text is split into lowercase tokens with accents removed. A query matches a document when
+ * every query token matches one of the document's tokens exactly, as a prefix, or with a
+ * single typo (one character inserted, removed, replaced or two adjacent characters swapped).
+ * Exact matches rank above prefix matches, which rank above typos.
+ * <p/>
+ * Typos are found through an index of every token with one character deleted, so looking
+ * them up doesn't scan the vocabulary.
+ */
+public class TextIndex {
+
+	private static final Pattern MARKS = Pattern.compile("\\p{M}+");
+
+	private static final int EXACT_SCORE = 3;
+	private static final int PREFIX_SCORE = 2;
+	private static final int TYPO_SCORE = 1;
+
+	/**
+	 * Shortest query token matched by prefix
+	 */
+	private static final int MIN_PREFIX_LENGTH = 2;
+
+	/**
+	 * Shortest query token matched with a typo, shorter tokens have too many neighbours
+	 */
+	private static final int MIN_TYPO_LENGTH = 4;
+
+	/**
+	 * Most vocabulary tokens a single prefix may expand to
+	 */
+	private static final int MAX_PREFIX_EXPANSION = 256;
+
+	private final int documentCount;
+	private final String[] vocabulary;
+	private final int[][] postings;
+	private final Map<String, int[]> deletions;
+
+	/**
+	 * Build an index
+	 *
+	 * @param documents the text of each document, documents are referred to by their position
+	 */
+	public TextIndex(List<String> documents) {
+
+		this.documentCount = documents.size();
+
+		TreeMap<String, List<Integer>> tokenDocuments = new TreeMap<>();
+		for (int i = 0; i < documents.size(); i++) {
+			for (String token : tokenize(documents.get(i))) {
+				tokenDocuments.computeIfAbsent(token, key -> new ArrayList<>()).add(i);
+			}
+		}
+
+		vocabulary = tokenDocuments.keySet().toArray(new String[0]);
+		postings = new int[vocabulary.length][];
+
+		Map<String, List<Integer>> deletionTokens = new HashMap<>();
+		int id = 0;
+		for (List<Integer> documentIds : tokenDocuments.values()) {
+			postings[id] = documentIds.stream().mapToInt(Integer::intValue).toArray();
+
+			String token = vocabulary[id];
+			if (token.length() >= MIN_TYPO_LENGTH - 1) {
+				for (String deletion : deletions(token)) {
+					deletionTokens.computeIfAbsent(deletion, key -> new ArrayList<>()).add(id);
+				}
+			}
+
+			id++;
+		}
+
+		deletions = new HashMap<>(deletionTokens.size() * 2);
+		deletionTokens.forEach((deletion, ids) ->
+				deletions.put(deletion, ids.stream().mapToInt(Integer::intValue).toArray()));
+
+	}
+
+	/**
+	 * Getter for the number of indexed documents
+	 *
+	 * @return document count
+	 */
+	public int size() {
+		return documentCount;
+	}
+
+	/**
+	 * Getter for the number of distinct tokens
+	 *
+	 * @return vocabulary size
+	 */
+	public int getVocabularySize() {
+		return vocabulary.length;
+	}
+
+	/**
+	 * Find the documents matching every token of a query
+	 *
+	 * @param query the query text
+	 * @param limit maximum number of documents to return
+	 * @return positions of matching documents, best match first, ties in document order
+	 */
+	public List<Integer> search(String query, int limit) {
+
+		Set<String> queryTokens = tokenize(query);
+		if (queryTokens.isEmpty() || limit <= 0) {
+			return new ArrayList<>();
+		}
+
+		// Scores are summed over the query tokens, a document missing any token is dropped
+
+		int[] scores = null;
+		for (String queryToken : queryTokens) {
+			int[] tokenScores = new int[documentCount];
+			scoreToken(queryToken, tokenScores);
+
+			if (scores == null) {
+				scores = tokenScores;
+			} else {
+				for (int i = 0; i < documentCount; i++) {
+					scores[i] = scores[i] == 0 || tokenScores[i] == 0 ? 0 : scores[i] + tokenScores[i];
+				}
+			}
+		}
+
+		List<Integer> matches = new ArrayList<>();
+		for (int i = 0; i < documentCount; i++) {
+			if (scores[i] > 0) {
+				matches.add(i);
+			}
+		}
+
+		int[] finalScores = scores;
+		matches.sort((a, b) -> finalScores[a] != finalScores[b] ?
+				Integer.compare(finalScores[b], finalScores[a]) : Integer.compare(a, b));
+
+		return matches.size() > limit ? new ArrayList<>(matches.subList(0, limit)) : matches;
+
+	}
+
+	/**
+	 * Split text into distinct lowercase tokens with accents removed
+	 *
+	 * @param text the text
+	 * @return tokens in order of first appearance
+	 */
+	public static Set<String> tokenize(String text) {
+
+		Set<String> tokens = new LinkedHashSet<>();
+		if (text == null) {
+			return tokens;
+		}
+
+		String folded = MARKS.matcher(Normalizer.normalize(text, Normalizer.Form.NFD)).replaceAll("")
+				.toLowerCase(Locale.ROOT);
+
+		int start = -1;
+		for (int i = 0; i <= folded.length(); i++) {
+			boolean tokenChar = i < folded.length() && Character.isLetterOrDigit(folded.charAt(i));
+			if (tokenChar && start < 0) {
+				start = i;
+			} else if (!tokenChar && start >= 0) {
+				tokens.add(folded.substring(start, i));
+				start = -1;
+			}
+		}
+
+		return tokens;
+
+	}
+
+	/**
+	 * Record the best score of one query token against every document
+	 *
+	 * @param queryToken the query token
+	 * @param scores     score per document, updated in place
+	 */
+	private void scoreToken(String queryToken, int[] scores) {
+
+		int exact = Arrays.binarySearch(vocabulary, queryToken);
+		if (exact >= 0) {
+			apply(exact, EXACT_SCORE, scores);
+		}
+
+		if (queryToken.length() >= MIN_PREFIX_LENGTH) {
+			int first = exact >= 0 ? exact + 1 : -exact - 1;
+			for (int id = first; id < vocabulary.length && id < first + MAX_PREFIX_EXPANSION; id++) {
+				if (!vocabulary[id].startsWith(queryToken)) {
+					break;
+				}
+				apply(id, PREFIX_SCORE, scores);
+			}
+		}
+
+		if (queryToken.length() >= MIN_TYPO_LENGTH) {
+			Set<Integer> candidates = new LinkedHashSet<>();
+
+			// A vocabulary token one edit away shares a deletion with the query token, or is one
+
+			addAll(candidates, deletions.get(queryToken));
+			for (String deletion : deletions(queryToken)) {
+				addAll(candidates, deletions.get(deletion));
+
+				int id = Arrays.binarySearch(vocabulary, deletion);
+				if (id >= 0) {
+					candidates.add(id);
+				}
+			}
+
+			for (int id : candidates) {
+				if (id != exact && isOneEdit(queryToken, vocabulary[id])) {
+					apply(id, TYPO_SCORE, scores);
+				}
+			}
+		}
+
+	}
+
+	private void apply(int tokenId, int score, int[] scores) {
+		for (int document : postings[tokenId]) {
+			if (scores[document] < score) {
+				scores[document] = score;
+			}
+		}
+	}
+
+	private static void addAll(Set<Integer> target, int[] ids) {
+		if (ids != null) {
+			for (int id : ids) {
+				target.add(id);
+			}
+		}
+	}
+
+	/**
+	 * Every string made by deleting one character
+	 *
+	 * @param token the token
+	 * @return distinct deletions
+	 */
+	private static Set<String> deletions(String token) {
+
+		Set<String> result = new LinkedHashSet<>();
+		for (int i = 0; i < token.length(); i++) {
+			result.add(token.substring(0, i) + token.substring(i + 1));
+		}
+
+		return result;
+
+	}
+
+	/**
+	 * Check whether two different strings are one insertion, deletion, substitution
+	 * or adjacent transposition apart
+	 *
+	 * @param a first string
+	 * @param b second string
+	 * @return true if they are exactly one edit apart
+	 */
+	static boolean isOneEdit(String a, String b) {
+
+		if (a.equals(b) || Math.abs(a.length() - b.length()) > 1) {
+			return false;
+		}
+
+		int prefix = 0;
+		int shorter = Math.min(a.length(), b.length());
+		while (prefix < shorter && a.charAt(prefix) == b.charAt(prefix)) {
+			prefix++;
+		}
+
+		if (a.length() != b.length()) {
+			String longer = a.length() > b.length() ? a : b;
+			String other = longer == a ? b : a;
+			return longer.substring(prefix + 1).equals(other.substring(prefix));
+		}
+
+		String aRest = a.substring(prefix + 1);
+		String bRest = b.substring(prefix + 1);
+		if (aRest.equals(bRest)) {
+			return true;
+		}
+
+		return prefix + 1 < a.length() &&
+				a.charAt(prefix) == b.charAt(prefix + 1) &&
+				a.charAt(prefix + 1) == b.charAt(prefix) &&
+				a.substring(prefix + 2).equals(b.substring(prefix + 2));
+
+	}
+
+}